@@ -40,6 +40,34 @@ public abstract class AbstractMailReceiver implements MailReceiverService {
      */
     protected Map<Message, Mail> m_messages;
 
+    /**
+     * The cached mails by id, kept in sync with {@link #m_messages}.
+     * If several mails have the same id, the most recently sent is indexed,
+     * as {@link #getAllMessages()} lists it first.
+     */
+    private final Map<String, Mail> m_ids = new HashMap<String, Mail>();
+
+    /**
+     * The ids shared by several mails.
+     */
+    private final Set<String> m_sharedIds = new HashSet<String>();
+
+    /**
+     * The cached mails by sent date (ms), kept in sync with {@link #m_messages},
+     * so the queries do not sort the cache.
+     */
+    private final NavigableMap<Long, List<Mail>> m_dates = new TreeMap<Long, List<Mail>>();
+
+    /**
+     * The cached mails without sent date.
+     */
+    private final List<Mail> m_undated = new ArrayList<Mail>();
+
+    /**
+     * The message of each cached mail, kept in sync with {@link #m_messages}.
+     */
+    private final Map<Mail, Message> m_sources = new IdentityHashMap<Mail, Message>();
+
     /**
      * The logger.
      */
@@ -56,14 +84,17 @@ public abstract class AbstractMailReceiver implements MailReceiverService {
     /**
      * Gets all messages.
      *
-     * @return the list of mails sorted by sent date
+     * @return the list of mails sorted by sent date, newest first, the mails
+     * without date being last
      * @throws IOException if the mail cannot be fetched
      * @see org.ow2.chameleon.mail.MailReceiverService#getAllMessages()
      */
     public synchronized List<Mail> getAllMessages() throws IOException {
-        List<Mail> mails = new ArrayList<Mail>();
-        mails.addAll(m_messages.values());
-        Collections.sort(mails, new SentDateCompator());
+        List<Mail> mails = new ArrayList<Mail>(m_messages.size());
+        for (List<Mail> sent : m_dates.descendingMap().values()) {
+            mails.addAll(sent);
+        }
+        mails.addAll(m_undated);
         return mails;
     }
 
@@ -77,14 +108,25 @@ public abstract class AbstractMailReceiver implements MailReceiverService {
      */
     public synchronized List<Mail> getUnreadMessages() throws IOException {
         List<Mail> mails = new ArrayList<Mail>();
-        for (Message msg : m_messages.keySet()) {
-            Mail m = m_messages.get(msg);
+        for (List<Mail> sent : m_dates.descendingMap().values()) {
+            addUnread(sent, mails);
+        }
+        addUnread(m_undated, mails);
+        return mails;
+    }
+
+    /**
+     * Adds the unread mails of a list to another.
+     *
+     * @param mails  the mails
+     * @param unread the unread mails
+     */
+    private static void addUnread(List<Mail> mails, List<Mail> unread) {
+        for (Mail m : mails) {
             if (!m.read()) {
-                mails.add(m);
+                unread.add(m);
             }
         }
-        Collections.sort(mails, new SentDateCompator());
-        return mails;
     }
 
     /**
@@ -98,13 +140,13 @@ public abstract class AbstractMailReceiver implements MailReceiverService {
      */
     public synchronized List<Mail> getMessages(Date fromDate, Date toDate) throws IOException {
         List<Mail> mails = new ArrayList<Mail>();
-        for (Message msg : m_messages.keySet()) {
-            Date sent = m_messages.get(msg).sent();
-            if (sent != null && sent.before(toDate) && sent.after(fromDate)) {
-                mails.add(m_messages.get(msg));
-            }
+        if (!fromDate.before(toDate)) {
+            return mails;
+        }
+        for (List<Mail> sent : m_dates.subMap(fromDate.getTime(), false, toDate.getTime(), false)
+                .descendingMap().values()) {
+            mails.addAll(sent);
         }
-        Collections.sort(mails, new SentDateCompator());
         return mails;
     }
 
@@ -117,10 +159,24 @@ public abstract class AbstractMailReceiver implements MailReceiverService {
      */
     public synchronized List<Mail> getRecentMessages() throws IOException {
         List<Mail> mails = new ArrayList<Mail>();
-        for (Message msg : m_messages.keySet()) {
+        for (List<Mail> sent : m_dates.descendingMap().values()) {
+            addRecent(sent, mails);
+        }
+        addRecent(m_undated, mails);
+        return mails;
+    }
+
+    /**
+     * Adds the recent mails of a list to another.
+     *
+     * @param mails  the mails
+     * @param recent the recent mails
+     */
+    private void addRecent(List<Mail> mails, List<Mail> recent) {
+        for (Mail m : mails) {
             try {
-                if (!msg.getFlags().contains(Flag.RECENT)) {
-                    mails.add(m_messages.get(msg));
+                if (!m_sources.get(m).getFlags().contains(Flag.RECENT)) {
+                    recent.add(m);
                 }
             } catch (Exception e) {
                 // Ignore the mail.
@@ -128,9 +184,6 @@ public abstract class AbstractMailReceiver implements MailReceiverService {
                         "- ignoring mail");
             }
         }
-        Collections.sort(mails, new SentDateCompator());
-        return mails;
-
     }
 
     /**
@@ -142,13 +195,121 @@ public abstract class AbstractMailReceiver implements MailReceiverService {
      * @see org.ow2.chameleon.mail.MailReceiverService#getMessageById(java.lang.String)
      */
     public synchronized Mail getMessageById(String id) throws IOException {
-        List<Mail> list = getAllMessages();
-        for (Mail m : list) {
-            if (id.equals(m.id())) {
-                return m;
+        return m_ids.get(id);
+    }
+
+    /**
+     * Clears the cached mails.
+     */
+    protected synchronized void clearMessages() {
+        m_messages = new HashMap<Message, Mail>();
+        m_ids.clear();
+        m_sharedIds.clear();
+        m_dates.clear();
+        m_undated.clear();
+        m_sources.clear();
+    }
+
+    /**
+     * Caches a mail, replacing the mail previously cached for the message.
+     *
+     * @param msg  the message
+     * @param mail the mail
+     */
+    protected synchronized void addMessage(Message msg, Mail mail) {
+        Mail previous = m_messages.put(msg, mail);
+        if (previous != null) {
+            unindex(previous);
+        }
+        m_sources.put(mail, msg);
+        if (mail.sent() == null) {
+            m_undated.add(mail);
+        } else {
+            Long sent = mail.sent().getTime();
+            List<Mail> mails = m_dates.get(sent);
+            if (mails == null) {
+                mails = new ArrayList<Mail>(1);
+                m_dates.put(sent, mails);
+            }
+            mails.add(mail);
+        }
+        String id = mail.id();
+        if (id == null) {
+            return;
+        }
+        Mail indexed = m_ids.get(id);
+        if (indexed != null) {
+            m_sharedIds.add(id);
+        }
+        if (indexed == null || isNewer(mail, indexed)) {
+            m_ids.put(id, mail);
+        }
+    }
+
+    /**
+     * Checks whether a mail was sent after another one. The mails without
+     * sent date are the oldest.
+     *
+     * @param mail  the mail
+     * @param other the other mail
+     * @return <code>true</code> if <tt>mail</tt> was sent after <tt>other</tt>
+     */
+    private static boolean isNewer(Mail mail, Mail other) {
+        return mail.sent() != null && (other.sent() == null || mail.sent().after(other.sent()));
+    }
+
+    /**
+     * Removes a mail from the cache.
+     *
+     * @param msg the message
+     */
+    protected synchronized void removeMessage(Message msg) {
+        Mail mail = m_messages.remove(msg);
+        if (mail != null) {
+            unindex(mail);
+        }
+    }
+
+    /**
+     * Removes a mail, no longer cached, from the indexes.
+     *
+     * @param mail the mail
+     */
+    private void unindex(Mail mail) {
+        m_sources.remove(mail);
+        if (mail.sent() == null) {
+            m_undated.remove(mail);
+        } else {
+            Long sent = mail.sent().getTime();
+            List<Mail> mails = m_dates.get(sent);
+            if (mails != null && mails.remove(mail) && mails.isEmpty()) {
+                m_dates.remove(sent);
+            }
+        }
+        String id = mail.id();
+        if (id == null || m_ids.get(id) != mail) {
+            return;
+        }
+        m_ids.remove(id);
+        if (m_sharedIds.remove(id)) {
+            // Indexes the most recent mail having the same id, if any is left.
+            Mail newest = null;
+            int count = 0;
+            for (Mail other : m_messages.values()) {
+                if (id.equals(other.id())) {
+                    if (newest == null || isNewer(other, newest)) {
+                        newest = other;
+                    }
+                    count++;
+                }
+            }
+            if (newest != null) {
+                m_ids.put(id, newest);
+            }
+            if (count > 1) {
+                m_sharedIds.add(id);
             }
         }
-        return null;
     }
 
 
@@ -285,27 +446,4 @@ public abstract class AbstractMailReceiver implements MailReceiverService {
 
     }
 
-
-    /**
-     * Compare Mails based on there sent dates.
-     */
-    private class SentDateCompator implements Comparator<Mail> {
-
-        /**
-         * Compares mails
-         *
-         * @param o1 a mail
-         * @param o2 another mail
-         * @return <tt>(o2.sent).compareTo(o1.sent)</tt>
-         * @see java.util.Comparator#compare(java.lang.Object, java.lang.Object)
-         */
-        public int compare(Mail o1, Mail o2) {
-            if (o1.sent() != null && o2.sent() != null) {
-                return o2.sent().compareTo(o1.sent());
-            } else {
-                return 0;
-            }
-        }
-    }
-
 }
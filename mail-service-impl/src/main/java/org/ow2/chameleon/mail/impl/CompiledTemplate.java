@@ -0,0 +1,148 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.impl;
+
+import org.ow2.chameleon.mail.AttachmentSource;
+import org.ow2.chameleon.mail.Mail;
+import org.ow2.chameleon.mail.MailTemplate;
+
+import javax.activation.FileTypeMap;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A {@link MailTemplate} prepared for sending: the 'cc' addresses are
+ * parsed and the attachments are read and encoded once, then shared by
+ * the messages of all the recipients. Only the recipient, the subject
+ * and the body are built per message.
+ */
+public class CompiledTemplate {
+
+    /**
+     * The template.
+     */
+    private final MailTemplate m_template;
+
+    /**
+     * The send context.
+     */
+    private final SendContext m_context;
+
+    /**
+     * The parsed 'cc' addresses.
+     */
+    private final InternetAddress[] m_cc;
+
+    /**
+     * The encoded attachments.
+     */
+    private final List<byte[]> m_contents = new ArrayList<byte[]>();
+
+    /**
+     * The content types of the attachments.
+     */
+    private final List<String> m_types = new ArrayList<String>();
+
+    /**
+     * The file names of the attachments.
+     */
+    private final List<String> m_names = new ArrayList<String>();
+
+    /**
+     * Compiles a template.
+     *
+     * @param template the template
+     * @param context  the send context
+     * @throws IOException        if an attachment cannot be read
+     * @throws MessagingException if an address is invalid
+     */
+    public CompiledTemplate(MailTemplate template, SendContext context) throws IOException, MessagingException {
+        m_template = template;
+        m_context = context;
+
+        List<String> cc = template.cc();
+        m_cc = new InternetAddress[cc.size()];
+        for (int index = 0; index < cc.size(); index++) {
+            m_cc[index] = new InternetAddress(cc.get(index));
+        }
+
+        for (File file : template.attachments()) {
+            m_contents.add(EncodedAttachmentCache.encode(
+                    new BufferedInputStream(new FileInputStream(file)), file.length()));
+            m_types.add(FileTypeMap.getDefaultFileTypeMap().getContentType(file));
+            m_names.add(file.getName());
+        }
+        for (AttachmentSource source : template.attachmentSources()) {
+            m_contents.add(EncodedAttachmentCache.encode(source.getInputStream(), 8192));
+            m_types.add(source.getContentType());
+            m_names.add(source.getName());
+        }
+    }
+
+    /**
+     * Renders the mail sent to a recipient.
+     *
+     * @param recipient the recipient
+     * @return the mail
+     */
+    public Mail render(MailTemplate.Recipient recipient) {
+        return m_template.render(recipient);
+    }
+
+    /**
+     * Creates the message sent to a recipient.
+     *
+     * @param mail the mail rendered for the recipient
+     * @return the message
+     * @throws MessagingException if the message cannot be created
+     */
+    public MimeMessage createMessage(Mail mail) throws MessagingException {
+        MimeMessage msg = new MimeMessage(m_context.session());
+        msg.setFrom(m_context.from());
+        msg.setRecipient(Message.RecipientType.TO, new InternetAddress(mail.to().get(0)));
+        if (m_cc.length > 0) {
+            msg.setRecipients(Message.RecipientType.CC, m_cc);
+        }
+        msg.setSubject(mail.subject());
+
+        Date sent = new Date();
+        msg.setSentDate(sent);
+        mail.sent(sent);
+
+        Multipart mp = new MimeMultipart();
+        MimeBodyPart text = new MimeBodyPart();
+        text.setText(mail.body(), mail.charset(), mail.subType());
+        mp.addBodyPart(text);
+        for (int index = 0; index < m_contents.size(); index++) {
+            mp.addBodyPart(EncodedAttachmentCache.createPart(m_contents.get(index), m_types.get(index),
+                    m_names.get(index)));
+        }
+        msg.setContent(mp);
+        return msg;
+    }
+
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.impl;
+
+import javax.mail.MessagingException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Adapts the number of concurrent SMTP transactions to the relay, using
+ * additive increase / multiplicative decrease (AIMD). Each healthy
+ * transaction raises the limit by <tt>1 / limit</tt>, so the limit grows by
+ * about one per round of transactions. A congestion signal halves the limit:
+ * a 421 or 451 reply (the relay is overloaded or has too many connections),
+ * or several transactions in a row much slower than usual (a single slow
+ * transaction is rather a large mail). The usual latency follows all the
+ * successful transactions, so a lasting change of the relay latency is
+ * adopted instead of keeping the limit down. The limit is decreased once per
+ * round: the transactions started before a decrease do not decrease it again.
+ */
+public class ConcurrencyLimiter {
+
+    /**
+     * Factor applied to the limit on congestion.
+     */
+    private static final double BACKOFF = 0.5;
+
+    /**
+     * Weight of a new latency sample in the smoothed latency.
+     */
+    private static final double SMOOTHING = 0.1;
+
+    /**
+     * Number of slow transactions in a row showing congestion.
+     */
+    private static final int SLOW_STREAK = 3;
+
+    /**
+     * Guards the limit and the number of transactions in flight.
+     */
+    private final ReentrantLock m_lock = new ReentrantLock();
+
+    /**
+     * Signaled when a transaction completes or the limit grows.
+     */
+    private final Condition m_available = m_lock.newCondition();
+
+    /**
+     * The minimum limit.
+     */
+    private final int m_min;
+
+    /**
+     * The maximum limit.
+     */
+    private final int m_max;
+
+    /**
+     * Ratio to the smoothed latency above which a transaction shows congestion.
+     */
+    private final double m_tolerance;
+
+    /**
+     * The current limit.
+     */
+    private double m_limit;
+
+    /**
+     * The number of transactions in flight.
+     */
+    private int m_inFlight;
+
+    /**
+     * The smoothed latency (ns) of the successful transactions, 0 if unknown.
+     */
+    private double m_latency;
+
+    /**
+     * Number of slow successful transactions in a row.
+     */
+    private int m_slow;
+
+    /**
+     * Time (ns) of the last decrease.
+     */
+    private long m_lastDecrease = System.nanoTime();
+
+    /**
+     * Number of decreases.
+     */
+    private long m_decreases;
+
+    /**
+     * Creates a limiter.
+     *
+     * @param min       the minimum limit
+     * @param max       the maximum limit
+     * @param initial   the initial limit
+     * @param tolerance the ratio to the usual latency above which a transaction shows congestion,
+     *                  0 to ignore the latency
+     */
+    public ConcurrencyLimiter(int min, int max, int initial, double tolerance) {
+        m_min = Math.max(1, min);
+        m_max = Math.max(m_min, max);
+        m_limit = Math.max(m_min, Math.min(m_max, initial));
+        m_tolerance = tolerance;
+    }
+
+    /**
+     * Waits until a transaction can start.
+     *
+     * @param timeout the maximum time (ms) to wait
+     * @return the start time of the transaction, to give to {@link #release(long, Exception)}
+     * @throws MessagingException if no transaction can start before the timeout
+     */
+    public long acquire(long timeout) throws MessagingException {
+        try {
+            m_lock.lockInterruptibly();
+            try {
+                long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+                while (m_inFlight >= (int) m_limit) {
+                    if (remaining <= 0) {
+                        throw new MessagingException("Concurrency limit of " + (int) m_limit
+                                + " SMTP transactions reached for " + timeout + " ms");
+                    }
+                    remaining = m_available.awaitNanos(remaining);
+                }
+                m_inFlight++;
+                return System.nanoTime();
+            } finally {
+                m_lock.unlock();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while waiting for a SMTP transaction", e);
+        }
+    }
+
+    /**
+     * Ends a transaction and adapts the limit to its outcome.
+     *
+     * @param start   the start time given by {@link #acquire(long)}
+     * @param failure the failure, <code>null</code> if the mail was sent
+     */
+    public void release(long start, Exception failure) {
+        long now = System.nanoTime();
+        long latency = now - start;
+        m_lock.lock();
+        try {
+            m_inFlight--;
+            boolean slow = m_tolerance > 0 && m_latency > 0 && latency > m_tolerance * m_latency;
+            if (failure == null) {
+                // Slow transactions also count, the usual latency may have changed.
+                m_latency = m_latency == 0 ? latency : m_latency + SMOOTHING * (latency - m_latency);
+                m_slow = slow ? m_slow + 1 : 0;
+            }
+            if (isOverloaded(failure) || m_slow >= SLOW_STREAK) {
+                if (start > m_lastDecrease) {
+                    m_limit = Math.max(m_min, Math.floor(m_limit * BACKOFF));
+                    m_lastDecrease = now;
+                    m_decreases++;
+                    m_slow = 0;
+                }
+            } else if (failure == null && ! slow) {
+                if ((m_inFlight + 1) * 2 >= m_limit) {
+                    // Only grows when at least half of the limit is used.
+                    m_limit = Math.min(m_max, m_limit + 1 / m_limit);
+                }
+            }
+            m_available.signalAll();
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the current limit.
+     *
+     * @return the number of concurrent transactions allowed
+     */
+    public int getLimit() {
+        m_lock.lock();
+        try {
+            return (int) m_limit;
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of transactions in flight.
+     *
+     * @return the number of running transactions
+     */
+    public int getInFlight() {
+        m_lock.lock();
+        try {
+            return m_inFlight;
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the smoothed latency of the successful transactions.
+     *
+     * @return the latency (ms), 0 if unknown
+     */
+    public double getLatency() {
+        m_lock.lock();
+        try {
+            return m_latency / 1000000;
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of times the limit was decreased.
+     *
+     * @return the number of decreases
+     */
+    public long getDecreaseCount() {
+        m_lock.lock();
+        try {
+            return m_decreases;
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Checks whether a failure shows that the relay is overloaded: a 421
+     * or 451 reply, for the mail or for one of its recipients.
+     *
+     * @param failure the failure, may be <code>null</code>
+     * @return <code>true</code> if the relay is overloaded
+     */
+    static boolean isOverloaded(Exception failure) {
+        Exception e = failure;
+        while (e != null) {
+            int code = RetryPolicy.getReturnCode(e);
+            if (code == 421 || code == 451) {
+                return true;
+            }
+            e = e instanceof MessagingException ? ((MessagingException) e).getNextException() : null;
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.impl;
+
+import org.ow2.chameleon.mail.Mail;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the idempotency keys of the mails being sent or sent, so a
+ * mail sent again with the same key (typically after a timeout) is not
+ * delivered twice. A key is forgotten when its send fails, so the mail
+ * can be sent again, or once the time window has elapsed since the mail
+ * was sent. The store keeps at most <tt>maxSize</tt> keys, the oldest
+ * being forgotten first.
+ * <p/>
+ * If a file is given, the keys of the sent mails are appended to it and
+ * reloaded when the store is created, so duplicates are also detected
+ * after a restart. The file is compacted when it holds too many stale
+ * records.
+ */
+public class DedupeStore {
+
+    /**
+     * The logger.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(DedupeStore.class.getName());
+
+    /**
+     * A remembered key.
+     */
+    private static final class Record {
+
+        /**
+         * The outcome of the first send.
+         */
+        private final MailFuture m_future;
+
+        /**
+         * The time (ms) the mail was sent, 0 while being sent.
+         */
+        private long m_sent;
+
+        /**
+         * Creates a record.
+         *
+         * @param future the outcome of the first send
+         * @param sent   the time (ms) the mail was sent, 0 while being sent
+         */
+        Record(MailFuture future, long sent) {
+            m_future = future;
+            m_sent = sent;
+        }
+    }
+
+    /**
+     * The records, oldest first.
+     */
+    private final LinkedHashMap<String, Record> m_records = new LinkedHashMap<String, Record>();
+
+    /**
+     * Maximum number of keys.
+     */
+    private final int m_maxSize;
+
+    /**
+     * Time (ms) a key is remembered once its mail is sent.
+     */
+    private final long m_window;
+
+    /**
+     * The file persisting the keys, <code>null</code> if in memory only.
+     */
+    private final File m_file;
+
+    /**
+     * The stream appending to the file, <code>null</code> if in memory only.
+     */
+    private DataOutputStream m_out;
+
+    /**
+     * Number of records in the file.
+     */
+    private int m_persisted;
+
+    /**
+     * Number of sends short-circuited.
+     */
+    private long m_duplicates;
+
+    /**
+     * Creates a store.
+     *
+     * @param maxSize the maximum number of keys
+     * @param window  the time (ms) a key is remembered once its mail is sent
+     * @param file    the file persisting the keys, <code>null</code> to keep them in memory only
+     * @throws IOException if the file cannot be read or written
+     */
+    public DedupeStore(int maxSize, long window, File file) throws IOException {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("The size must be positive");
+        }
+        m_maxSize = maxSize;
+        m_window = window;
+        m_file = file;
+        if (m_file != null) {
+            load();
+            compact();
+        }
+    }
+
+    /**
+     * Creates a handle for the first send of a keyed mail. Once completed,
+     * the handle updates the store: the key is kept if the mail was sent,
+     * and forgotten otherwise.
+     *
+     * @param key the idempotency key
+     * @return the handle
+     */
+    public MailFuture newFuture(final String key) {
+        return new MailFuture() {
+            protected void done() {
+                completed(key, this);
+            }
+        };
+    }
+
+    /**
+     * Claims a key for a send.
+     *
+     * @param key    the idempotency key
+     * @param future the handle of the send, from {@link #newFuture(String)}
+     * @param mail   the mail, the outcome of a send remembered from the file
+     * @return <code>null</code> if the mail must be sent, the outcome of the
+     * first send otherwise (possibly still running)
+     */
+    public synchronized MailFuture claim(String key, MailFuture future, Mail mail) {
+        expire(System.currentTimeMillis());
+        Record record = m_records.get(key);
+        if (record == null) {
+            put(key, new Record(future, 0));
+            return null;
+        }
+        m_duplicates++;
+        if (record.m_future != null) {
+            return record.m_future;
+        }
+        // Reloaded from the file, the original mail is not known anymore.
+        MailFuture sent = new MailFuture();
+        sent.set(mail);
+        return sent;
+    }
+
+    /**
+     * Gets the number of remembered keys.
+     *
+     * @return the number of keys
+     */
+    public synchronized int size() {
+        expire(System.currentTimeMillis());
+        return m_records.size();
+    }
+
+    /**
+     * Gets the number of sends short-circuited because their key was known.
+     *
+     * @return the number of duplicates
+     */
+    public synchronized long getDuplicateCount() {
+        return m_duplicates;
+    }
+
+    /**
+     * Closes the file, if any.
+     */
+    public synchronized void close() {
+        if (m_out != null) {
+            try {
+                m_out.close();
+            } catch (IOException e) {
+                // Ignored.
+            }
+            m_out = null;
+        }
+    }
+
+    /**
+     * Records the outcome of a send.
+     *
+     * @param key    the idempotency key
+     * @param future the completed handle of the send
+     */
+    private synchronized void completed(String key, MailFuture future) {
+        Record record = m_records.get(key);
+        if (record == null || record.m_future != future) {
+            // Expired or evicted meanwhile.
+            return;
+        }
+        m_records.remove(key);
+        boolean sent;
+        try {
+            future.get();
+            sent = true;
+        } catch (Exception e) {
+            sent = false;
+        }
+        if (!sent) {
+            return;
+        }
+        record.m_sent = System.currentTimeMillis();
+        // Moves the key at the end, the records stay ordered by expiration.
+        put(key, record);
+        append(key, record.m_sent);
+    }
+
+    /**
+     * Adds a record, forgetting the oldest one if the store is full.
+     * The lock must be held.
+     *
+     * @param key    the key
+     * @param record the record
+     */
+    private void put(String key, Record record) {
+        m_records.put(key, record);
+        if (m_records.size() > m_maxSize) {
+            Iterator<String> iterator = m_records.keySet().iterator();
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Forgets the keys sent for longer than the window. The lock must be held.
+     *
+     * @param now the current time (ms)
+     */
+    private void expire(long now) {
+        Iterator<Record> iterator = m_records.values().iterator();
+        while (iterator.hasNext()) {
+            Record record = iterator.next();
+            if (record.m_sent == 0) {
+                // Being sent, the keys after it may be older.
+                continue;
+            }
+            if (now - record.m_sent < m_window) {
+                return;
+            }
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Appends a sent key to the file, compacting it when it holds too many
+     * stale records. The lock must be held.
+     *
+     * @param key  the key
+     * @param sent the time (ms) the mail was sent
+     */
+    private void append(String key, long sent) {
+        if (m_out == null) {
+            return;
+        }
+        try {
+            m_out.writeUTF(key);
+            m_out.writeLong(sent);
+            m_out.flush();
+            if (++m_persisted > 2 * m_maxSize) {
+                compact();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Cannot persist the idempotency key " + key, e);
+        }
+    }
+
+    /**
+     * Loads the keys sent within the window. A truncated last record, left
+     * by a crash, is ignored.
+     *
+     * @throws IOException if the file cannot be read
+     */
+    private void load() throws IOException {
+        if (!m_file.exists()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(m_file)));
+        try {
+            while (true) {
+                String key = in.readUTF();
+                long sent = in.readLong();
+                if (now - sent < m_window) {
+                    m_records.remove(key);
+                    put(key, new Record(null, sent));
+                }
+            }
+        } catch (EOFException e) {
+            // End of the file.
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Rewrites the file with the keys sent within the window. The lock must
+     * be held.
+     *
+     * @throws IOException if the file cannot be written
+     */
+    private void compact() throws IOException {
+        close();
+        expire(System.currentTimeMillis());
+        File tmp = new File(m_file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        int count = 0;
+        try {
+            for (Map.Entry<String, Record> entry : m_records.entrySet()) {
+                if (entry.getValue().m_sent != 0) {
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(entry.getValue().m_sent);
+                    count++;
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(m_file)) {
+            // Windows does not replace an existing file.
+            if (!m_file.delete() || !tmp.renameTo(m_file)) {
+                throw new IOException("Cannot replace " + m_file);
+            }
+        }
+        m_persisted = count;
+        m_out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(m_file, true)));
+    }
+
+}
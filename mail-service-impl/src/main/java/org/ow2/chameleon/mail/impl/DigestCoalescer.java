@@ -0,0 +1,308 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.impl;
+
+import org.ow2.chameleon.mail.Mail;
+
+import java.io.FileNotFoundException;
+import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces the mails sent to the same recipients during a time window
+ * into a single digest mail, to absorb notification storms. The first mail
+ * of a window is sent immediately, so isolated mails are not delayed; the
+ * following ones are buffered until the end of the window, or until
+ * <tt>maxMails</tt> mails are buffered, and sent as one digest.
+ * <p/>
+ * Mails are coalesced when they have the same sender, recipients, body
+ * format and, if enabled, subject. The digest has the subject of the first
+ * buffered mail, prefixed by the number of mails, and the bodies and the
+ * attachments of all the buffered mails.
+ */
+public class DigestCoalescer {
+
+    /**
+     * Sends the digests.
+     */
+    public interface Sink {
+
+        /**
+         * Sends a digest.
+         *
+         * @param digest the digest, or the buffered mail if there is only one
+         * @param count  the number of coalesced mails
+         */
+        void send(Mail digest, int count);
+    }
+
+    /**
+     * The mails buffered for a key during a window.
+     */
+    private static final class Window {
+
+        /**
+         * The buffered mails.
+         */
+        private List<Mail> m_mails = new ArrayList<Mail>();
+    }
+
+    /**
+     * The open windows, per key.
+     */
+    private final Map<String, Window> m_windows = new HashMap<String, Window>();
+
+    /**
+     * Length (ms) of a window.
+     */
+    private final long m_window;
+
+    /**
+     * Maximum number of mails per digest.
+     */
+    private final int m_maxMails;
+
+    /**
+     * Whether the subject is part of the key.
+     */
+    private final boolean m_bySubject;
+
+    /**
+     * Closes the windows.
+     */
+    private final ScheduledExecutorService m_scheduler;
+
+    /**
+     * Sends the digests.
+     */
+    private final Sink m_sink;
+
+    /**
+     * Number of mails buffered instead of being sent.
+     */
+    private long m_coalesced;
+
+    /**
+     * Number of digests sent.
+     */
+    private long m_digests;
+
+    /**
+     * Creates a coalescer.
+     *
+     * @param window    the length (ms) of a window
+     * @param maxMails  the maximum number of mails per digest
+     * @param bySubject <code>true</code> to only coalesce mails having the same subject
+     * @param scheduler closes the windows
+     * @param sink      sends the digests
+     */
+    public DigestCoalescer(long window, int maxMails, boolean bySubject, ScheduledExecutorService scheduler,
+                           Sink sink) {
+        m_window = window;
+        m_maxMails = Math.max(1, maxMails);
+        m_bySubject = bySubject;
+        m_scheduler = scheduler;
+        m_sink = sink;
+    }
+
+    /**
+     * Offers a mail to the coalescer.
+     *
+     * @param mail the mail
+     * @return <code>true</code> if the mail is buffered, <code>false</code> if
+     * it opens a window and must be sent now
+     */
+    public boolean offer(Mail mail) {
+        final String key = getKey(mail);
+        List<Mail> full = null;
+        synchronized (this) {
+            Window window = m_windows.get(key);
+            if (window == null) {
+                try {
+                    m_scheduler.schedule(new Runnable() {
+                        public void run() {
+                            close(key);
+                        }
+                    }, m_window, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // Stopping.
+                    return false;
+                }
+                m_windows.put(key, new Window());
+                return false;
+            }
+            window.m_mails.add(mail);
+            m_coalesced++;
+            if (window.m_mails.size() >= m_maxMails) {
+                full = window.m_mails;
+                window.m_mails = new ArrayList<Mail>();
+            }
+        }
+        if (full != null) {
+            emit(full);
+        }
+        return true;
+    }
+
+    /**
+     * Sends the buffered mails of all windows, and closes them.
+     */
+    public void flush() {
+        List<List<Mail>> pending = new ArrayList<List<Mail>>();
+        synchronized (this) {
+            for (Window window : m_windows.values()) {
+                if (!window.m_mails.isEmpty()) {
+                    pending.add(window.m_mails);
+                }
+            }
+            m_windows.clear();
+        }
+        for (List<Mail> mails : pending) {
+            emit(mails);
+        }
+    }
+
+    /**
+     * Gets the number of mails buffered instead of being sent one by one.
+     *
+     * @return the number of coalesced mails
+     */
+    public synchronized long getCoalescedCount() {
+        return m_coalesced;
+    }
+
+    /**
+     * Gets the number of digests sent.
+     *
+     * @return the number of digests
+     */
+    public synchronized long getDigestCount() {
+        return m_digests;
+    }
+
+    /**
+     * Closes a window and sends its buffered mails.
+     *
+     * @param key the key of the window
+     */
+    private void close(String key) {
+        Window window;
+        synchronized (this) {
+            window = m_windows.remove(key);
+        }
+        if (window != null && !window.m_mails.isEmpty()) {
+            emit(window.m_mails);
+        }
+    }
+
+    /**
+     * Sends buffered mails.
+     *
+     * @param mails the mails
+     */
+    private void emit(List<Mail> mails) {
+        if (mails.size() > 1) {
+            synchronized (this) {
+                m_digests++;
+            }
+        }
+        Mail digest;
+        try {
+            digest = merge(mails);
+        } catch (FileNotFoundException e) {
+            // An attached file was deleted, sends the mails one by one.
+            for (Mail mail : mails) {
+                m_sink.send(mail, 1);
+            }
+            return;
+        }
+        m_sink.send(digest, mails.size());
+    }
+
+    /**
+     * Computes the coalescing key of a mail.
+     *
+     * @param mail the mail
+     * @return the key
+     */
+    String getKey(Mail mail) {
+        List<String> to = new ArrayList<String>(mail.to());
+        List<String> cc = new ArrayList<String>(mail.cc());
+        Collections.sort(to);
+        Collections.sort(cc);
+        StringBuilder key = new StringBuilder();
+        key.append(mail.from()).append('\n').append(to).append('\n').append(cc).append('\n')
+                .append(mail.subType()).append('\n').append(mail.charset());
+        if (m_bySubject) {
+            key.append('\n').append(mail.subject());
+        }
+        return key.toString();
+    }
+
+    /**
+     * Merges mails into a digest.
+     *
+     * @param mails the mails, having the same key
+     * @return the digest, the mail itself if there is only one
+     * @throws FileNotFoundException if an attached file does not exist anymore
+     */
+    static Mail merge(List<Mail> mails) throws FileNotFoundException {
+        Mail first = mails.get(0);
+        if (mails.size() == 1) {
+            return first;
+        }
+        Mail digest = new Mail()
+                .from(first.from())
+                .to(first.to())
+                .cc(first.cc())
+                .replyTo(first.replyTo())
+                .charset(first.charset())
+                .subType(first.subType())
+                .priority(first.priority())
+                .subject("[" + mails.size() + " messages] " + first.subject());
+        boolean html = "html".equalsIgnoreCase(first.subType());
+        StringBuilder body = new StringBuilder();
+        for (Mail mail : mails) {
+            if (body.length() > 0) {
+                body.append(html ? "<hr/>\n" : "\n----------------------------------------\n\n");
+            }
+            if (html) {
+                body.append("<h3>").append(escape(mail.subject())).append("</h3>\n");
+            } else {
+                body.append(mail.subject()).append("\n\n");
+            }
+            body.append(mail.body()).append('\n');
+            digest.attach(mail.attachments());
+            digest.attachSources(mail.attachmentSources());
+        }
+        return digest.body(body.toString());
+    }
+
+    /**
+     * Escapes a text included in a HTML digest.
+     *
+     * @param text the text
+     * @return the escaped text
+     */
+    private static String escape(String text) {
+        if (text == null) {
+            return "";
+        }
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.impl;
+
+import javax.activation.DataHandler;
+import javax.activation.FileTypeMap;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeUtility;
+import javax.mail.internet.PreencodedMimeBodyPart;
+import javax.mail.util.ByteArrayDataSource;
+import java.io.*;
+import java.math.BigInteger;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of base64-encoded file attachments, so a file sent to many
+ * recipients is read and encoded once. A file is identified by its path,
+ * size and modification date; its encoded form is stored once per content
+ * hash, so copies of a file share it. Encoded contents are evicted, least
+ * recently used first, when the cache exceeds its size in bytes.
+ */
+public class EncodedAttachmentCache {
+
+    /**
+     * Maximum number of files tracked.
+     */
+    private static final int MAX_FILES = 4096;
+
+    /**
+     * Maximum size (bytes) of the encoded contents.
+     */
+    private final long m_capacity;
+
+    /**
+     * Current size (bytes) of the encoded contents.
+     */
+    private long m_size;
+
+    /**
+     * Content hash of the files, by (path, size, modification date).
+     */
+    private final Map<String, String> m_files = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_FILES;
+        }
+    };
+
+    /**
+     * Encoded contents by content hash, least recently used first.
+     */
+    private final LinkedHashMap<String, byte[]> m_contents = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+
+    /**
+     * Number of attachments found in the cache.
+     */
+    private long m_hits;
+
+    /**
+     * Number of attachments encoded.
+     */
+    private long m_misses;
+
+    /**
+     * Creates a cache.
+     *
+     * @param capacity the maximum size (bytes) of the encoded contents
+     */
+    public EncodedAttachmentCache(long capacity) {
+        m_capacity = capacity;
+    }
+
+    /**
+     * Creates the body part attaching a file, from its cached encoded form.
+     * The file is encoded on the first use.
+     *
+     * @param file the file
+     * @return the body part
+     * @throws IOException        if the file cannot be read
+     * @throws MessagingException if the part cannot be created
+     */
+    public MimeBodyPart createPart(File file) throws IOException, MessagingException {
+        String key = file.getAbsolutePath() + '|' + file.length() + '|' + file.lastModified();
+        byte[] encoded = null;
+        synchronized (this) {
+            String hash = m_files.get(key);
+            if (hash != null) {
+                encoded = m_contents.get(hash);
+            }
+            if (encoded != null) {
+                m_hits++;
+            } else {
+                m_misses++;
+            }
+        }
+        if (encoded == null) {
+            encoded = encode(file, key);
+        }
+
+        return createPart(encoded, FileTypeMap.getDefaultFileTypeMap().getContentType(file), file.getName());
+    }
+
+    /**
+     * Creates a body part from an encoded content. The content is not copied,
+     * so several parts can share it.
+     *
+     * @param encoded the base64-encoded content
+     * @param type    the content type
+     * @param name    the file name
+     * @return the body part
+     * @throws MessagingException if the part cannot be created
+     */
+    public static MimeBodyPart createPart(byte[] encoded, String type, String name) throws MessagingException {
+        MimeBodyPart part = new PreencodedMimeBodyPart("base64");
+        part.setDataHandler(new DataHandler(new ByteArrayDataSource(encoded, type)));
+        // Otherwise the content is scanned to choose an encoding.
+        part.setHeader("Content-Transfer-Encoding", "base64");
+        part.setFileName(name);
+        return part;
+    }
+
+    /**
+     * Encodes a content in base64.
+     *
+     * @param in   the content, closed by this method
+     * @param size the expected size of the content, used to size the buffer
+     * @return the encoded content
+     * @throws IOException if the content cannot be read
+     */
+    public static byte[] encode(InputStream in, long size) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE - 8,
+                size * 4 / 3 + 1024));
+        try {
+            OutputStream out = MimeUtility.encode(bytes, "base64");
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            out.flush();
+        } catch (MessagingException e) {
+            throw new IOException("Cannot encode the attachment: " + e.getMessage());
+        } finally {
+            in.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Gets the number of attachments found in the cache.
+     *
+     * @return the number of hits
+     */
+    public synchronized long getHitCount() {
+        return m_hits;
+    }
+
+    /**
+     * Gets the number of attachments encoded.
+     *
+     * @return the number of misses
+     */
+    public synchronized long getMissCount() {
+        return m_misses;
+    }
+
+    /**
+     * Gets the size of the encoded contents.
+     *
+     * @return the size in bytes
+     */
+    public synchronized long getSize() {
+        return m_size;
+    }
+
+    /**
+     * Encodes a file and stores its encoded form.
+     *
+     * @param file the file
+     * @param key  the file key
+     * @return the encoded content
+     * @throws IOException if the file cannot be read
+     */
+    private byte[] encode(File file, String key) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+        byte[] encoded = encode(new DigestInputStream(new BufferedInputStream(new FileInputStream(file)), digest),
+                file.length());
+        String hash = new BigInteger(1, digest.digest()).toString(16);
+
+        synchronized (this) {
+            m_files.put(key, hash);
+            byte[] existing = m_contents.get(hash);
+            if (existing != null) {
+                return existing;
+            }
+            if (encoded.length <= m_capacity) {
+                m_contents.put(hash, encoded);
+                m_size += encoded.length;
+                Iterator<byte[]> eldest = m_contents.values().iterator();
+                while (m_size > m_capacity) {
+                    m_size -= eldest.next().length;
+                    eldest.remove();
+                }
+            }
+        }
+        return encoded;
+    }
+
+}
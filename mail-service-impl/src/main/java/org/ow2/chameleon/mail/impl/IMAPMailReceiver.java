@@ -16,7 +16,6 @@ package org.ow2.chameleon.mail.impl;
 
 import java.io.IOException;
 import java.util.Dictionary;
-import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Properties;
 
@@ -109,6 +108,14 @@ public class IMAPMailReceiver extends AbstractMailReceiver implements MailReceiv
 	@Property(name="imap.debug")
 	private boolean m_debug;
 
+	/**
+	 * The execution mode of the polling thread: <tt>platform</tt> or
+	 * <tt>virtual</tt>. A platform thread is used on JVMs without virtual
+	 * threads.
+	 */
+	@Property(name="imap.threads", value="platform")
+	private String m_threads;
+
 	/**
 	 * The Folder.
 	 */
@@ -233,7 +240,7 @@ public class IMAPMailReceiver extends AbstractMailReceiver implements MailReceiv
         		}
         	}
         };
-        new Thread(runnable).start();
+        Threads.create("imap-poll-" + m_username, runnable, Threads.isVirtual(m_threads)).start();
 	}
 
 	/**
@@ -242,7 +249,7 @@ public class IMAPMailReceiver extends AbstractMailReceiver implements MailReceiv
 	 */
 	private void fetch() throws MessagingException {
 		if (m_messages == null) {
-			m_messages = new HashMap<Message, Mail>();
+			clearMessages();
 		}
 
 		Message[] messages = getMessages();
@@ -250,7 +257,7 @@ public class IMAPMailReceiver extends AbstractMailReceiver implements MailReceiv
 			try {
 				if (! m_messages.containsKey(msg)) {
 					Mail mail = createMail(msg);
-					m_messages.put(msg, mail);
+					addMessage(msg, mail);
 					propagateToEventAdmin(mail);
 				}
 			} catch (Exception e) {
@@ -281,7 +288,7 @@ public class IMAPMailReceiver extends AbstractMailReceiver implements MailReceiv
 				for (Message msg : messages) {
 					try {
 						Mail mail = createMail(msg);
-						m_messages.put(msg, mail);
+						addMessage(msg, mail);
 						propagateToEventAdmin(mail);
 					} catch (MessagingException e1) {
 						m_logger.error("Cannot read new message", e1);
@@ -304,7 +311,7 @@ public class IMAPMailReceiver extends AbstractMailReceiver implements MailReceiv
 			Message[] messages = e.getMessages();
 			if (messages != null) {
 				for (Message msg : messages) {
-					m_messages.remove(msg);
+					removeMessage(msg);
 				}
 			}
 		}
@@ -330,9 +337,9 @@ public class IMAPMailReceiver extends AbstractMailReceiver implements MailReceiv
 	private void propagateToEventAdmin(Mail mail) {
 		if (m_eventAdmin != null) {
 			Dictionary props = new Hashtable();
-			props.put(MailReceiverService.TO_KEY, mail.to());
+			props.put(MailReceiverService.TO_KEY, ReadOnlyMail.eventTo(mail));
 			props.put(MailReceiverService.FROM_KEY, mail.from());
-			props.put(MailReceiverService.CC_KEY, mail.cc());
+			props.put(MailReceiverService.CC_KEY, ReadOnlyMail.eventCc(mail));
 
 			if (mail.subject() != null) {
 				props.put(MailReceiverService.SUBJECT_KEY, mail.subject());
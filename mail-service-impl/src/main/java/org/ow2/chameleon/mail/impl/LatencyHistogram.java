@@ -0,0 +1,172 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram with log-linear buckets, in the manner of HdrHistogram:
+ * each power of two is split in 32 buckets, so a value is known within 3%
+ * whatever its magnitude. Recording is lock-free and does not allocate.
+ * Values are recorded in microseconds.
+ */
+public class LatencyHistogram {
+
+    /**
+     * Number of bits of the value kept in the bucket index.
+     */
+    private static final int SUB_BUCKET_BITS = 5;
+
+    /**
+     * Number of buckets per power of two.
+     */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Number of buckets, covering all positive longs.
+     */
+    private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    /**
+     * The number of values per bucket.
+     */
+    private final AtomicLongArray m_buckets = new AtomicLongArray(BUCKETS);
+
+    /**
+     * The number of values.
+     */
+    private final AtomicLong m_count = new AtomicLong();
+
+    /**
+     * The sum of the values.
+     */
+    private final AtomicLong m_sum = new AtomicLong();
+
+    /**
+     * The maximum value.
+     */
+    private final AtomicLong m_max = new AtomicLong();
+
+    /**
+     * Records the duration elapsed since the given time.
+     *
+     * @param start the start time, given by {@link System#nanoTime()}
+     */
+    public void recordSince(long start) {
+        record((System.nanoTime() - start) / 1000);
+    }
+
+    /**
+     * Records a value.
+     *
+     * @param value the value (&micro;s), negative values are recorded as 0
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        m_buckets.incrementAndGet(index(value));
+        m_count.incrementAndGet();
+        m_sum.addAndGet(value);
+        long max = m_max.get();
+        while (value > max && !m_max.compareAndSet(max, value)) {
+            max = m_max.get();
+        }
+    }
+
+    /**
+     * Gets the number of values.
+     *
+     * @return the number of recorded values
+     */
+    public long getCount() {
+        return m_count.get();
+    }
+
+    /**
+     * Gets the mean value.
+     *
+     * @return the mean (&micro;s), 0 if empty
+     */
+    public double getMean() {
+        long count = m_count.get();
+        return count == 0 ? 0 : (double) m_sum.get() / count;
+    }
+
+    /**
+     * Gets the maximum value.
+     *
+     * @return the maximum (&micro;s), 0 if empty
+     */
+    public long getMax() {
+        return m_max.get();
+    }
+
+    /**
+     * Gets the value below which the given percentage of values are.
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the highest value of the bucket holding the percentile (&micro;s), 0 if empty
+     */
+    public long getPercentile(double percentile) {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += m_buckets.get(i);
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += m_buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(highest(i), m_max.get());
+            }
+        }
+        return m_max.get();
+    }
+
+    /**
+     * Computes the bucket of a value.
+     *
+     * @param value the value, positive
+     * @return the index of its bucket
+     */
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    /**
+     * Computes the highest value of a bucket.
+     *
+     * @param index the index of the bucket
+     * @return the highest value falling in the bucket
+     */
+    static long highest(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        long lowest = (long) (SUB_BUCKETS + (index - SUB_BUCKETS) % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.impl;
+
+import org.ow2.chameleon.mail.Mail;
+
+import java.util.concurrent.*;
+
+/**
+ * Completion handle of an asynchronous send. Unlike a {@link FutureTask},
+ * the outcome is set explicitly, so a send can span several attempts.
+ */
+public class MailFuture implements Future<Mail> {
+
+    /**
+     * Released when the outcome is known.
+     */
+    private final CountDownLatch m_done = new CountDownLatch(1);
+
+    /**
+     * The sent mail.
+     */
+    private Mail m_mail;
+
+    /**
+     * The failure.
+     */
+    private Exception m_failure;
+
+    /**
+     * Was the send cancelled?
+     */
+    private boolean m_cancelled;
+
+    /**
+     * Completes the send successfully.
+     *
+     * @param mail the sent mail
+     */
+    public void set(Mail mail) {
+        synchronized (this) {
+            if (isDone()) {
+                return;
+            }
+            m_mail = mail;
+        }
+        m_done.countDown();
+        done();
+    }
+
+    /**
+     * Completes the send with a failure.
+     *
+     * @param failure the cause
+     */
+    public void fail(Exception failure) {
+        synchronized (this) {
+            if (isDone()) {
+                return;
+            }
+            m_failure = failure;
+        }
+        m_done.countDown();
+        done();
+    }
+
+    /**
+     * Cancels the send if it is not completed. The mail is not sent anymore
+     * unless it is currently being transmitted.
+     *
+     * @param mayInterruptIfRunning ignored
+     * @return <code>true</code> if the send was cancelled
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            m_cancelled = true;
+        }
+        m_done.countDown();
+        done();
+        return true;
+    }
+
+    /**
+     * Called once, when the outcome becomes known. Does nothing by default.
+     */
+    protected void done() {
+        // Nothing by default.
+    }
+
+    /**
+     * @return <code>true</code> if the send was cancelled
+     * @see java.util.concurrent.Future#isCancelled()
+     */
+    public synchronized boolean isCancelled() {
+        return m_cancelled;
+    }
+
+    /**
+     * @return <code>true</code> if the outcome is known
+     * @see java.util.concurrent.Future#isDone()
+     */
+    public boolean isDone() {
+        return m_done.getCount() == 0;
+    }
+
+    /**
+     * Waits for the outcome.
+     *
+     * @return the sent mail
+     * @throws InterruptedException if the thread is interrupted
+     * @throws ExecutionException   if the mail was not sent
+     * @see java.util.concurrent.Future#get()
+     */
+    public Mail get() throws InterruptedException, ExecutionException {
+        m_done.await();
+        return getOutcome();
+    }
+
+    /**
+     * Waits for the outcome.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit    the time unit
+     * @return the sent mail
+     * @throws InterruptedException if the thread is interrupted
+     * @throws ExecutionException   if the mail was not sent
+     * @throws TimeoutException     if the outcome is not known before the timeout
+     * @see java.util.concurrent.Future#get(long, java.util.concurrent.TimeUnit)
+     */
+    public Mail get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+            TimeoutException {
+        if (!m_done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return getOutcome();
+    }
+
+    /**
+     * Gets the outcome once known.
+     *
+     * @return the sent mail
+     * @throws ExecutionException if the mail was not sent
+     */
+    private synchronized Mail getOutcome() throws ExecutionException {
+        if (m_cancelled) {
+            throw new CancellationException();
+        }
+        if (m_failure != null) {
+            throw new ExecutionException(m_failure);
+        }
+        return m_mail;
+    }
+
+}
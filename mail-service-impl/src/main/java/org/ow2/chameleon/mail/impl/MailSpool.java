@@ -0,0 +1,756 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.impl;
+
+import org.ow2.chameleon.mail.AttachmentSource;
+import org.ow2.chameleon.mail.Attachments;
+import org.ow2.chameleon.mail.Mail;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Durable outbound queue of mails.
+ * Mails are appended to segment files (write-ahead log) before being
+ * acknowledged to the caller, and removed from the queue once an
+ * acknowledgement record is appended. Concurrent appends share the same
+ * <tt>fsync</tt> (group commit). Segments are deleted oldest first, once
+ * their mails are all acknowledged: a segment may hold the acknowledgements
+ * of mails added to older segments, so it is kept as long as they are.
+ * Sparse segments at the head of the log are compacted into the active one.
+ * On start, the segments are replayed and the pending mails are queued again.
+ * <p/>
+ * Attachments are stored as file paths, so the files must still exist
+ * when the mail is sent.
+ */
+public class MailSpool {
+
+    /**
+     * A spooled mail.
+     */
+    public static final class Entry {
+
+        /**
+         * The sequence number.
+         */
+        private final long m_seq;
+
+        /**
+         * The mail.
+         */
+        private final Mail m_mail;
+
+        /**
+         * Number of attempts to send the mail since the spool was opened.
+         */
+        private int m_attempts;
+
+        /**
+         * Creates an entry.
+         *
+         * @param seq  the sequence number
+         * @param mail the mail
+         */
+        Entry(long seq, Mail mail) {
+            m_seq = seq;
+            m_mail = mail;
+        }
+
+        /**
+         * Gets the spooled mail.
+         *
+         * @return the mail
+         */
+        public Mail mail() {
+            return m_mail;
+        }
+
+        /**
+         * Counts a new attempt to send the mail.
+         *
+         * @return the attempt number, starting at 1
+         */
+        public synchronized int nextAttempt() {
+            return ++m_attempts;
+        }
+    }
+
+    /**
+     * A segment file.
+     */
+    private static final class Segment {
+
+        /**
+         * The file.
+         */
+        private final File m_file;
+
+        /**
+         * Number of mails not acknowledged yet.
+         */
+        private int m_live;
+
+        /**
+         * Number of mails appended to the segment.
+         */
+        private int m_total;
+
+        /**
+         * Creates a segment.
+         *
+         * @param file the file
+         */
+        Segment(File file) {
+            m_file = file;
+        }
+    }
+
+    /**
+     * Record type: a mail is added.
+     */
+    private static final byte ADD = 1;
+
+    /**
+     * Record type: a mail is acknowledged.
+     */
+    private static final byte ACK = 2;
+
+    /**
+     * Segment file name prefix.
+     */
+    private static final String PREFIX = "segment-";
+
+    /**
+     * Segment file name suffix.
+     */
+    private static final String SUFFIX = ".log";
+
+    /**
+     * The logger.
+     */
+    private final Logger m_logger = LoggerFactory.getLogger(MailSpool.class.getName());
+
+    /**
+     * The spool directory.
+     */
+    private final File m_dir;
+
+    /**
+     * Size (bytes) after which a new segment is started.
+     */
+    private final long m_segmentSize;
+
+    /**
+     * Pending mails by sequence number.
+     */
+    private final Map<Long, Entry> m_pending = new HashMap<Long, Entry>();
+
+    /**
+     * Segment holding the last ADD record of each pending mail.
+     */
+    private final Map<Long, Segment> m_locations = new HashMap<Long, Segment>();
+
+    /**
+     * The segments, sorted by creation order.
+     */
+    private final List<Segment> m_segments = new ArrayList<Segment>();
+
+    /**
+     * Mails waiting to be sent.
+     */
+    private final LinkedList<Entry> m_queue = new LinkedList<Entry>();
+
+    /**
+     * Lock used to batch the <tt>fsync</tt> calls.
+     */
+    private final Object m_syncLock = new Object();
+
+    /**
+     * The active segment.
+     */
+    private Segment m_active;
+
+    /**
+     * The channel of the active segment.
+     */
+    private FileChannel m_channel;
+
+    /**
+     * The next sequence number.
+     */
+    private long m_nextSeq;
+
+    /**
+     * Number of records appended.
+     */
+    private long m_appended;
+
+    /**
+     * Number of records known to be on disk.
+     */
+    private long m_synced;
+
+    /**
+     * Index of the next segment file.
+     */
+    private long m_nextSegment;
+
+    /**
+     * Is the spool closed?
+     */
+    private boolean m_closed;
+
+    /**
+     * Opens the spool, replaying the existing segments.
+     *
+     * @param dir         the spool directory
+     * @param segmentSize the size (bytes) after which a new segment is started
+     * @throws IOException if the spool cannot be opened
+     */
+    public MailSpool(File dir, long segmentSize) throws IOException {
+        m_dir = dir;
+        m_segmentSize = segmentSize;
+        if (!m_dir.isDirectory() && !m_dir.mkdirs()) {
+            throw new IOException("Cannot create the spool directory " + m_dir.getAbsolutePath());
+        }
+        replay();
+    }
+
+    /**
+     * Appends a mail to the spool. When this method returns, the mail is on disk.
+     *
+     * @param mail the mail
+     * @throws IOException if the mail cannot be written
+     */
+    public void add(Mail mail) throws IOException {
+        // Reads the attachments without holding the lock. The spool sends the
+        // written copy, as after a restart, not the caller's mutable mail.
+        byte[] payload = encode(mail);
+        Mail copy = decode(payload, 0);
+        long position;
+        synchronized (this) {
+            if (m_closed) {
+                throw new IOException("The spool is closed");
+            }
+            Entry entry = new Entry(m_nextSeq++, copy);
+            position = append(ADD, entry.m_seq, payload);
+            m_pending.put(entry.m_seq, entry);
+            m_locations.put(entry.m_seq, m_active);
+            m_active.m_live++;
+            m_active.m_total++;
+            m_queue.addLast(entry);
+            notifyAll();
+        }
+        sync(position);
+    }
+
+    /**
+     * Takes the next mail to send, waiting if the spool is empty.
+     * The mail must then be acknowledged or given back.
+     *
+     * @return the entry, <code>null</code> if the spool is closed
+     * @throws InterruptedException if the thread is interrupted
+     */
+    public synchronized Entry take() throws InterruptedException {
+        while (m_queue.isEmpty() && !m_closed) {
+            wait();
+        }
+        if (m_closed) {
+            return null;
+        }
+        return m_queue.removeFirst();
+    }
+
+    /**
+     * Gives back a mail that could not be sent yet.
+     * The mail is the next one returned by {@link #take()}.
+     *
+     * @param entry the entry
+     */
+    public synchronized void requeue(Entry entry) {
+        m_queue.addFirst(entry);
+        notifyAll();
+    }
+
+    /**
+     * Acknowledges a mail, removing it from the spool.
+     *
+     * @param entry the entry
+     * @throws IOException if the acknowledgement cannot be written
+     */
+    public void ack(Entry entry) throws IOException {
+        long position;
+        synchronized (this) {
+            if (m_pending.remove(entry.m_seq) == null || m_closed) {
+                return;
+            }
+            position = append(ACK, entry.m_seq, new byte[0]);
+            m_locations.remove(entry.m_seq).m_live--;
+            deleteAcknowledged();
+        }
+        sync(position);
+    }
+
+    /**
+     * Gets the number of pending mails.
+     *
+     * @return the number of mails not acknowledged yet
+     */
+    public synchronized int size() {
+        return m_pending.size();
+    }
+
+    /**
+     * Closes the spool. Pending mails are kept on disk.
+     */
+    public void close() {
+        synchronized (this) {
+            m_closed = true;
+            notifyAll();
+        }
+        synchronized (m_syncLock) {
+            try {
+                m_channel.force(false);
+                m_channel.close();
+            } catch (IOException e) {
+                m_logger.error("Cannot close the spool segment " + m_active.m_file.getAbsolutePath(), e);
+            }
+        }
+    }
+
+    /**
+     * Forces the records up to the given position on disk. The first
+     * thread entering this method forces all the records appended so far,
+     * so threads waiting on the lock generally return immediately.
+     *
+     * @param position the position of the record
+     * @throws IOException if the records cannot be written
+     */
+    private void sync(long position) throws IOException {
+        synchronized (m_syncLock) {
+            if (m_synced >= position) {
+                return;
+            }
+            long target;
+            FileChannel channel;
+            synchronized (this) {
+                target = m_appended;
+                channel = m_channel;
+            }
+            try {
+                channel.force(false);
+            } catch (ClosedChannelException e) {
+                // The segment was rolled, and so forced, in the meantime.
+            }
+            m_synced = target;
+        }
+    }
+
+    /**
+     * Appends a record to the active segment. Must be called with the lock held.
+     *
+     * @param type    the record type
+     * @param seq     the sequence number
+     * @param payload the payload
+     * @return the position of the record
+     * @throws IOException if the record cannot be written
+     */
+    private long append(byte type, long seq, byte[] payload) throws IOException {
+        if (m_channel.size() >= m_segmentSize) {
+            roll();
+        }
+        return write(type, seq, payload);
+    }
+
+    /**
+     * Writes a record at the end of the active segment. Must be called with the lock held.
+     *
+     * @param type    the record type
+     * @param seq     the sequence number
+     * @param payload the payload
+     * @return the position of the record
+     * @throws IOException if the record cannot be written
+     */
+    private long write(byte type, long seq, byte[] payload) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 1 + 8 + payload.length + 8);
+        buffer.putInt(1 + 8 + payload.length);
+        buffer.put(type);
+        buffer.putLong(seq);
+        buffer.put(payload);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 4, 1 + 8 + payload.length);
+        buffer.putLong(crc.getValue());
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            m_channel.write(buffer);
+        }
+        return ++m_appended;
+    }
+
+    /**
+     * Starts a new active segment and compacts the sealed segments.
+     * Must be called with the lock held.
+     *
+     * @throws IOException if the new segment cannot be created
+     */
+    private void roll() throws IOException {
+        if (m_channel != null) {
+            m_channel.force(false);
+            m_channel.close();
+        }
+        m_active = new Segment(new File(m_dir, PREFIX + (m_nextSegment++) + SUFFIX));
+        m_channel = new RandomAccessFile(m_active.m_file, "rw").getChannel();
+        m_channel.position(m_channel.size());
+        m_segments.add(m_active);
+
+        // Moves the pending mails of the sparse segments at the head to the active one.
+        for (Segment segment : new ArrayList<Segment>(m_segments)) {
+            if (segment == m_active || segment.m_live * 2 > segment.m_total) {
+                break;
+            }
+            for (Entry entry : m_pending.values()) {
+                if (m_locations.get(entry.m_seq) == segment) {
+                    writeAgain(entry);
+                }
+            }
+            segment.m_live = 0;
+        }
+        m_channel.force(false);
+        deleteAcknowledged();
+    }
+
+    /**
+     * Deletes the oldest sealed segments, as long as all their mails are
+     * acknowledged. A segment is never deleted before an older one, as it
+     * may hold the acknowledgements of the mails of the older segments.
+     * Must be called with the lock held.
+     */
+    private void deleteAcknowledged() {
+        while (!m_segments.isEmpty() && m_segments.get(0) != m_active && m_segments.get(0).m_live == 0) {
+            delete(m_segments.get(0));
+        }
+    }
+
+    /**
+     * Writes the ADD record of a pending mail to the active segment.
+     *
+     * @param entry the pending mail
+     * @throws IOException if the record cannot be written
+     */
+    private void writeAgain(Entry entry) throws IOException {
+        write(ADD, entry.m_seq, encode(entry.m_mail));
+        m_locations.put(entry.m_seq, m_active);
+        m_active.m_live++;
+        m_active.m_total++;
+    }
+
+    /**
+     * Deletes a segment.
+     *
+     * @param segment the segment
+     */
+    private void delete(Segment segment) {
+        m_segments.remove(segment);
+        if (!segment.m_file.delete()) {
+            m_logger.warn("Cannot delete the spool segment " + segment.m_file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Replays the existing segments, then rewrites the pending mails into
+     * a new segment and deletes the old ones.
+     *
+     * @throws IOException if the segments cannot be read
+     */
+    private void replay() throws IOException {
+        File[] files = m_dir.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+            }
+        });
+        SortedMap<Long, File> sorted = new TreeMap<Long, File>();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                try {
+                    sorted.put(Long.valueOf(name.substring(PREFIX.length(), name.length() - SUFFIX.length())), file);
+                } catch (NumberFormatException e) {
+                    m_logger.warn("Ignoring unexpected spool file " + file.getAbsolutePath());
+                }
+            }
+        }
+
+        SortedMap<Long, Mail> pending = new TreeMap<Long, Mail>();
+        for (File file : sorted.values()) {
+            readSegment(file, pending);
+        }
+        if (!sorted.isEmpty()) {
+            m_nextSegment = sorted.lastKey() + 1;
+        }
+        if (!pending.isEmpty()) {
+            m_nextSeq = pending.lastKey() + 1;
+        }
+
+        synchronized (this) {
+            roll();
+            for (Map.Entry<Long, Mail> mail : pending.entrySet()) {
+                Entry entry = new Entry(mail.getKey(), mail.getValue());
+                m_pending.put(entry.m_seq, entry);
+                m_queue.addLast(entry);
+                writeAgain(entry);
+            }
+            m_channel.force(false);
+        }
+        for (File file : sorted.values()) {
+            if (!file.delete()) {
+                m_logger.warn("Cannot delete the spool segment " + file.getAbsolutePath());
+            }
+        }
+        if (!pending.isEmpty()) {
+            m_logger.info(pending.size() + " spooled mail(s) recovered from " + m_dir.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Reads the records of a segment. Reading stops at the first incomplete
+     * or corrupted record (interrupted write).
+     *
+     * @param file    the segment
+     * @param pending the pending mails, updated with the records
+     * @throws IOException if the segment cannot be read
+     */
+    private void readSegment(File file, SortedMap<Long, Mail> pending) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                if (length < 9 || length > file.length()) {
+                    m_logger.warn("Corrupted record in spool segment " + file.getAbsolutePath());
+                    return;
+                }
+                byte[] body = new byte[length];
+                long checksum;
+                try {
+                    in.readFully(body);
+                    checksum = in.readLong();
+                } catch (EOFException e) {
+                    m_logger.warn("Incomplete record in spool segment " + file.getAbsolutePath());
+                    return;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(body);
+                if (crc.getValue() != checksum) {
+                    m_logger.warn("Corrupted record in spool segment " + file.getAbsolutePath());
+                    return;
+                }
+
+                ByteBuffer buffer = ByteBuffer.wrap(body);
+                byte type = buffer.get();
+                long seq = buffer.getLong();
+                if (type == ADD) {
+                    try {
+                        pending.put(seq, decode(body, 9));
+                    } catch (IOException e) {
+                        m_logger.error("Cannot restore a spooled mail, dropping it", e);
+                    }
+                } else {
+                    pending.remove(seq);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Serializes a mail.
+     *
+     * @param mail the mail
+     * @return the serialized form
+     * @throws IOException if the mail cannot be serialized
+     */
+    static byte[] encode(Mail mail) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeList(out, mail.to());
+        writeList(out, mail.cc());
+        writeList(out, mail.replyTo());
+        writeString(out, mail.from());
+        writeString(out, mail.subject());
+        writeString(out, mail.body());
+        writeString(out, mail.charset());
+        writeString(out, mail.subType());
+        writeString(out, mail.id());
+        List<File> attachments = mail.attachments();
+        out.writeInt(attachments.size());
+        for (File file : attachments) {
+            writeString(out, file.getAbsolutePath());
+        }
+        // Other contents are not on disk, the spool keeps a copy.
+        List<AttachmentSource> sources = mail.attachmentSources();
+        out.writeInt(sources.size());
+        for (AttachmentSource source : sources) {
+            writeString(out, source.getName());
+            writeString(out, source.getContentType());
+            writeContent(out, source);
+        }
+        writeString(out, mail.priority().name());
+        writeString(out, mail.idempotencyKey());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Deserializes a mail.
+     *
+     * @param data   the data
+     * @param offset the offset of the serialized mail
+     * @return the mail
+     * @throws IOException if the mail cannot be deserialized
+     */
+    static Mail decode(byte[] data, int offset) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset, data.length - offset));
+        Mail mail = new Mail()
+                .to(readList(in))
+                .cc(readList(in))
+                .replyTo(readList(in))
+                .from(readString(in))
+                .subject(readString(in))
+                .body(readString(in))
+                .charset(readString(in))
+                .subType(readString(in))
+                .id(readString(in));
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            mail.attach(new File(readString(in)));
+        }
+        if (in.available() > 0) {
+            count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = readString(in);
+                String type = readString(in);
+                byte[] content = new byte[in.readInt()];
+                in.readFully(content);
+                mail.attach(Attachments.of(name, type, content));
+            }
+        }
+        if (in.available() > 0) {
+            mail.priority(Mail.Priority.valueOf(readString(in)));
+        }
+        if (in.available() > 0) {
+            mail.idempotencyKey(readString(in));
+        }
+        return mail;
+    }
+
+    /**
+     * Writes the content of an attachment, prefixed by its length.
+     *
+     * @param out    the stream
+     * @param source the attachment
+     * @throws IOException if the content cannot be read or written
+     */
+    private static void writeContent(DataOutputStream out, AttachmentSource source) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        InputStream in = source.getInputStream();
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                content.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        out.writeInt(content.size());
+        content.writeTo(out);
+    }
+
+    /**
+     * Writes a nullable string.
+     *
+     * @param out   the stream
+     * @param value the string
+     * @throws IOException if the string cannot be written
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Reads a nullable string.
+     *
+     * @param in the stream
+     * @return the string
+     * @throws IOException if the string cannot be read
+     */
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Writes a list of strings.
+     *
+     * @param out  the stream
+     * @param list the list
+     * @throws IOException if the list cannot be written
+     */
+    private static void writeList(DataOutputStream out, List<String> list) throws IOException {
+        out.writeInt(list.size());
+        for (String value : list) {
+            writeString(out, value);
+        }
+    }
+
+    /**
+     * Reads a list of strings.
+     *
+     * @param in the stream
+     * @return the list
+     * @throws IOException if the list cannot be read
+     */
+    private static List<String> readList(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        List<String> list = new ArrayList<String>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(readString(in));
+        }
+        return list;
+    }
+
+}
@@ -0,0 +1,1496 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.impl;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPSenderFailedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.mail.Address;
+import javax.mail.Header;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.internet.MimePart;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SMTP client multiplexing many sessions over a single selector thread,
+ * instead of one blocking socket (and one thread) per connection. The
+ * <tt>MAIL</tt> and <tt>RCPT</tt> commands are pipelined when the server
+ * supports <tt>PIPELINING</tt>. Connections to a host are kept open and
+ * reused, up to a maximum number per host; mails wait for a connection
+ * when the maximum is reached.
+ * <p/>
+ * The engine speaks plain SMTP without authentication. Failures are
+ * reported with the exceptions used by javamail, so they are classified
+ * the same way (see {@link RetryPolicy}).
+ */
+public class NioSmtpEngine {
+
+    /**
+     * Receives the outcome of a mail.
+     */
+    public interface Callback {
+
+        /**
+         * Called from the engine thread once the mail is sent or failed.
+         * Implementations must not block.
+         *
+         * @param failure the failure, <code>null</code> if the mail was sent
+         */
+        void completed(Exception failure);
+
+    }
+
+    /**
+     * Replies are decoded in ASCII.
+     */
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * Commands are encoded in UTF-8, internationalized addresses are only
+     * sent to relays supporting SMTPUTF8.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The logger.
+     */
+    private final Logger m_logger = LoggerFactory.getLogger(NioSmtpEngine.class.getName());
+
+    /**
+     * The selector.
+     */
+    private final Selector m_selector;
+
+    /**
+     * The engine thread.
+     */
+    private final Thread m_thread;
+
+    /**
+     * Tasks to run on the engine thread.
+     */
+    private final Queue<Runnable> m_tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    /**
+     * The relays, by <tt>host:port</tt>. Only used by the engine thread.
+     */
+    private final Map<String, Relay> m_relays = new HashMap<String, Relay>();
+
+    /**
+     * The extensions announced by the relays in their last EHLO reply,
+     * by <tt>host:port</tt>.
+     */
+    private final Map<String, Set<String>> m_extensions = new ConcurrentHashMap<String, Set<String>>();
+
+    /**
+     * Maximum number of connections per relay.
+     */
+    private final int m_maxSessions;
+
+    /**
+     * Maximum time (ms) to wait for a reply or a connection.
+     */
+    private final long m_timeout;
+
+    /**
+     * Time (ms) after which an idle connection is closed.
+     */
+    private final long m_maxIdle;
+
+    /**
+     * The name sent in <tt>EHLO</tt>.
+     */
+    private final String m_localHost;
+
+    /**
+     * Is the engine stopped? Written with the lock of {@link #m_tasks} held,
+     * so no task is queued once the engine thread drained the queue.
+     */
+    private volatile boolean m_closed;
+
+    /**
+     * Number of queued mails not completed yet, guarded by the lock of
+     * {@link #m_tasks}.
+     */
+    private int m_pending;
+
+    /**
+     * Creates and starts an engine.
+     *
+     * @param maxSessions the maximum number of connections per relay
+     * @param timeout     the maximum time (ms) to wait for a reply
+     * @param maxIdle     the time (ms) after which an idle connection is closed
+     * @throws IOException if the selector cannot be opened
+     */
+    public NioSmtpEngine(int maxSessions, long timeout, long maxIdle) throws IOException {
+        m_maxSessions = Math.max(1, maxSessions);
+        m_timeout = timeout;
+        m_maxIdle = maxIdle;
+        String local;
+        try {
+            local = InetAddress.getLocalHost().getCanonicalHostName();
+        } catch (UnknownHostException e) {
+            local = "localhost";
+        }
+        m_localHost = local;
+        m_selector = Selector.open();
+        m_thread = new Thread(new Runnable() {
+            public void run() {
+                loop();
+            }
+        }, "smtp-nio");
+        m_thread.setDaemon(true);
+        m_thread.start();
+    }
+
+    /**
+     * Sends a message asynchronously. The relay host is resolved by the
+     * calling thread, never by the engine thread.
+     *
+     * @param host       the relay host
+     * @param port       the relay port
+     * @param from       the envelope sender
+     * @param recipients the envelope recipients
+     * @param data       the message, encoded by {@link #encode(MimeMessage)}
+     * @param callback   receives the outcome
+     */
+    public void send(String host, int port, InternetAddress from, Address[] recipients, byte[] data,
+            Callback callback) {
+        submit(host, port, from, recipients, data, callback);
+    }
+
+    /**
+     * Queues a message for the engine thread.
+     *
+     * @param host       the relay host
+     * @param port       the relay port
+     * @param from       the envelope sender
+     * @param recipients the envelope recipients
+     * @param data       the encoded message
+     * @param callback   receives the outcome
+     * @return the queued mail, <code>null</code> if it already failed
+     */
+    private Job submit(String host, int port, InternetAddress from, Address[] recipients, byte[] data,
+            Callback callback) {
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        if (address.isUnresolved()) {
+            callback.completed(new MessagingException("Unknown SMTP host: " + host));
+            return null;
+        }
+        final Job job = new Job(address, host, port, from, recipients, data, callback);
+        synchronized (m_tasks) {
+            if (! m_closed) {
+                m_pending++;
+                m_tasks.add(new Runnable() {
+                    public void run() {
+                        dispatch(job);
+                    }
+                });
+                m_selector.wakeup();
+                return job;
+            }
+        }
+        callback.completed(new MessagingException("The SMTP engine is stopped"));
+        return null;
+    }
+
+    /**
+     * Sends a message and waits for the outcome. The wait ends with a
+     * failure if the mail made no progress (connection, reply) for the
+     * configured timeout.
+     *
+     * @param host       the relay host
+     * @param port       the relay port
+     * @param from       the envelope sender
+     * @param recipients the envelope recipients
+     * @param message    the message
+     * @throws MessagingException if the message cannot be sent
+     */
+    public void send(String host, int port, InternetAddress from, Address[] recipients, MimeMessage message)
+            throws MessagingException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final Exception[] outcome = new Exception[1];
+        Job job = submit(host, port, from, recipients, encode(message), new Callback() {
+            public void completed(Exception failure) {
+                outcome[0] = failure;
+                done.countDown();
+            }
+        });
+        try {
+            long remaining = m_timeout;
+            while (job != null && ! done.await(remaining, TimeUnit.MILLISECONDS)) {
+                remaining = job.m_progress + m_timeout - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new MessagingException("Timeout while sending to " + host);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while sending", e);
+        }
+        if (outcome[0] instanceof MessagingException) {
+            throw (MessagingException) outcome[0];
+        } else if (outcome[0] != null) {
+            throw new MessagingException("Cannot send the message", outcome[0]);
+        }
+    }
+
+    /**
+     * Checks whether a relay announced an extension. The relay must have
+     * been contacted before.
+     *
+     * @param host      the relay host
+     * @param port      the relay port
+     * @param extension the extension keyword (<tt>8BITMIME</tt>...)
+     * @return <code>true</code> if the relay announced the extension, <code>false</code>
+     *         if it did not or was not contacted yet
+     */
+    public boolean supports(String host, int port, String extension) {
+        Set<String> extensions = m_extensions.get(host + ':' + port);
+        return extensions != null && extensions.contains(extension);
+    }
+
+    /**
+     * Gets the number of open connections.
+     *
+     * @return the number of connections, waiting for an update of the engine thread
+     */
+    public int getSessionCount() {
+        int count = 0;
+        for (SelectionKey key : m_selector.keys()) {
+            if (key.isValid()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Waits until the queued mails are completed.
+     *
+     * @param timeout the maximum time (ms) to wait
+     * @return <code>true</code> if all the mails are completed
+     */
+    public boolean awaitCompletion(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (m_tasks) {
+            long remaining = timeout;
+            while (m_pending > 0 && remaining > 0) {
+                try {
+                    m_tasks.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+            return m_pending == 0;
+        }
+    }
+
+    /**
+     * Stops the engine: connections are closed, waiting mails fail.
+     */
+    public void close() {
+        synchronized (m_tasks) {
+            m_closed = true;
+        }
+        m_selector.wakeup();
+        try {
+            m_thread.join(m_timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Serializes a message: line ends are converted to CRLF. The headers
+     * are written in UTF-8 (javamail writes them in ISO-8859-1), so
+     * internationalized addresses are sent as required by SMTPUTF8.
+     *
+     * @param message the message
+     * @return the data
+     * @throws MessagingException if the message cannot be serialized
+     */
+    public static byte[] encode(MimeMessage message) throws MessagingException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        CRLFOutputStream out = new CRLFOutputStream(bytes);
+        try {
+            boolean ascii = true;
+            for (Enumeration<?> lines = message.getAllHeaderLines(); ascii && lines.hasMoreElements();) {
+                ascii = isAscii((String) lines.nextElement());
+            }
+            if (ascii) {
+                message.writeTo(out);
+            } else {
+                message.saveChanges();
+                Set<String> names = new LinkedHashSet<String>();
+                for (Enumeration<?> headers = message.getAllHeaders(); headers.hasMoreElements();) {
+                    names.add(((Header) headers.nextElement()).getName());
+                }
+                for (Enumeration<?> lines = message.getAllHeaderLines(); lines.hasMoreElements();) {
+                    out.write(((String) lines.nextElement()).getBytes(UTF8));
+                    out.write('\n');
+                }
+                // Writes the blank line and the content.
+                message.writeTo(out, names.toArray(new String[names.size()]));
+            }
+            out.terminate();
+        } catch (IOException e) {
+            throw new MessagingException("Cannot serialize the message", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Gets the mailbox of an address, as sent in the envelope.
+     *
+     * @param address the address
+     * @return the mailbox
+     */
+    private static String mailbox(Address address) {
+        return address instanceof InternetAddress ? ((InternetAddress) address).getAddress() : address.toString();
+    }
+
+    /**
+     * Checks whether a string only contains ASCII characters.
+     *
+     * @param value the string
+     * @return <code>true</code> if all the characters are ASCII
+     */
+    public static boolean isAscii(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) > 0x7F) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sends the quoted-printable and base64 text parts of a message as
+     * 8-bit data, like javamail does for relays supporting 8BITMIME. Parts
+     * with lines longer than 998 bytes or NUL bytes are kept encoded.
+     *
+     * @param part the message or a part
+     * @return <code>true</code> if a part was converted
+     * @throws MessagingException if the part cannot be read
+     */
+    public static boolean convertTo8Bit(MimePart part) throws MessagingException {
+        try {
+            if (part.isMimeType("text/*")) {
+                String encoding = part.getEncoding();
+                if (("quoted-printable".equalsIgnoreCase(encoding) || "base64".equalsIgnoreCase(encoding))
+                        && is8Bit(part.getInputStream())) {
+                    part.setHeader("Content-Transfer-Encoding", "8bit");
+                    return true;
+                }
+            } else if (part.isMimeType("multipart/*")) {
+                MimeMultipart multipart = (MimeMultipart) part.getContent();
+                boolean converted = false;
+                for (int index = 0; index < multipart.getCount(); index++) {
+                    converted |= convertTo8Bit((MimePart) multipart.getBodyPart(index));
+                }
+                return converted;
+            }
+        } catch (IOException e) {
+            throw new MessagingException("Cannot read the part", e);
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether content can be sent as 8-bit data: it contains non
+     * ASCII bytes, no NUL byte and no line longer than 998 bytes.
+     *
+     * @param in the decoded content, closed by this method
+     * @return <code>true</code> if the content is valid 8-bit data
+     * @throws IOException if the content cannot be read
+     */
+    private static boolean is8Bit(InputStream in) throws IOException {
+        try {
+            boolean eightBit = false;
+            int length = 0;
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                for (int i = 0; i < read; i++) {
+                    int b = buffer[i] & 0xFF;
+                    if (b == '\r' || b == '\n') {
+                        length = 0;
+                    } else if (b == 0 || ++length > 998) {
+                        return false;
+                    } else if (b > 0x7F) {
+                        eightBit = true;
+                    }
+                }
+            }
+            return eightBit;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Escapes the lines starting with a dot and appends the terminating
+     * dot line, for the <tt>DATA</tt> command.
+     *
+     * @param data the data, ending with CRLF
+     * @return the escaped data
+     */
+    private static ByteBuffer stuff(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length + data.length / 64 + 3);
+        int start = 0;
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] == '.' && (i == 0 || data[i - 1] == '\n')) {
+                out.write(data, start, i - start);
+                out.write('.');
+                start = i;
+            }
+        }
+        out.write(data, start, data.length - start);
+        out.write('.');
+        out.write('\r');
+        out.write('\n');
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    /**
+     * Engine loop.
+     */
+    private void loop() {
+        long lastCheck = System.currentTimeMillis();
+        try {
+            while (!m_closed) {
+                m_selector.select(1000);
+                Runnable task;
+                while ((task = m_tasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> keys = m_selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Session session = (Session) key.attachment();
+                    try {
+                        if (key.isConnectable()) {
+                            session.finishConnect();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            session.flush();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            session.read();
+                        }
+                    } catch (IOException e) {
+                        session.broken(new MessagingException("Connection to " + session.m_relay.m_host
+                                + " failed", e));
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastCheck >= 1000) {
+                    lastCheck = now;
+                    checkTimeouts(now);
+                }
+            }
+        } catch (IOException e) {
+            m_logger.error("SMTP engine failure", e);
+        } catch (ClosedSelectorException e) {
+            // Stopped.
+        } finally {
+            shutdown();
+        }
+    }
+
+    /**
+     * Fails the stalled sessions and the mails waiting too long for a
+     * connection, and closes the idle sessions.
+     *
+     * @param now the current time
+     */
+    private void checkTimeouts(long now) {
+        for (Relay relay : m_relays.values()) {
+            for (Iterator<Job> jobs = relay.m_waiting.iterator(); jobs.hasNext();) {
+                Job job = jobs.next();
+                if (now - job.m_progress > m_timeout) {
+                    jobs.remove();
+                    complete(job, new MessagingException("Timeout while waiting for a connection to "
+                            + relay.m_host));
+                }
+            }
+        }
+        for (SelectionKey key : new ArrayList<SelectionKey>(m_selector.keys())) {
+            Session session = (Session) key.attachment();
+            if (session.m_expected.isEmpty() && session.m_job == null) {
+                if (now - session.m_lastUsed > m_maxIdle) {
+                    session.quit();
+                }
+            } else if (now - session.m_lastUsed > m_timeout) {
+                session.broken(new MessagingException("Timeout while waiting for " + session.m_relay.m_host));
+            }
+        }
+    }
+
+    /**
+     * Closes all the connections and fails the waiting mails.
+     */
+    private void shutdown() {
+        synchronized (m_tasks) {
+            // Also set when the loop failed, so no task is queued anymore.
+            m_closed = true;
+        }
+        MessagingException stopped = new MessagingException("The SMTP engine is stopped");
+        for (SelectionKey key : m_selector.keys()) {
+            ((Session) key.attachment()).broken(stopped);
+        }
+        for (Relay relay : m_relays.values()) {
+            Job job;
+            while ((job = relay.m_waiting.poll()) != null) {
+                complete(job, stopped);
+            }
+        }
+        Runnable task;
+        while ((task = m_tasks.poll()) != null) {
+            task.run();
+        }
+        try {
+            m_selector.close();
+        } catch (IOException e) {
+            // Ignored.
+        }
+    }
+
+    /**
+     * Assigns a mail to a connection.
+     *
+     * @param job the mail
+     */
+    private void dispatch(Job job) {
+        if (m_closed) {
+            complete(job, new MessagingException("The SMTP engine is stopped"));
+            return;
+        }
+        String key = job.m_host + ':' + job.m_port;
+        Relay relay = m_relays.get(key);
+        if (relay == null) {
+            relay = new Relay(job.m_host, job.m_port);
+            m_relays.put(key, relay);
+        }
+        Session session = relay.m_idle.poll();
+        if (session != null) {
+            // The relay may have closed the idle connection meanwhile.
+            job.m_reused = true;
+            session.start(job);
+        } else if (relay.m_open < m_maxSessions) {
+            open(relay, job);
+        } else {
+            relay.m_waiting.add(job);
+        }
+    }
+
+    /**
+     * Completes a mail. A failure of the callback does not stop the engine.
+     *
+     * @param job     the mail
+     * @param failure the failure, <code>null</code> if sent
+     */
+    private void complete(Job job, Exception failure) {
+        synchronized (m_tasks) {
+            if (--m_pending == 0) {
+                m_tasks.notifyAll();
+            }
+        }
+        try {
+            job.m_callback.completed(failure);
+        } catch (RuntimeException e) {
+            m_logger.error("Mail completion failed", e);
+        }
+    }
+
+    /**
+     * Opens a connection for a mail.
+     *
+     * @param relay the relay
+     * @param job   the mail
+     */
+    private void open(Relay relay, Job job) {
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            Session session = new Session(relay, channel);
+            session.m_job = job;
+            relay.m_open++;
+            if (channel.connect(job.m_address)) {
+                session.m_key = channel.register(m_selector, SelectionKey.OP_READ, session);
+                session.connected();
+            } else {
+                session.m_key = channel.register(m_selector, SelectionKey.OP_CONNECT, session);
+            }
+        } catch (IOException e) {
+            if (channel != null) {
+                relay.m_open--;
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // Ignored.
+                }
+            }
+            complete(job, new MessagingException("Cannot connect to " + relay.m_host, e));
+        }
+    }
+
+    /**
+     * A relay and its connections.
+     */
+    private static class Relay {
+
+        /**
+         * The host.
+         */
+        private final String m_host;
+
+        /**
+         * The port.
+         */
+        private final int m_port;
+
+        /**
+         * The idle connections, most recently used first.
+         */
+        private final LinkedList<Session> m_idle = new LinkedList<Session>();
+
+        /**
+         * The mails waiting for a connection.
+         */
+        private final LinkedList<Job> m_waiting = new LinkedList<Job>();
+
+        /**
+         * Number of open connections.
+         */
+        private int m_open;
+
+        /**
+         * Creates a relay.
+         *
+         * @param host the host
+         * @param port the port
+         */
+        Relay(String host, int port) {
+            m_host = host;
+            m_port = port;
+        }
+
+    }
+
+    /**
+     * A mail to send.
+     */
+    private static class Job {
+
+        /**
+         * The relay address, resolved by the sending thread.
+         */
+        private final InetSocketAddress m_address;
+
+        /**
+         * The relay host.
+         */
+        private final String m_host;
+
+        /**
+         * The relay port.
+         */
+        private final int m_port;
+
+        /**
+         * The envelope sender.
+         */
+        private final InternetAddress m_from;
+
+        /**
+         * The envelope recipients.
+         */
+        private final Address[] m_recipients;
+
+        /**
+         * The data.
+         */
+        private final byte[] m_data;
+
+        /**
+         * The outcome receiver.
+         */
+        private final Callback m_callback;
+
+        /**
+         * Accepted recipients.
+         */
+        private final List<Address> m_valid = new ArrayList<Address>();
+
+        /**
+         * Recipients temporarily rejected.
+         */
+        private final List<Address> m_unsent = new ArrayList<Address>();
+
+        /**
+         * Recipients rejected.
+         */
+        private final List<Address> m_invalid = new ArrayList<Address>();
+
+        /**
+         * The recipient failures, chained.
+         */
+        private MessagingException m_rcptFailure;
+
+        /**
+         * The failure of the MAIL command.
+         */
+        private MessagingException m_mailFailure;
+
+        /**
+         * Number of RCPT replies received.
+         */
+        private int m_replies;
+
+        /**
+         * Was the mail started on an idle connection?
+         */
+        private boolean m_reused;
+
+        /**
+         * Was the MAIL command answered?
+         */
+        private boolean m_mailReplied;
+
+        /**
+         * Last progress time: queued, started or reply received.
+         */
+        private volatile long m_progress = System.currentTimeMillis();
+
+        /**
+         * Does the data contain non ASCII bytes?
+         */
+        private final boolean m_8bit;
+
+        /**
+         * Does the envelope contain internationalized addresses?
+         */
+        private final boolean m_utf8;
+
+        /**
+         * Creates a mail.
+         *
+         * @param address    the resolved relay address
+         * @param host       the relay host
+         * @param port       the relay port
+         * @param from       the envelope sender
+         * @param recipients the envelope recipients
+         * @param data       the data
+         * @param callback   the outcome receiver
+         */
+        Job(InetSocketAddress address, String host, int port, InternetAddress from, Address[] recipients,
+                byte[] data, Callback callback) {
+            m_address = address;
+            m_host = host;
+            m_port = port;
+            m_from = from;
+            m_recipients = recipients;
+            m_data = data;
+            m_callback = callback;
+
+            boolean eightBit = false;
+            for (byte b : data) {
+                if (b < 0) {
+                    eightBit = true;
+                    break;
+                }
+            }
+            m_8bit = eightBit;
+            boolean utf8 = ! isAscii(from.getAddress());
+            for (Address recipient : recipients) {
+                utf8 = utf8 || ! isAscii(mailbox(recipient));
+            }
+            m_utf8 = utf8;
+        }
+
+        /**
+         * Records a failed recipient.
+         *
+         * @param failure the failure
+         */
+        void rcptFailed(MessagingException failure) {
+            if (m_rcptFailure == null) {
+                m_rcptFailure = failure;
+            } else {
+                m_rcptFailure.setNextException(failure);
+            }
+        }
+
+    }
+
+    /**
+     * Handles a reply.
+     */
+    private interface Reply {
+
+        /**
+         * Handles a reply.
+         *
+         * @param code the reply code
+         * @param text the full reply, lines separated by '\n'
+         * @throws IOException if the next command cannot be sent
+         */
+        void received(int code, String text) throws IOException;
+
+    }
+
+    /**
+     * A SMTP connection.
+     */
+    private class Session {
+
+        /**
+         * The relay.
+         */
+        private final Relay m_relay;
+
+        /**
+         * The channel.
+         */
+        private final SocketChannel m_channel;
+
+        /**
+         * The selection key.
+         */
+        private SelectionKey m_key;
+
+        /**
+         * Received bytes not yet parsed.
+         */
+        private ByteBuffer m_in = ByteBuffer.allocate(4096);
+
+        /**
+         * The reply being received.
+         */
+        private final StringBuilder m_reply = new StringBuilder();
+
+        /**
+         * The buffers to write.
+         */
+        private final LinkedList<ByteBuffer> m_out = new LinkedList<ByteBuffer>();
+
+        /**
+         * The handlers of the expected replies, in order.
+         */
+        private final LinkedList<Reply> m_expected = new LinkedList<Reply>();
+
+        /**
+         * The mail being sent.
+         */
+        private Job m_job;
+
+        /**
+         * The extensions announced by the server.
+         */
+        private final Set<String> m_extensionSet = new HashSet<String>();
+
+        /**
+         * Does the server support PIPELINING?
+         */
+        private boolean m_pipelining;
+
+        /**
+         * Last activity time.
+         */
+        private long m_lastUsed = System.currentTimeMillis();
+
+        /**
+         * Creates a session.
+         *
+         * @param relay   the relay
+         * @param channel the channel
+         */
+        Session(Relay relay, SocketChannel channel) {
+            m_relay = relay;
+            m_channel = channel;
+        }
+
+        /**
+         * Completes the connection.
+         *
+         * @throws IOException if the connection failed
+         */
+        void finishConnect() throws IOException {
+            if (m_channel.finishConnect()) {
+                m_key.interestOps(SelectionKey.OP_READ);
+                connected();
+            }
+        }
+
+        /**
+         * Waits for the greeting, then says hello.
+         */
+        void connected() {
+            m_lastUsed = System.currentTimeMillis();
+            expect(new Reply() {
+                public void received(int code, String text) throws IOException {
+                    if (code != 220) {
+                        broken(new MessagingException("Connection refused by " + m_relay.m_host + ": " + text));
+                        return;
+                    }
+                    hello();
+                }
+            });
+        }
+
+        /**
+         * Sends EHLO, falling back to HELO.
+         *
+         * @throws IOException if the command cannot be sent
+         */
+        void hello() throws IOException {
+            command("EHLO " + m_localHost, new Reply() {
+                public void received(int code, String text) throws IOException {
+                    if (code == 250) {
+                        for (String line : text.split("\n")) {
+                            if (line.length() > 4) {
+                                extension(line.substring(4).trim().toUpperCase());
+                            }
+                        }
+                        m_extensions.put(m_relay.m_host + ':' + m_relay.m_port,
+                                Collections.unmodifiableSet(new HashSet<String>(m_extensionSet)));
+                        ready();
+                    } else {
+                        command("HELO " + m_localHost, new Reply() {
+                            public void received(int code, String text) throws IOException {
+                                if (code == 250) {
+                                    ready();
+                                } else {
+                                    broken(new MessagingException("HELO rejected by " + m_relay.m_host
+                                            + ": " + text));
+                                }
+                            }
+                        });
+                    }
+                }
+            });
+        }
+
+        /**
+         * Records an extension announced in the EHLO reply.
+         *
+         * @param extension the extension line, the keyword may be followed by parameters
+         */
+        void extension(String extension) {
+            int end = extension.indexOf(' ');
+            String keyword = end < 0 ? extension : extension.substring(0, end);
+            m_extensionSet.add(keyword);
+            if (keyword.equals("PIPELINING")) {
+                m_pipelining = true;
+            }
+        }
+
+        /**
+         * Sends the current mail, the next waiting mail, or becomes idle.
+         *
+         * @throws IOException if a command cannot be sent
+         */
+        void ready() throws IOException {
+            Job job = m_job;
+            m_job = null;
+            if (job == null) {
+                job = m_relay.m_waiting.poll();
+            }
+            if (job != null) {
+                start(job);
+            } else {
+                m_lastUsed = System.currentTimeMillis();
+                m_relay.m_idle.addFirst(this);
+            }
+        }
+
+        /**
+         * Starts sending a mail.
+         *
+         * @param job the mail
+         */
+        void start(final Job job) {
+            m_job = job;
+            m_lastUsed = System.currentTimeMillis();
+            job.m_progress = m_lastUsed;
+            boolean utf8 = m_extensionSet.contains("SMTPUTF8");
+            boolean eightBit = m_extensionSet.contains("8BITMIME");
+            try {
+                if (job.m_utf8 && ! utf8) {
+                    complete(new SendFailedException("The relay " + m_relay.m_host
+                            + " does not support SMTPUTF8", null, new Address[0], new Address[0], job.m_recipients));
+                    ready();
+                    return;
+                }
+                if (job.m_8bit && ! eightBit && ! utf8) {
+                    // The relay changed since the message was converted, retrying rebuilds it in 7-bit.
+                    complete(new MessagingException("The relay " + m_relay.m_host + " does not support 8BITMIME"));
+                    ready();
+                    return;
+                }
+                StringBuilder command = new StringBuilder("MAIL FROM:<").append(job.m_from.getAddress())
+                        .append('>');
+                if (job.m_8bit && eightBit) {
+                    command.append(" BODY=8BITMIME");
+                }
+                if (job.m_utf8) {
+                    command.append(" SMTPUTF8");
+                }
+                command(command.toString(), new Reply() {
+                    public void received(int code, String text) throws IOException {
+                        job.m_mailReplied = true;
+                        if (code != 250) {
+                            job.m_mailFailure = new SMTPSenderFailedException(job.m_from,
+                                    "MAIL FROM", code, text);
+                        }
+                        if (!m_pipelining) {
+                            if (job.m_mailFailure != null) {
+                                reset(job.m_mailFailure);
+                            } else {
+                                recipient(job, 0);
+                            }
+                        }
+                    }
+                });
+                if (m_pipelining) {
+                    for (int index = 0; index < job.m_recipients.length; index++) {
+                        recipient(job, index);
+                    }
+                }
+            } catch (IOException e) {
+                broken(new MessagingException("Connection to " + m_relay.m_host + " failed", e));
+            }
+        }
+
+        /**
+         * Sends a RCPT command.
+         *
+         * @param job   the mail
+         * @param index the recipient index
+         * @throws IOException if the command cannot be sent
+         */
+        void recipient(final Job job, final int index) throws IOException {
+            final Address address = job.m_recipients[index];
+            command("RCPT TO:<" + mailbox(address) + ">", new Reply() {
+                public void received(int code, String text) throws IOException {
+                    if (code == 250 || code == 251) {
+                        job.m_valid.add(address);
+                    } else if (job.m_mailFailure == null) {
+                        if (code >= 400 && code < 500) {
+                            job.m_unsent.add(address);
+                        } else {
+                            job.m_invalid.add(address);
+                        }
+                        job.rcptFailed(new SMTPAddressFailedException((InternetAddress) address,
+                                "RCPT TO", code, text));
+                    }
+                    job.m_replies++;
+                    if (job.m_replies < job.m_recipients.length) {
+                        if (!m_pipelining) {
+                            recipient(job, index + 1);
+                        }
+                        return;
+                    }
+                    if (job.m_mailFailure != null) {
+                        reset(job.m_mailFailure);
+                    } else if (job.m_rcptFailure != null) {
+                        job.m_unsent.addAll(0, job.m_valid);
+                        reset(new SendFailedException("Invalid Addresses", job.m_rcptFailure,
+                                new Address[0],
+                                job.m_unsent.toArray(new Address[job.m_unsent.size()]),
+                                job.m_invalid.toArray(new Address[job.m_invalid.size()])));
+                    } else {
+                        data(job);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Sends the message in a single BDAT chunk when the server supports
+         * CHUNKING: no escaping nor intermediate reply is needed.
+         * Otherwise sends the DATA command and the escaped message.
+         *
+         * @param job the mail
+         * @throws IOException if the command cannot be sent
+         */
+        void data(final Job job) throws IOException {
+            if (m_extensionSet.contains("CHUNKING")) {
+                write(ByteBuffer.wrap(("BDAT " + job.m_data.length + " LAST\r\n").getBytes(ASCII)));
+                write(ByteBuffer.wrap(job.m_data));
+                expect(new Reply() {
+                    public void received(int code, String text) throws IOException {
+                        if (code == 250) {
+                            complete(null);
+                            ready();
+                        } else {
+                            reset(failure(job, "BDAT", code, text));
+                        }
+                    }
+                });
+                return;
+            }
+            command("DATA", new Reply() {
+                public void received(int code, String text) throws IOException {
+                    if (code != 354) {
+                        reset(failure(job, "DATA", code, text));
+                        return;
+                    }
+                    write(stuff(job.m_data));
+                    expect(new Reply() {
+                        public void received(int code, String text) throws IOException {
+                            if (code == 250) {
+                                complete(null);
+                            } else {
+                                complete(failure(job, ".", code, text));
+                            }
+                            ready();
+                        }
+                    });
+                }
+            });
+        }
+
+        /**
+         * Creates the failure of a mail rejected after its recipients were accepted.
+         *
+         * @param job     the mail
+         * @param command the failed command
+         * @param code    the reply code
+         * @param text    the reply
+         * @return the failure
+         */
+        MessagingException failure(Job job, String command, int code, String text) {
+            return new SMTPSendFailedException(command, code, text, null, null,
+                    job.m_valid.toArray(new Address[job.m_valid.size()]), null);
+        }
+
+        /**
+         * Aborts the current mail with RSET, then reuses the connection.
+         *
+         * @param failure the failure of the mail
+         * @throws IOException if the command cannot be sent
+         */
+        void reset(final Exception failure) throws IOException {
+            command("RSET", new Reply() {
+                public void received(int code, String text) throws IOException {
+                    // Completed once reset, so the next mail of the caller reuses the connection.
+                    complete(failure);
+                    if (code == 250) {
+                        ready();
+                    } else {
+                        close();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Completes the current mail.
+         *
+         * @param failure the failure, <code>null</code> if sent
+         */
+        void complete(Exception failure) {
+            Job job = m_job;
+            m_job = null;
+            if (job != null) {
+                NioSmtpEngine.this.complete(job, failure);
+            }
+        }
+
+        /**
+         * Closes an idle connection.
+         */
+        void quit() {
+            m_relay.m_idle.remove(this);
+            try {
+                command("QUIT", new Reply() {
+                    public void received(int code, String text) {
+                        close();
+                    }
+                });
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * Handles a connection failure: the current mail fails and the
+         * connection is closed.
+         *
+         * @param failure the failure, <code>null</code> if no mail is sent
+         */
+        void broken(MessagingException failure) {
+            Job job = m_job;
+            if (job != null && job.m_reused && ! job.m_mailReplied && ! m_closed) {
+                // The reused connection was closed by the relay, sends the mail once on a new connection.
+                m_job = null;
+                job.m_reused = false;
+                close();
+                if (m_relay.m_open < m_maxSessions) {
+                    open(m_relay, job);
+                } else {
+                    m_relay.m_waiting.addFirst(job);
+                }
+                return;
+            }
+            if (failure != null) {
+                complete(failure);
+            }
+            close();
+        }
+
+        /**
+         * Closes the connection. A waiting mail gets a new connection.
+         */
+        void close() {
+            if (!m_channel.isOpen()) {
+                return;
+            }
+            m_relay.m_idle.remove(this);
+            m_relay.m_open--;
+            try {
+                m_channel.close();
+            } catch (IOException e) {
+                // Ignored.
+            }
+            complete(new MessagingException("Connection to " + m_relay.m_host + " closed"));
+            Job waiting = m_relay.m_waiting.poll();
+            if (waiting != null) {
+                dispatch(waiting);
+            }
+        }
+
+        /**
+         * Sends a command.
+         *
+         * @param command the command, without line end
+         * @param reply   the reply handler
+         * @throws IOException if the command cannot be written
+         */
+        void command(String command, Reply reply) throws IOException {
+            write(ByteBuffer.wrap((command + "\r\n").getBytes(UTF8)));
+            expect(reply);
+        }
+
+        /**
+         * Registers the handler of the next reply.
+         *
+         * @param reply the reply handler
+         */
+        void expect(Reply reply) {
+            m_expected.add(reply);
+        }
+
+        /**
+         * Writes data, or queues it until the channel is writable.
+         *
+         * @param buffer the data
+         * @throws IOException if the data cannot be written
+         */
+        void write(ByteBuffer buffer) throws IOException {
+            m_out.add(buffer);
+            flush();
+        }
+
+        /**
+         * Writes the queued data.
+         *
+         * @throws IOException if the data cannot be written
+         */
+        void flush() throws IOException {
+            while (!m_out.isEmpty()) {
+                ByteBuffer buffer = m_out.getFirst();
+                m_channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    m_key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                m_out.removeFirst();
+            }
+            if (m_key.isValid()) {
+                m_key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Reads and handles the replies.
+         *
+         * @throws IOException if the connection failed
+         */
+        void read() throws IOException {
+            if (m_channel.read(m_in) < 0) {
+                throw new IOException("Connection closed by " + m_relay.m_host);
+            }
+            m_lastUsed = System.currentTimeMillis();
+            if (m_job != null) {
+                m_job.m_progress = m_lastUsed;
+            }
+            m_in.flip();
+            int start = m_in.position();
+            for (int i = start; i < m_in.limit(); i++) {
+                if (m_in.get(i) == '\n') {
+                    byte[] bytes = new byte[i - start];
+                    m_in.position(start);
+                    m_in.get(bytes);
+                    m_in.position(i + 1);
+                    start = i + 1;
+                    line(new String(bytes, ASCII).trim());
+                    if (!m_channel.isOpen()) {
+                        return;
+                    }
+                }
+            }
+            m_in.position(start);
+            m_in.compact();
+            if (!m_in.hasRemaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(m_in.capacity() * 2);
+                m_in.flip();
+                larger.put(m_in);
+                m_in = larger;
+            }
+        }
+
+        /**
+         * Handles a reply line.
+         *
+         * @param line the line
+         * @throws IOException if the next command cannot be sent
+         */
+        void line(String line) throws IOException {
+            if (m_reply.length() > 0) {
+                m_reply.append('\n');
+            }
+            m_reply.append(line);
+            if (line.length() > 3 && line.charAt(3) == '-') {
+                // Multi-line reply.
+                return;
+            }
+            String text = m_reply.toString();
+            m_reply.setLength(0);
+            int code;
+            try {
+                code = Integer.parseInt(line.substring(0, Math.min(3, line.length())));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid reply from " + m_relay.m_host + ": " + line);
+            }
+            Reply reply = m_expected.poll();
+            if (reply == null) {
+                throw new IOException("Unexpected reply from " + m_relay.m_host + ": " + line);
+            }
+            reply.received(code, text);
+        }
+
+    }
+
+    /**
+     * Stream converting line ends to CRLF.
+     */
+    private static class CRLFOutputStream extends FilterOutputStream {
+
+        /**
+         * The last byte written.
+         */
+        private int m_last = '\n';
+
+        /**
+         * Creates the stream.
+         *
+         * @param out the destination
+         */
+        CRLFOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        /**
+         * @param b the byte
+         * @throws IOException if the byte cannot be written
+         * @see java.io.FilterOutputStream#write(int)
+         */
+        public void write(int b) throws IOException {
+            if (b == '\r') {
+                out.write('\r');
+                out.write('\n');
+            } else if (b == '\n') {
+                if (m_last != '\r') {
+                    out.write('\r');
+                    out.write('\n');
+                }
+            } else {
+                out.write(b);
+            }
+            m_last = b;
+        }
+
+        /**
+         * @param b   the bytes
+         * @param off the offset
+         * @param len the number of bytes
+         * @throws IOException if the bytes cannot be written
+         * @see java.io.FilterOutputStream#write(byte[], int, int)
+         */
+        public void write(byte[] b, int off, int len) throws IOException {
+            for (int i = off; i < off + len; i++) {
+                write(b[i]);
+            }
+        }
+
+        /**
+         * Ends the data with a line end.
+         *
+         * @throws IOException if the line end cannot be written
+         */
+        void terminate() throws IOException {
+            if (m_last != '\r' && m_last != '\n') {
+                out.write('\r');
+                out.write('\n');
+            }
+            out.flush();
+        }
+
+    }
+
+}
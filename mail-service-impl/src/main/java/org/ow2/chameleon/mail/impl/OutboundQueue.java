@@ -0,0 +1,588 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.impl;
+
+import org.ow2.chameleon.mail.Mail;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of the mails sent asynchronously, waiting for a sending
+ * thread. The overflow policy decides what happens when the queue is
+ * full, so producers get a predictable latency under load. The queue
+ * measures its depth and the time spent by the mails in the queue.
+ * <p/>
+ * The mails are queued in one lane per {@link Mail.Priority}. The lanes
+ * are served by weighted round robin: out of <tt>high + normal + low</tt>
+ * consecutive mails taken, at most <tt>high</tt> come from the high lane,
+ * <tt>normal</tt> from the normal lane... as long as the lanes have mails.
+ * An empty lane gives its turn to the others.
+ */
+public class OutboundQueue {
+
+    /**
+     * What to do when the queue is full.
+     */
+    public enum Policy {
+
+        /**
+         * Waits for room, up to a timeout, then rejects the mail.
+         */
+        BLOCK,
+
+        /**
+         * Rejects the mail immediately.
+         */
+        REJECT,
+
+        /**
+         * Drops the oldest queued mail of the lowest priority to make room.
+         * The mail is rejected if all the queued mails have a higher priority.
+         */
+        DROP_OLDEST,
+
+        /**
+         * Rejects the mail, which the sender writes to the outbound spool.
+         */
+        SPILL;
+
+        /**
+         * Parses a policy name: <tt>block</tt>, <tt>reject</tt>,
+         * <tt>drop-oldest</tt> or <tt>spill</tt>.
+         *
+         * @param name the name
+         * @return the policy
+         * @throws IllegalArgumentException if the name is unknown
+         */
+        public static Policy parse(String name) {
+            return valueOf(name.trim().toUpperCase().replace('-', '_'));
+        }
+
+    }
+
+    /**
+     * A queued mail.
+     */
+    public static class Entry {
+
+        /**
+         * The mail.
+         */
+        private final Mail m_mail;
+
+        /**
+         * The completion handle.
+         */
+        private final MailFuture m_future;
+
+        /**
+         * The time (ns) at which the mail was queued.
+         */
+        private long m_queued;
+
+        /**
+         * Creates an entry.
+         *
+         * @param mail   the mail
+         * @param future the completion handle
+         */
+        public Entry(Mail mail, MailFuture future) {
+            m_mail = mail;
+            m_future = future;
+        }
+
+        /**
+         * Gets the mail.
+         *
+         * @return the mail
+         */
+        public Mail mail() {
+            return m_mail;
+        }
+
+        /**
+         * Gets the completion handle.
+         *
+         * @return the handle
+         */
+        public MailFuture future() {
+            return m_future;
+        }
+
+    }
+
+    /**
+     * The default lane weights: high, normal, low.
+     */
+    public static final int[] DEFAULT_WEIGHTS = {8, 3, 1};
+
+    /**
+     * The number of lanes.
+     */
+    private static final int LANES = Mail.Priority.values().length;
+
+    /**
+     * The queued mails, per lane.
+     */
+    private final List<LinkedList<Entry>> m_lanes;
+
+    /**
+     * The weight of each lane.
+     */
+    private final int[] m_weights;
+
+    /**
+     * The mails each lane can still give in the current round.
+     */
+    private final int[] m_credits;
+
+    /**
+     * The number of queued mails.
+     */
+    private int m_size;
+
+    /**
+     * Guards the queue and the statistics.
+     */
+    private final ReentrantLock m_lock = new ReentrantLock();
+
+    /**
+     * Signaled when a mail leaves the queue.
+     */
+    private final Condition m_notFull = m_lock.newCondition();
+
+    /**
+     * The capacity.
+     */
+    private final int m_capacity;
+
+    /**
+     * The overflow policy.
+     */
+    private final Policy m_policy;
+
+    /**
+     * Maximum time (ms) to wait for room with {@link Policy#BLOCK}.
+     */
+    private final long m_blockTimeout;
+
+    /**
+     * Number of mails taken from each lane.
+     */
+    private final long[] m_taken = new long[LANES];
+
+    /**
+     * Total time (ns) spent in each lane by the taken mails.
+     */
+    private final long[] m_totalWait = new long[LANES];
+
+    /**
+     * Maximum time (ns) spent in each lane by a mail.
+     */
+    private final long[] m_maxWait = new long[LANES];
+
+    /**
+     * Number of rejected mails.
+     */
+    private long m_rejected;
+
+    /**
+     * Number of dropped mails.
+     */
+    private long m_dropped;
+
+    /**
+     * Number of mails written to the spool.
+     */
+    private long m_spilled;
+
+    /**
+     * Creates a queue.
+     *
+     * @param capacity     the capacity
+     * @param policy       the overflow policy
+     * @param blockTimeout the maximum time (ms) to wait for room with {@link Policy#BLOCK}
+     */
+    public OutboundQueue(int capacity, Policy policy, long blockTimeout) {
+        this(capacity, policy, blockTimeout, DEFAULT_WEIGHTS);
+    }
+
+    /**
+     * Creates a queue.
+     *
+     * @param capacity     the capacity, shared by the lanes
+     * @param policy       the overflow policy
+     * @param blockTimeout the maximum time (ms) to wait for room with {@link Policy#BLOCK}
+     * @param weights      the weight of each lane, in {@link Mail.Priority} order
+     */
+    public OutboundQueue(int capacity, Policy policy, long blockTimeout, int[] weights) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("The capacity must be positive");
+        }
+        if (weights.length != LANES) {
+            throw new IllegalArgumentException("Expected " + LANES + " lane weights");
+        }
+        m_capacity = capacity;
+        m_policy = policy;
+        m_blockTimeout = blockTimeout;
+        m_lanes = new ArrayList<LinkedList<Entry>>(LANES);
+        m_weights = new int[LANES];
+        m_credits = new int[LANES];
+        for (int lane = 0; lane < LANES; lane++) {
+            if (weights[lane] <= 0) {
+                throw new IllegalArgumentException("The lane weights must be positive");
+            }
+            m_lanes.add(new LinkedList<Entry>());
+            m_weights[lane] = weights[lane];
+            m_credits[lane] = weights[lane];
+        }
+    }
+
+    /**
+     * Parses lane weights, such as <tt>8,3,1</tt>.
+     *
+     * @param weights the comma-separated weights: high, normal, low
+     * @return the weights
+     * @throws IllegalArgumentException if the weights are invalid
+     */
+    public static int[] parseWeights(String weights) {
+        String[] values = weights.split(",");
+        if (values.length != LANES) {
+            throw new IllegalArgumentException("Expected " + LANES + " lane weights: " + weights);
+        }
+        int[] result = new int[LANES];
+        for (int lane = 0; lane < LANES; lane++) {
+            result[lane] = Integer.parseInt(values[lane].trim());
+        }
+        return result;
+    }
+
+    /**
+     * Queues a mail, applying the overflow policy if the queue is full.
+     *
+     * @param entry the mail
+     * @return the mail dropped to make room, <code>null</code> if none
+     * @throws RejectedExecutionException if the mail is rejected
+     * @throws InterruptedException       if interrupted while waiting for room
+     */
+    public Entry add(Entry entry) throws InterruptedException {
+        m_lock.lockInterruptibly();
+        try {
+            Entry dropped = null;
+            if (m_size >= m_capacity) {
+                switch (m_policy) {
+                case BLOCK:
+                    long remaining = TimeUnit.MILLISECONDS.toNanos(m_blockTimeout);
+                    while (m_size >= m_capacity && remaining > 0) {
+                        remaining = m_notFull.awaitNanos(remaining);
+                    }
+                    if (m_size >= m_capacity) {
+                        m_rejected++;
+                        throw new RejectedExecutionException("The outbound queue is still full after "
+                                + m_blockTimeout + " ms");
+                    }
+                    break;
+                case DROP_OLDEST:
+                    // Sheds the lowest priority first, never a mail of higher
+                    // priority than the incoming one.
+                    int lane = LANES - 1;
+                    int incoming = entry.m_mail.priority().ordinal();
+                    while (lane >= incoming && m_lanes.get(lane).isEmpty()) {
+                        lane--;
+                    }
+                    if (lane < incoming) {
+                        m_rejected++;
+                        throw new RejectedExecutionException("The outbound queue is full of higher priority mails ("
+                                + m_capacity + " mails)");
+                    }
+                    dropped = m_lanes.get(lane).removeFirst();
+                    m_size--;
+                    m_dropped++;
+                    break;
+                default:
+                    m_rejected++;
+                    throw new RejectedExecutionException("The outbound queue is full (" + m_capacity + " mails)");
+                }
+            }
+            entry.m_queued = System.nanoTime();
+            m_lanes.get(entry.m_mail.priority().ordinal()).addLast(entry);
+            m_size++;
+            return dropped;
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next mail: the oldest mail of the lane whose turn it is.
+     *
+     * @return the mail, <code>null</code> if the queue is empty
+     */
+    public Entry poll() {
+        m_lock.lock();
+        try {
+            if (m_size == 0) {
+                return null;
+            }
+            for (int lane = 0; lane < LANES; lane++) {
+                if (m_credits[lane] > 0 && !m_lanes.get(lane).isEmpty()) {
+                    m_credits[lane]--;
+                    return take(lane);
+                }
+            }
+            // The lanes with mails used their turns, starts a new round.
+            System.arraycopy(m_weights, 0, m_credits, 0, LANES);
+            for (int lane = 0; lane < LANES; lane++) {
+                if (!m_lanes.get(lane).isEmpty()) {
+                    m_credits[lane]--;
+                    return take(lane);
+                }
+            }
+            return null;
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the oldest mail of a lane, regardless of the round robin.
+     * Used by the sending threads reserved to a priority.
+     *
+     * @param priority the lane
+     * @return the mail, <code>null</code> if the lane is empty
+     */
+    public Entry poll(Mail.Priority priority) {
+        m_lock.lock();
+        try {
+            if (m_lanes.get(priority.ordinal()).isEmpty()) {
+                return null;
+            }
+            return take(priority.ordinal());
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the oldest mail of a non-empty lane and records its wait.
+     * The lock must be held.
+     *
+     * @param lane the lane
+     * @return the mail
+     */
+    private Entry take(int lane) {
+        Entry entry = m_lanes.get(lane).removeFirst();
+        long wait = System.nanoTime() - entry.m_queued;
+        m_size--;
+        m_taken[lane]++;
+        m_totalWait[lane] += wait;
+        m_maxWait[lane] = Math.max(m_maxWait[lane], wait);
+        m_notFull.signal();
+        return entry;
+    }
+
+    /**
+     * Records a mail written to the spool because the queue was full.
+     */
+    public void spilled() {
+        m_lock.lock();
+        try {
+            m_rejected--;
+            m_spilled++;
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the overflow policy.
+     *
+     * @return the policy
+     */
+    public Policy getPolicy() {
+        return m_policy;
+    }
+
+    /**
+     * Gets the capacity.
+     *
+     * @return the capacity
+     */
+    public int getCapacity() {
+        return m_capacity;
+    }
+
+    /**
+     * Gets the number of queued mails.
+     *
+     * @return the depth
+     */
+    public int getDepth() {
+        m_lock.lock();
+        try {
+            return m_size;
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of mails queued in a lane.
+     *
+     * @param priority the lane
+     * @return the depth of the lane
+     */
+    public int getDepth(Mail.Priority priority) {
+        m_lock.lock();
+        try {
+            return m_lanes.get(priority.ordinal()).size();
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the average time spent in the queue by the mails taken so far.
+     *
+     * @return the average wait time (ms)
+     */
+    public double getAverageWait() {
+        m_lock.lock();
+        try {
+            long taken = 0;
+            long total = 0;
+            for (int lane = 0; lane < LANES; lane++) {
+                taken += m_taken[lane];
+                total += m_totalWait[lane];
+            }
+            return taken == 0 ? 0 : total / (double) taken / 1000000;
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the average time spent in a lane by the mails taken so far.
+     *
+     * @param priority the lane
+     * @return the average wait time (ms)
+     */
+    public double getAverageWait(Mail.Priority priority) {
+        int lane = priority.ordinal();
+        m_lock.lock();
+        try {
+            return m_taken[lane] == 0 ? 0 : m_totalWait[lane] / (double) m_taken[lane] / 1000000;
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the maximum time spent in the queue by a mail.
+     *
+     * @return the maximum wait time (ms)
+     */
+    public double getMaxWait() {
+        m_lock.lock();
+        try {
+            long max = 0;
+            for (int lane = 0; lane < LANES; lane++) {
+                max = Math.max(max, m_maxWait[lane]);
+            }
+            return max / 1000000.0;
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the maximum time spent in a lane by a mail.
+     *
+     * @param priority the lane
+     * @return the maximum wait time (ms)
+     */
+    public double getMaxWait(Mail.Priority priority) {
+        m_lock.lock();
+        try {
+            return m_maxWait[priority.ordinal()] / 1000000.0;
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of mails taken from a lane.
+     *
+     * @param priority the lane
+     * @return the number of mails of this priority handed to a sending thread
+     */
+    public long getTakenCount(Mail.Priority priority) {
+        m_lock.lock();
+        try {
+            return m_taken[priority.ordinal()];
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of rejected mails.
+     *
+     * @return the number of mails rejected because the queue was full
+     */
+    public long getRejectedCount() {
+        m_lock.lock();
+        try {
+            return m_rejected;
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of dropped mails.
+     *
+     * @return the number of queued mails dropped to make room
+     */
+    public long getDroppedCount() {
+        m_lock.lock();
+        try {
+            return m_dropped;
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of mails written to the spool.
+     *
+     * @return the number of mails spilled because the queue was full
+     */
+    public long getSpilledCount() {
+        m_lock.lock();
+        try {
+            return m_spilled;
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+}
@@ -16,7 +16,6 @@ package org.ow2.chameleon.mail.impl;
 
 import java.io.IOException;
 import java.util.Dictionary;
-import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Properties;
 
@@ -100,6 +99,14 @@ public class POP3MailReceiver extends AbstractMailReceiver implements MailReceiv
 	@Property(name="pop3.debug")
 	private boolean m_debug;
 
+	/**
+	 * The execution mode of the polling thread: <tt>platform</tt> or
+	 * <tt>virtual</tt>. A platform thread is used on JVMs without virtual
+	 * threads.
+	 */
+	@Property(name="pop3.threads", value="platform")
+	private String m_threads;
+
 	/**
 	 * The folder.
 	 */
@@ -185,7 +192,7 @@ public class POP3MailReceiver extends AbstractMailReceiver implements MailReceiv
 		session.setDebug(m_debug);
 		m_store = session.getStore(protocol);
 
-		m_messages = new HashMap<Message, Mail>();
+		clearMessages();
 		fetch();
         // Set polling
         m_run = true;
@@ -202,7 +209,7 @@ public class POP3MailReceiver extends AbstractMailReceiver implements MailReceiv
         		}
         	}
         };
-        new Thread(runnable).start();
+        Threads.create("pop3-poll-" + m_username, runnable, Threads.isVirtual(m_threads)).start();
 	}
 
 	/**
@@ -244,7 +251,7 @@ public class POP3MailReceiver extends AbstractMailReceiver implements MailReceiv
 				try {
 					if (! m_messages.containsKey(msg)) {
 						Mail mail = createMail(msg);
-						m_messages.put(msg, mail);
+						addMessage(msg, mail);
 						propagateToEventAdmin(mail);
 					}
 				} catch (Exception e) {
@@ -275,9 +282,9 @@ public class POP3MailReceiver extends AbstractMailReceiver implements MailReceiv
 	private void propagateToEventAdmin(Mail mail) {
 		if (m_eventAdmin != null) {
 			Dictionary props = new Hashtable();
-			props.put(MailReceiverService.TO_KEY, mail.to());
+			props.put(MailReceiverService.TO_KEY, ReadOnlyMail.eventTo(mail));
 			props.put(MailReceiverService.FROM_KEY, mail.from());
-			props.put(MailReceiverService.CC_KEY, mail.cc());
+			props.put(MailReceiverService.CC_KEY, ReadOnlyMail.eventCc(mail));
 
 			if (mail.subject() != null) {
 				props.put(MailReceiverService.SUBJECT_KEY, mail.subject());
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.impl;
+
+import org.ow2.chameleon.mail.Mail;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of mails sent per second, globally, per relay host
+ * and per recipient domain. A rate of 0 disables the corresponding limit.
+ * Permits are reserved in advance (see {@link TokenBucket}): the limiter
+ * returns the time to wait before sending the mail.
+ * <p/>
+ * A share of the global rate can be reserved to the
+ * {@link Mail.Priority#HIGH} mails. The global bucket is then split in
+ * two: the other mails only use the shared bucket, the high priority
+ * mails use their reserved bucket or the shared one, whichever permits
+ * to send first.
+ */
+public class RateLimiter {
+
+    /**
+     * Maximum number of recipient domains tracked.
+     */
+    private static final int MAX_DOMAINS = 10000;
+
+    /**
+     * The global bucket, <code>null</code> if unlimited.
+     */
+    private final TokenBucket m_global;
+
+    /**
+     * The share of the global rate reserved to the {@link Mail.Priority#HIGH}
+     * mails, <code>null</code> if none. The global bucket is then the shared part.
+     */
+    private final TokenBucket m_reserved;
+
+    /**
+     * Permits per second per host.
+     */
+    private final double m_hostRate;
+
+    /**
+     * Permits per second per recipient domain.
+     */
+    private final double m_domainRate;
+
+    /**
+     * The maximum burst.
+     */
+    private final double m_burst;
+
+    /**
+     * The per-host buckets.
+     */
+    private final Map<String, TokenBucket> m_hosts = new HashMap<String, TokenBucket>();
+
+    /**
+     * The per-domain buckets, least recently used first.
+     */
+    private final Map<String, TokenBucket> m_domains = new LinkedHashMap<String, TokenBucket>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(Map.Entry<String, TokenBucket> eldest) {
+            return size() > MAX_DOMAINS;
+        }
+    };
+
+    /**
+     * Number of mails delayed by the limiter.
+     */
+    private final AtomicLong m_throttled = new AtomicLong();
+
+    /**
+     * Total time (ns) mails waited for a permit.
+     */
+    private final AtomicLong m_waitTime = new AtomicLong();
+
+    /**
+     * Creates a limiter.
+     *
+     * @param globalRate the global number of mails per second
+     * @param hostRate   the number of mails per second per relay host
+     * @param domainRate the number of mails per second per recipient domain
+     * @param burst      the number of mails that can be sent at once after an idle period
+     */
+    public RateLimiter(double globalRate, double hostRate, double domainRate, double burst) {
+        this(globalRate, hostRate, domainRate, burst, 0);
+    }
+
+    /**
+     * Creates a limiter reserving a share of the global rate to the
+     * {@link Mail.Priority#HIGH} mails.
+     *
+     * @param globalRate the global number of mails per second
+     * @param hostRate   the number of mails per second per relay host
+     * @param domainRate the number of mails per second per recipient domain
+     * @param burst      the number of mails that can be sent at once after an idle period
+     * @param highShare  the share (between 0 and 1) of the global rate reserved to high priority mails
+     */
+    public RateLimiter(double globalRate, double hostRate, double domainRate, double burst, double highShare) {
+        if (globalRate > 0 && highShare > 0 && highShare < 1) {
+            m_global = new TokenBucket(globalRate * (1 - highShare), burst);
+            m_reserved = new TokenBucket(globalRate * highShare, burst);
+        } else {
+            m_global = globalRate > 0 ? new TokenBucket(globalRate, burst) : null;
+            m_reserved = null;
+        }
+        m_hostRate = hostRate;
+        m_domainRate = domainRate;
+        m_burst = burst;
+    }
+
+    /**
+     * Is the limiter enabled?
+     *
+     * @return <code>true</code> if at least one limit is set
+     */
+    public boolean isEnabled() {
+        return m_global != null || m_hostRate > 0 || m_domainRate > 0;
+    }
+
+    /**
+     * Reserves the permits needed to send a mail.
+     *
+     * @param host the relay, <tt>host:port</tt>
+     * @param mail the mail
+     * @return the time (ms) to wait before sending the mail
+     */
+    public long reserve(String host, Mail mail) {
+        if (!isEnabled()) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        long wait = 0;
+        if (m_reserved != null && mail.priority() == Mail.Priority.HIGH
+                && m_reserved.peek(now) <= m_global.peek(now)) {
+            wait = m_reserved.reserve(now);
+        } else if (m_global != null) {
+            wait = m_global.reserve(now);
+        }
+        if (m_hostRate > 0) {
+            wait = Math.max(wait, getBucket(m_hosts, host, m_hostRate).reserve(now));
+        }
+        if (m_domainRate > 0) {
+            for (String domain : getDomains(mail)) {
+                wait = Math.max(wait, getBucket(m_domains, domain, m_domainRate).reserve(now));
+            }
+        }
+        if (wait > 0) {
+            m_throttled.incrementAndGet();
+            m_waitTime.addAndGet(wait);
+        }
+        return TimeUnit.NANOSECONDS.toMillis(wait + 999999);
+    }
+
+    /**
+     * Gets the number of mails delayed by the limiter.
+     *
+     * @return the number of mails which waited for a permit
+     */
+    public long getThrottledCount() {
+        return m_throttled.get();
+    }
+
+    /**
+     * Gets the total time spent waiting for permits.
+     *
+     * @return the time in milliseconds
+     */
+    public long getWaitTime() {
+        return TimeUnit.NANOSECONDS.toMillis(m_waitTime.get());
+    }
+
+    /**
+     * Gets (or creates) a bucket.
+     *
+     * @param buckets the buckets
+     * @param key     the host or domain
+     * @param rate    the rate of a new bucket
+     * @return the bucket
+     */
+    private TokenBucket getBucket(Map<String, TokenBucket> buckets, String key, double rate) {
+        synchronized (buckets) {
+            TokenBucket bucket = buckets.get(key);
+            if (bucket == null) {
+                bucket = new TokenBucket(rate, m_burst);
+                buckets.put(key, bucket);
+            }
+            return bucket;
+        }
+    }
+
+    /**
+     * Gets the recipient domains of a mail.
+     *
+     * @param mail the mail
+     * @return the lower-case domains
+     */
+    static Set<String> getDomains(Mail mail) {
+        Set<String> domains = new HashSet<String>();
+        for (String recipient : mail.to()) {
+            domains.add(getDomain(recipient));
+        }
+        for (String recipient : mail.cc()) {
+            domains.add(getDomain(recipient));
+        }
+        return domains;
+    }
+
+    /**
+     * Gets the domain of an address.
+     *
+     * @param address the address
+     * @return the lower-case domain, empty if the address has no domain
+     */
+    static String getDomain(String address) {
+        if (address == null) {
+            return "";
+        }
+        int at = address.lastIndexOf('@');
+        int end = address.lastIndexOf('>');
+        if (at < 0) {
+            return "";
+        }
+        if (end < at) {
+            end = address.length();
+        }
+        return address.substring(at + 1, end).trim().toLowerCase();
+    }
+
+}
@@ -14,11 +14,13 @@
  */
 package org.ow2.chameleon.mail.impl;
 
+import org.ow2.chameleon.mail.AttachmentSource;
 import org.ow2.chameleon.mail.Mail;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 
@@ -26,9 +28,21 @@ import java.util.List;
 /**
  * Unmodifiable mail.
  * All setter methods throw an {@link UnsupportedOperationException}.
+ * As the mail cannot change, the events share its address lists instead of
+ * copying them. The getters still return copies, as {@link Mail} does.
  */
 public class ReadOnlyMail extends Mail {
 
+    /**
+     * The 'to' list, shared with the events.
+     */
+    private final List<String> m_toView = Collections.unmodifiableList(m_to);
+
+    /**
+     * The 'cc' list, shared with the events.
+     */
+    private final List<String> m_ccView = Collections.unmodifiableList(m_cc);
+
     public ReadOnlyMail(String to, String subject, String body, List<File> attachments) throws IOException {
         super(to, subject, body, attachments);
     }
@@ -48,12 +62,37 @@ public class ReadOnlyMail extends Mail {
         super.subject(mail.subject());
         super.body(mail.body());
         super.attach(mail.attachments());
+        m_sources.addAll(mail.attachmentSources());
         super.charset(mail.charset());
         super.subType(mail.subType());
         super.sent(mail.sent());
         super.read(mail.read());
         super.from(mail.from());
         super.id(mail.id());
+        super.priority(mail.priority());
+        super.idempotencyKey(mail.idempotencyKey());
+    }
+
+    /**
+     * Gets the 'to' list of a mail to publish it in an event. The list of a
+     * read-only mail is shared instead of copied.
+     *
+     * @param mail the mail
+     * @return the 'to' list, not to be modified
+     */
+    static List<String> eventTo(Mail mail) {
+        return mail instanceof ReadOnlyMail ? ((ReadOnlyMail) mail).m_toView : mail.to();
+    }
+
+    /**
+     * Gets the 'cc' list of a mail to publish it in an event. The list of a
+     * read-only mail is shared instead of copied.
+     *
+     * @param mail the mail
+     * @return the 'cc' list, not to be modified
+     */
+    static List<String> eventCc(Mail mail) {
+        return mail instanceof ReadOnlyMail ? ((ReadOnlyMail) mail).m_ccView : mail.cc();
     }
 
     public ReadOnlyMail from(String from) {
@@ -108,6 +147,18 @@ public class ReadOnlyMail extends Mail {
         throw new UnsupportedOperationException();
     }
 
+    public ReadOnlyMail attach(AttachmentSource source) {
+        throw new UnsupportedOperationException();
+    }
+
+    public ReadOnlyMail attachSources(List<AttachmentSource> sources) {
+        throw new UnsupportedOperationException();
+    }
+
+    public ReadOnlyMail removeAttachment(AttachmentSource source) {
+        throw new UnsupportedOperationException();
+    }
+
     public ReadOnlyMail subject(String subject) {
         throw new UnsupportedOperationException();
     }
@@ -137,4 +188,14 @@ public class ReadOnlyMail extends Mail {
     public Mail charset(String charset) {
         throw new UnsupportedOperationException();
     }
+
+    @Override
+    public Mail priority(Priority priority) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Mail idempotencyKey(String key) {
+        throw new UnsupportedOperationException();
+    }
 }
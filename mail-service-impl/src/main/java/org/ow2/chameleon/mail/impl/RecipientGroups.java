@@ -0,0 +1,156 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.impl;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import java.util.*;
+
+/**
+ * Splits the recipients of a message into several SMTP transactions
+ * (by recipient domain, with a maximum number of <tt>RCPT</tt> per
+ * transaction), and merges the outcomes of the transactions into a
+ * single outcome for the message.
+ */
+public class RecipientGroups {
+
+    /**
+     * Recipients successfully sent.
+     */
+    private final List<Address> m_sent = new ArrayList<Address>();
+
+    /**
+     * Valid recipients not sent.
+     */
+    private final List<Address> m_unsent = new ArrayList<Address>();
+
+    /**
+     * Recipients rejected.
+     */
+    private final List<Address> m_invalid = new ArrayList<Address>();
+
+    /**
+     * Failures of the transactions, in order.
+     */
+    private final List<Exception> m_failures = new ArrayList<Exception>();
+
+    /**
+     * Splits recipients into transactions.
+     *
+     * @param recipients    the recipients
+     * @param byDomain      whether each transaction targets a single domain
+     * @param maxRecipients the maximum number of recipients per transaction, 0 for no limit
+     * @return the recipients of each transaction
+     */
+    public static List<Address[]> split(Address[] recipients, boolean byDomain, int maxRecipients) {
+        Map<String, List<Address>> groups = new LinkedHashMap<String, List<Address>>();
+        for (Address recipient : recipients) {
+            String key = byDomain ? RateLimiter.getDomain(recipient.toString()) : "";
+            List<Address> group = groups.get(key);
+            if (group == null) {
+                group = new ArrayList<Address>();
+                groups.put(key, group);
+            }
+            group.add(recipient);
+        }
+
+        List<Address[]> transactions = new ArrayList<Address[]>();
+        for (List<Address> group : groups.values()) {
+            int size = maxRecipients > 0 ? maxRecipients : group.size();
+            for (int start = 0; start < group.size(); start += size) {
+                List<Address> chunk = group.subList(start, Math.min(group.size(), start + size));
+                transactions.add(chunk.toArray(new Address[chunk.size()]));
+            }
+        }
+        return transactions;
+    }
+
+    /**
+     * Records a successful transaction.
+     *
+     * @param recipients the recipients of the transaction
+     */
+    public synchronized void sent(Address[] recipients) {
+        m_sent.addAll(Arrays.asList(recipients));
+    }
+
+    /**
+     * Records a failed transaction.
+     *
+     * @param recipients the recipients of the transaction
+     * @param failure    the failure
+     */
+    public synchronized void failed(Address[] recipients, Exception failure) {
+        m_failures.add(failure);
+        // Recipients of a permanent failure must not be retried.
+        List<Address> unsent = RetryPolicy.isTransient(failure) ? m_unsent : m_invalid;
+        if (failure instanceof SendFailedException) {
+            SendFailedException e = (SendFailedException) failure;
+            if (e.getValidSentAddresses() != null || e.getValidUnsentAddresses() != null
+                    || e.getInvalidAddresses() != null) {
+                add(m_sent, e.getValidSentAddresses());
+                add(unsent, e.getValidUnsentAddresses());
+                add(m_invalid, e.getInvalidAddresses());
+                return;
+            }
+        }
+        unsent.addAll(Arrays.asList(recipients));
+    }
+
+    /**
+     * Gets the outcome of the message.
+     *
+     * @throws Exception if a transaction failed: the failure itself if every
+     *                   transaction failed the same way without rejecting any
+     *                   recipient (relay unreachable...), a {@link SendFailedException}
+     *                   listing the sent, unsent and invalid recipients otherwise
+     */
+    public synchronized void check() throws Exception {
+        if (m_failures.isEmpty()) {
+            return;
+        }
+        Exception first = m_failures.get(0);
+        if (m_sent.isEmpty() && m_invalid.isEmpty() && !(first instanceof SendFailedException)) {
+            throw first;
+        }
+        SendFailedException failure = new SendFailedException(
+                m_invalid.isEmpty() ? "Some recipients were not sent" : "Invalid Addresses",
+                first,
+                m_sent.toArray(new Address[m_sent.size()]),
+                m_unsent.toArray(new Address[m_unsent.size()]),
+                m_invalid.toArray(new Address[m_invalid.size()]));
+        for (int i = 1; i < m_failures.size(); i++) {
+            Exception next = m_failures.get(i);
+            if (next instanceof MessagingException) {
+                failure.setNextException(next);
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Adds addresses to a list.
+     *
+     * @param list      the list
+     * @param addresses the addresses, may be <code>null</code>
+     */
+    private static void add(List<Address> list, Address[] addresses) {
+        if (addresses != null) {
+            list.addAll(Arrays.asList(addresses));
+        }
+    }
+
+}
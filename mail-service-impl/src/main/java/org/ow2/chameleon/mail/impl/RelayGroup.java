@@ -0,0 +1,333 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.AddressException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The SMTP relays of a sender, in order of preference, each guarded by a
+ * circuit breaker. After <tt>failures</tt> consecutive connection failures,
+ * the circuit of a relay opens: the relay is skipped, so sends do not pay
+ * a connection timeout, and the next relay is used. Once <tt>openTime</tt>
+ * milliseconds have elapsed, the circuit is half-open: one send probes the
+ * relay, closing the circuit if it succeeds, or keeping it open for another
+ * period otherwise.
+ */
+public class RelayGroup {
+
+    /**
+     * A relay and its circuit breaker.
+     */
+    public static final class Relay {
+
+        /**
+         * The host.
+         */
+        private final String m_host;
+
+        /**
+         * The port.
+         */
+        private final int m_port;
+
+        /**
+         * Number of consecutive failures.
+         */
+        private int m_failures;
+
+        /**
+         * Time (ms) the circuit was opened or last probed, 0 if closed.
+         */
+        private long m_openedAt;
+
+        /**
+         * Creates a relay.
+         *
+         * @param host the host
+         * @param port the port
+         */
+        Relay(String host, int port) {
+            m_host = host;
+            m_port = port;
+        }
+
+        /**
+         * Gets the host.
+         *
+         * @return the host
+         */
+        public String host() {
+            return m_host;
+        }
+
+        /**
+         * Gets the port.
+         *
+         * @return the port
+         */
+        public int port() {
+            return m_port;
+        }
+
+        /**
+         * Gets the key of the relay, used to pool its connections.
+         *
+         * @return <tt>host:port</tt>
+         */
+        public String key() {
+            return m_host + ":" + m_port;
+        }
+
+        /**
+         * Is the circuit open? A relay whose circuit is open is not used,
+         * except to probe it.
+         *
+         * @return <code>true</code> if the relay is considered down
+         */
+        public synchronized boolean isOpen() {
+            return m_openedAt != 0;
+        }
+
+        /**
+         * Gets the number of consecutive failures.
+         *
+         * @return the number of failures since the last success
+         */
+        public synchronized int getFailureCount() {
+            return m_failures;
+        }
+
+        /**
+         * Records a successful exchange with the relay, closing its circuit.
+         */
+        public synchronized void success() {
+            if (m_openedAt != 0) {
+                LOGGER.info("The SMTP relay " + key() + " is up again");
+            }
+            m_failures = 0;
+            m_openedAt = 0;
+        }
+
+        /**
+         * Records a failure of the relay.
+         *
+         * @param threshold the number of consecutive failures opening the circuit
+         */
+        synchronized void failure(int threshold) {
+            m_failures++;
+            if (m_openedAt != 0 || m_failures >= threshold) {
+                if (m_openedAt == 0) {
+                    LOGGER.warn("The SMTP relay " + key() + " is down after " + m_failures + " failures");
+                }
+                m_openedAt = System.currentTimeMillis();
+            }
+        }
+
+        /**
+         * Checks whether the relay can be used, and starts a probe if its
+         * circuit is half-open.
+         *
+         * @param openTime the time (ms) the circuit stays open
+         * @return <code>true</code> if the relay can be used
+         */
+        synchronized boolean acquire(long openTime) {
+            if (m_openedAt == 0) {
+                return true;
+            }
+            long now = System.currentTimeMillis();
+            if (now - m_openedAt < openTime) {
+                return false;
+            }
+            // Half-open: this caller probes the relay, the others wait for another period.
+            m_openedAt = now;
+            return true;
+        }
+
+        /**
+         * @return the key of the relay
+         * @see java.lang.Object#toString()
+         */
+        public String toString() {
+            return key();
+        }
+    }
+
+    /**
+     * The logger.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(RelayGroup.class.getName());
+
+    /**
+     * The relays, in order of preference.
+     */
+    private final List<Relay> m_relays;
+
+    /**
+     * Number of consecutive failures opening a circuit.
+     */
+    private final int m_threshold;
+
+    /**
+     * Time (ms) a circuit stays open before a probe.
+     */
+    private final long m_openTime;
+
+    /**
+     * Creates a group.
+     *
+     * @param relays      the relays, <tt>host[:port]</tt> separated by commas, <code>null</code> or
+     *                    empty to use the default relay only
+     * @param defaultHost the default relay host
+     * @param defaultPort the default relay port, also used for relays without port
+     * @param threshold   the number of consecutive failures opening a circuit
+     * @param openTime    the time (ms) a circuit stays open before a probe
+     * @throws IllegalArgumentException if a port is invalid
+     */
+    public RelayGroup(String relays, String defaultHost, int defaultPort, int threshold, long openTime) {
+        List<Relay> list = new ArrayList<Relay>();
+        if (relays != null && relays.trim().length() > 0) {
+            for (String relay : relays.split(",")) {
+                relay = relay.trim();
+                int colon = relay.lastIndexOf(':');
+                if (colon > 0) {
+                    list.add(new Relay(relay.substring(0, colon), Integer.parseInt(relay.substring(colon + 1))));
+                } else if (relay.length() > 0) {
+                    list.add(new Relay(relay, defaultPort));
+                }
+            }
+        }
+        if (list.isEmpty()) {
+            list.add(new Relay(defaultHost, defaultPort));
+        }
+        m_relays = Collections.unmodifiableList(list);
+        m_threshold = Math.max(1, threshold);
+        m_openTime = openTime;
+    }
+
+    /**
+     * Gets the relays.
+     *
+     * @return the relays, in order of preference
+     */
+    public List<Relay> getRelays() {
+        return m_relays;
+    }
+
+    /**
+     * Gets a relay by key.
+     *
+     * @param key the key, <tt>host:port</tt>
+     * @return the relay, <code>null</code> if unknown
+     */
+    public Relay get(String key) {
+        for (Relay relay : m_relays) {
+            if (relay.key().equals(key)) {
+                return relay;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Selects the preferred relay which can be used.
+     *
+     * @param excluded the relays already tried, may be <code>null</code>
+     * @return the relay, <code>null</code> if all the circuits are open
+     */
+    public Relay select(Collection<Relay> excluded) {
+        for (Relay relay : m_relays) {
+            if ((excluded == null || !excluded.contains(relay)) && relay.acquire(m_openTime)) {
+                return relay;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Records a failure of a relay.
+     *
+     * @param relay the relay
+     */
+    public void failure(Relay relay) {
+        relay.failure(m_threshold);
+    }
+
+    /**
+     * Records the outcome of an exchange with a relay. Only failures of the
+     * relay itself (connection failures, 421 replies) are failures, the
+     * rejection of a mail shows that the relay is up.
+     *
+     * @param relay   the relay
+     * @param failure the failure, <code>null</code> if successful
+     */
+    public void record(Relay relay, Exception failure) {
+        if (relay == null) {
+            return;
+        }
+        if (failure != null && isRelayFailure(failure)) {
+            failure(relay);
+        } else {
+            relay.success();
+        }
+    }
+
+    /**
+     * Creates the exception reported when no relay can be used.
+     *
+     * @param cause the last failure, may be <code>null</code>
+     * @return the exception
+     */
+    public MessagingException unavailable(Exception cause) {
+        return new MessagingException("No SMTP relay available " + m_relays, cause);
+    }
+
+    /**
+     * Checks whether a failure shows that the relay is down: an I/O error,
+     * or a 421 reply (service not available).
+     *
+     * @param e the failure
+     * @return <code>true</code> if the relay is down
+     */
+    public static boolean isRelayFailure(Exception e) {
+        if (!(e instanceof MessagingException) || e instanceof AddressException) {
+            return false;
+        }
+        if (RetryPolicy.getReturnCode(e) == 421) {
+            return true;
+        }
+        Throwable cause = e;
+        while (cause != null) {
+            if (cause instanceof IOException) {
+                return true;
+            }
+            Throwable next = cause.getCause();
+            if (next == cause) {
+                break;
+            }
+            cause = next;
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.impl;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPSenderFailedException;
+import org.ow2.chameleon.mail.Mail;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import java.io.FileNotFoundException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Decides whether and when a failed mail is sent again.
+ * <ul>
+ * <li>SMTP <tt>4xx</tt> replies (greylisting, mailbox busy...) and connection
+ * failures are transient: the mail is sent again.</li>
+ * <li>SMTP <tt>5xx</tt> replies are permanent.</li>
+ * <li>When some recipients are rejected, only the <em>valid unsent</em>
+ * addresses are retried; the <em>invalid</em> ones are permanent failures.</li>
+ * </ul>
+ * The delay between two attempts grows exponentially, with a random jitter
+ * avoiding synchronized retries.
+ */
+public class RetryPolicy {
+
+    /**
+     * Maximum number of attempts, including the first one.
+     */
+    private final int m_attempts;
+
+    /**
+     * Delay (ms) before the second attempt.
+     */
+    private final long m_delay;
+
+    /**
+     * Maximum delay (ms) between two attempts.
+     */
+    private final long m_maxDelay;
+
+    /**
+     * Jitter source.
+     */
+    private final Random m_random = new Random();
+
+    /**
+     * Creates a retry policy.
+     *
+     * @param retries  the number of retries, 0 disables retries
+     * @param delay    the delay (ms) before the first retry
+     * @param maxDelay the maximum delay (ms) between two attempts
+     */
+    public RetryPolicy(int retries, long delay, long maxDelay) {
+        m_attempts = retries + 1;
+        m_delay = delay;
+        m_maxDelay = maxDelay;
+    }
+
+    /**
+     * Are retries enabled?
+     *
+     * @return <code>true</code> if failed mails can be sent again
+     */
+    public boolean isEnabled() {
+        return m_attempts > 1;
+    }
+
+    /**
+     * Checks whether another attempt is allowed.
+     *
+     * @param attempt the number of attempts already done
+     * @return <code>true</code> if the mail can be sent again
+     */
+    public boolean canRetry(int attempt) {
+        return attempt < m_attempts;
+    }
+
+    /**
+     * Computes the delay before the next attempt: the exponential delay
+     * is randomly reduced by up to half.
+     *
+     * @param attempt the number of attempts already done
+     * @return the delay in milliseconds
+     */
+    public long getDelay(int attempt) {
+        long delay = m_delay;
+        for (int i = 1; i < attempt && delay < m_maxDelay; i++) {
+            delay = delay * 2;
+        }
+        delay = Math.min(delay, m_maxDelay);
+        synchronized (m_random) {
+            return delay / 2 + (long) (m_random.nextDouble() * (delay / 2));
+        }
+    }
+
+    /**
+     * Gets the SMTP reply code carried by an exception.
+     *
+     * @param e the exception
+     * @return the reply code, -1 if unknown
+     */
+    public static int getReturnCode(Exception e) {
+        if (e instanceof SMTPSendFailedException) {
+            return ((SMTPSendFailedException) e).getReturnCode();
+        }
+        if (e instanceof SMTPSenderFailedException) {
+            return ((SMTPSenderFailedException) e).getReturnCode();
+        }
+        if (e instanceof SMTPAddressFailedException) {
+            return ((SMTPAddressFailedException) e).getReturnCode();
+        }
+        return -1;
+    }
+
+    /**
+     * Checks whether a failure is transient.
+     *
+     * @param e the failure
+     * @return <code>true</code> if sending the mail again may succeed
+     */
+    public static boolean isTransient(Exception e) {
+        int code = getReturnCode(e);
+        if (code >= 400 && code < 500) {
+            return true;
+        }
+        if (code >= 500) {
+            return false;
+        }
+        if (e instanceof SendFailedException) {
+            Address[] unsent = ((SendFailedException) e).getValidUnsentAddresses();
+            return unsent != null && unsent.length > 0;
+        }
+        // Connection failures.
+        return e instanceof MessagingException && !(e instanceof AddressException);
+    }
+
+    /**
+     * Computes the mail to send again after a transient failure.
+     *
+     * @param mail the failed mail
+     * @param e    the failure
+     * @return the mail to send again, restricted to the recipients worth retrying,
+     *         <code>null</code> if the failure is permanent
+     */
+    public static Mail getRetry(Mail mail, Exception e) {
+        if (!isTransient(e)) {
+            return null;
+        }
+        if (e instanceof SendFailedException) {
+            SendFailedException failure = (SendFailedException) e;
+            if (isNotEmpty(failure.getInvalidAddresses()) || isNotEmpty(failure.getValidSentAddresses())) {
+                return restrict(mail, failure.getValidUnsentAddresses());
+            }
+        }
+        return mail;
+    }
+
+    /**
+     * Computes the part of a mail permanently rejected.
+     *
+     * @param mail the failed mail
+     * @param e    the failure
+     * @return the mail restricted to the rejected recipients, <code>null</code> if
+     *         no recipient was rejected
+     */
+    public static Mail getRejected(Mail mail, Exception e) {
+        if (e instanceof SendFailedException) {
+            Address[] invalid = ((SendFailedException) e).getInvalidAddresses();
+            if (invalid != null && invalid.length > 0) {
+                return restrict(mail, invalid);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Copies a mail, keeping only the given 'to' and 'cc' recipients.
+     *
+     * @param mail       the mail
+     * @param recipients the recipients to keep
+     * @return the copy, <code>null</code> if no recipient is kept
+     */
+    static Mail restrict(Mail mail, Address[] recipients) {
+        if (recipients == null || recipients.length == 0) {
+            return null;
+        }
+        Set<String> kept = new HashSet<String>();
+        for (Address address : recipients) {
+            kept.add(normalize(address.toString()));
+        }
+        Mail copy;
+        try {
+            copy = new Mail(mail);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        for (String to : mail.to()) {
+            if (!kept.contains(normalize(to))) {
+                copy.removeTo(to);
+            }
+        }
+        for (String cc : mail.cc()) {
+            if (!kept.contains(normalize(cc))) {
+                copy.removeCC(cc);
+            }
+        }
+        if (copy.to().isEmpty()) {
+            // Only 'cc' addresses are kept, use them as 'to'.
+            List<String> cc = copy.cc();
+            for (String address : cc) {
+                copy.removeCC(address);
+            }
+            copy.to(cc);
+        }
+        return copy;
+    }
+
+    /**
+     * Checks whether an address array contains addresses.
+     *
+     * @param addresses the addresses, may be <code>null</code>
+     * @return <code>true</code> if the array is not empty
+     */
+    private static boolean isNotEmpty(Address[] addresses) {
+        return addresses != null && addresses.length > 0;
+    }
+
+    /**
+     * Normalizes an address to compare it.
+     *
+     * @param address the address
+     * @return the lower-case mailbox
+     */
+    private static String normalize(String address) {
+        try {
+            return new InternetAddress(address).getAddress().toLowerCase();
+        } catch (AddressException e) {
+            return address.toLowerCase();
+        }
+    }
+
+}
@@ -15,42 +15,72 @@
 package org.ow2.chameleon.mail.impl;
 
 import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Dictionary;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.activation.DataHandler;
 import javax.activation.DataSource;
 import javax.activation.FileDataSource;
-import javax.mail.Authenticator;
+import javax.mail.Address;
 import javax.mail.Message;
+import javax.mail.MessagingException;
 import javax.mail.Multipart;
 import javax.mail.SendFailedException;
-import javax.mail.Session;
 import javax.mail.Transport;
+import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 import org.apache.felix.ipojo.annotations.Component;
+import org.apache.felix.ipojo.annotations.Invalidate;
 import org.apache.felix.ipojo.annotations.Property;
 import org.apache.felix.ipojo.annotations.Provides;
 import org.apache.felix.ipojo.annotations.Requires;
 import org.apache.felix.ipojo.annotations.ServiceProperty;
+import org.apache.felix.ipojo.annotations.Updated;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventAdmin;
+import org.ow2.chameleon.mail.AttachmentSource;
 import org.ow2.chameleon.mail.Mail;
+import org.ow2.chameleon.mail.MailSenderMetrics;
 import org.ow2.chameleon.mail.MailSenderService;
+import org.ow2.chameleon.mail.MailTemplate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Mail Sender Service Implementation based on SMTP.
  */
 @Component(immediate=true, name="org.ow2.chameleon.mail.smtp")
 @Provides
-public class SMTPMailSender implements MailSenderService {
+public class SMTPMailSender implements MailSenderService, MailSenderMetrics {
 
 	/**
 	 * Type of connections.
@@ -61,6 +91,39 @@ public class SMTPMailSender implements MailSenderService {
 		SSL
 	}
 
+	/**
+	 * Content of the events published on {@link MailSenderService#SENT_TOPIC}.
+	 */
+	public enum EventPayload {
+		/**
+		 * The envelope (addresses, subject) and the outcome.
+		 */
+		ENVELOPE,
+		/**
+		 * The envelope, the outcome, and the size and hash code of the body.
+		 */
+		SUMMARY,
+		/**
+		 * The envelope, the outcome, and the body.
+		 */
+		FULL;
+
+		/**
+		 * Parses a payload name: <tt>envelope</tt>, <tt>summary</tt> or <tt>full</tt>.
+		 * @param name the name
+		 * @return the payload
+		 * @throws IllegalArgumentException if the name is unknown
+		 */
+		public static EventPayload parse(String name) {
+			return valueOf(name.trim().toUpperCase());
+		}
+	}
+
+	/**
+	 * The logger.
+	 */
+	private Logger m_logger = LoggerFactory.getLogger(SMTPMailSender.class.getName());
+
 	/**
 	 * The event admin if present.
 	 */
@@ -68,199 +131,1686 @@ public class SMTPMailSender implements MailSenderService {
 	private EventAdmin m_eventAdmin;
 
 	/**
-	 * Configuration properties.
+	 * The send context, rebuilt when the sender is reconfigured.
+	 */
+	private volatile SendContext m_context;
+
+	/**
+	 * Enables / Disabled debugging.
+	 */
+	@Property(name="smtp.debug", value="false")
+	private boolean m_debug;
+
+	/**
+	 * The mail address of the sender.
+	 */
+	@Property(name="smtp.from", mandatory=true)
+	@ServiceProperty(name=MailSenderService.FROM_PROPERTY)
+	private String m_from;
+
+	/**
+	 * The port.
+	 */
+	@Property(name="smtp.port", mandatory=true)
+	private int m_port;
+
+	/**
+	 * The host.
+	 */
+	@Property(name="smtp.host", mandatory=true)
+	private String m_host;
+
+	/**
+	 * Does quit should wait until termination.
+	 */
+	@Property(name="smtp.quitwait", value="false")
+	private boolean m_quitWait;
+
+	/**
+	 * Enables /Disables SMTPS.
+	 */
+	@Property(name="smtp.useSMTPS", value="false")
+	private boolean m_useSMTPS;
+
+
+	/**
+	 * The username.
+	 */
+	@Property(name="smtp.username")
+	private String m_username;
+
+	/**
+	 * The password.
+	 */
+	@Property(name="smtp.password")
+	private String m_password;
+
+	/**
+	 * The connection type.
+	 */
+	@Property(name="smtp.connection", mandatory=true)
+	private Connection m_connection;
+
+	/**
+	 * Maximum number of pooled connections per host, 0 disables pooling.
+	 */
+	@Property(name="smtp.pool.size", value="4")
+	private int m_poolSize;
+
+	/**
+	 * Time (ms) after which an idle pooled connection is closed.
+	 */
+	@Property(name="smtp.pool.maxIdle", value="60000")
+	private long m_poolMaxIdle;
+
+	/**
+	 * Time (ms) after which a pooled connection is not reused anymore.
+	 */
+	@Property(name="smtp.pool.maxAge", value="300000")
+	private long m_poolMaxAge;
+
+	/**
+	 * Idle time (ms) after which a pooled connection is checked (NOOP) before reuse.
+	 */
+	@Property(name="smtp.pool.validateAfter", value="5000")
+	private long m_poolValidateAfter;
+
+	/**
+	 * Maximum time (ms) to wait for a pooled connection.
+	 */
+	@Property(name="smtp.pool.timeout", value="30000")
+	private long m_poolTimeout;
+
+	/**
+	 * The pool of connected transports.
+	 */
+	private volatile TransportPool m_pool;
+
+	/**
+	 * The relays, <tt>host[:port]</tt> separated by commas, in order of
+	 * preference. Mails are sent to the first relay which is up, the
+	 * others being used when it is down. If not set, <tt>smtp.host</tt>
+	 * and <tt>smtp.port</tt> are used.
+	 */
+	@Property(name="smtp.relays")
+	private String m_relayList;
+
+	/**
+	 * Number of consecutive connection failures after which a relay is
+	 * considered down: it is skipped instead of paying a connection timeout.
+	 */
+	@Property(name="smtp.breaker.failures", value="3")
+	private int m_breakerFailures;
+
+	/**
+	 * Time (ms) a relay considered down is skipped, before a send probes it.
+	 */
+	@Property(name="smtp.breaker.openTime", value="30000")
+	private long m_breakerOpenTime;
+
+	/**
+	 * The relays and their health.
+	 */
+	private volatile RelayGroup m_relays;
+
+	/**
+	 * Adapts the number of concurrent SMTP transactions to the relay:
+	 * the limit grows while the relay answers quickly, and is halved on a
+	 * 421 or 451 reply or when the latency rises.
+	 */
+	@Property(name="smtp.adaptive", value="false")
+	private boolean m_adaptive;
+
+	/**
+	 * Minimum number of concurrent SMTP transactions, with <tt>smtp.adaptive</tt>.
+	 */
+	@Property(name="smtp.adaptive.min", value="1")
+	private int m_adaptiveMin;
+
+	/**
+	 * Maximum number of concurrent SMTP transactions, with <tt>smtp.adaptive</tt>.
+	 * 0 uses <tt>smtp.pool.size</tt>, or 16 if pooling is disabled.
+	 */
+	@Property(name="smtp.adaptive.max", value="0")
+	private int m_adaptiveMax;
+
+	/**
+	 * Ratio to the usual latency above which a SMTP transaction shows that
+	 * the relay is overloaded, with <tt>smtp.adaptive</tt>. 0 ignores the latency.
+	 */
+	@Property(name="smtp.adaptive.latencyTolerance", value="2.0")
+	private double m_adaptiveTolerance;
+
+	/**
+	 * The adaptive concurrency limiter, <code>null</code> if disabled.
+	 */
+	private ConcurrencyLimiter m_concurrency;
+
+	/**
+	 * The content of the published events: <tt>envelope</tt>, <tt>summary</tt>
+	 * (the size and hash code of the body instead of the body) or <tt>full</tt>.
+	 * Large bodies are then not retained by the event admin queue.
+	 */
+	@Property(name="smtp.event.payload", value="full")
+	private String m_eventPayloadName;
+
+	/**
+	 * The content of the published events.
+	 */
+	private volatile EventPayload m_eventPayload;
+
+	/**
+	 * Enables / Disables the publication of the metrics over JMX.
+	 */
+	@Property(name="smtp.jmx", value="true")
+	private boolean m_jmx;
+
+	/**
+	 * The name of the metrics MBean, <tt>smtp.host:smtp.port</tt> if not set.
+	 */
+	@Property(name="smtp.jmx.name")
+	private String m_jmxName;
+
+	/**
+	 * The latency histograms and the outcome counters.
+	 */
+	private SendMetrics m_metrics;
+
+	/**
+	 * The name of the registered metrics MBean, <code>null</code> if not registered.
+	 */
+	private ObjectName m_mbean;
+
+	/**
+	 * Number of threads sending mails asynchronously.
+	 */
+	@Property(name="smtp.async.threads", value="2")
+	private int m_asyncThreads;
+
+	/**
+	 * Maximum number of mails waiting to be sent asynchronously.
+	 */
+	@Property(name="smtp.async.queue", value="1000")
+	private int m_asyncQueue;
+
+	/**
+	 * What to do when the asynchronous queue is full: <tt>block</tt>
+	 * (wait for room up to <tt>smtp.async.blockTimeout</tt>), <tt>reject</tt>,
+	 * <tt>drop-oldest</tt> (the oldest queued mail fails) or <tt>spill</tt>
+	 * (the mail is written to the outbound spool, <tt>smtp.spool.dir</tt>
+	 * must be set).
+	 */
+	@Property(name="smtp.async.policy", value="reject")
+	private String m_asyncPolicy;
+
+	/**
+	 * Maximum time (ms) to wait for room in the asynchronous queue with the
+	 * <tt>block</tt> policy.
+	 */
+	@Property(name="smtp.async.blockTimeout", value="5000")
+	private long m_asyncBlockTimeout;
+
+	/**
+	 * The mails waiting to be sent asynchronously.
+	 */
+	private OutboundQueue m_queue;
+
+	/**
+	 * The executor sending mails asynchronously.
+	 */
+	private ExecutorService m_executor;
+
+	/**
+	 * The weights of the lanes of the asynchronous queue: high, normal and
+	 * low priority. Out of 12 mails taken from busy lanes, 8 are high priority
+	 * mails, 3 normal and 1 low with the default weights.
+	 */
+	@Property(name="smtp.lanes.weights", value="8,3,1")
+	private String m_laneWeights;
+
+	/**
+	 * Number of sending threads, and of pooled connections per relay,
+	 * reserved to the high priority mails. High priority mails are then not
+	 * delayed by a backlog of bulk mails. The reservation is opt-in: the
+	 * default, 0, keeps every thread and connection for all the mails
+	 * (1 is a good start when priorities are used).
+	 */
+	@Property(name="smtp.lanes.reserved", value="0")
+	private int m_laneReserved;
+
+	/**
+	 * The executor reserved to the high priority mails, <code>null</code> if none.
+	 */
+	private ExecutorService m_priorityExecutor;
+
+	/**
+	 * Time window (ms) during which the mails sent with {@link #send(Mail)}
+	 * to the same recipients are coalesced into a digest, 0 disables
+	 * coalescing. The first mail of a window is sent immediately. High
+	 * priority mails and mails having an idempotency key are never coalesced.
+	 */
+	@Property(name="smtp.digest.window", value="0")
+	private long m_digestWindow;
+
+	/**
+	 * Maximum number of mails per digest, a digest is sent before the end
+	 * of the window when reached.
+	 */
+	@Property(name="smtp.digest.maxMails", value="100")
+	private int m_digestMaxMails;
+
+	/**
+	 * Only coalesces the mails having the same subject.
+	 */
+	@Property(name="smtp.digest.bySubject", value="false")
+	private boolean m_digestBySubject;
+
+	/**
+	 * Coalesces the mails into digests, <code>null</code> if disabled.
+	 */
+	private DigestCoalescer m_digest;
+
+	/**
+	 * Maximum number of idempotency keys remembered.
+	 */
+	@Property(name="smtp.dedupe.size", value="10000")
+	private int m_dedupeSize;
+
+	/**
+	 * Time (ms) the idempotency key of a sent mail is remembered.
+	 */
+	@Property(name="smtp.dedupe.window", value="86400000")
+	private long m_dedupeWindow;
+
+	/**
+	 * File persisting the idempotency keys of the sent mails, so duplicates
+	 * are detected after a restart. Keys are kept in memory only if not set.
+	 */
+	@Property(name="smtp.dedupe.file")
+	private String m_dedupeFile;
+
+	/**
+	 * The idempotency keys of the mails being sent or sent.
+	 */
+	private DedupeStore m_dedupe;
+
+	/**
+	 * Directory of the outbound spool. If set, {@link #send(Mail)} stores the
+	 * mail on disk and returns, the mail being sent in background.
+	 */
+	@Property(name="smtp.spool.dir")
+	private String m_spoolDir;
+
+	/**
+	 * Size (bytes) of the spool segment files.
+	 */
+	@Property(name="smtp.spool.segmentSize", value="16777216")
+	private long m_spoolSegmentSize;
+
+	/**
+	 * Time (ms) to wait before sending again a spooled mail when the relay is unreachable.
+	 */
+	@Property(name="smtp.spool.retryDelay", value="30000")
+	private long m_spoolRetryDelay;
+
+	/**
+	 * The outbound spool, <code>null</code> if disabled.
+	 */
+	private MailSpool m_spool;
+
+	/**
+	 * The thread sending the spooled mails.
+	 */
+	private Thread m_spoolThread;
+
+	/**
+	 * Number of times a mail is sent again after a transient failure
+	 * (SMTP 4xx reply, connection failure), 0 disables retries.
+	 */
+	@Property(name="smtp.retry.max", value="0")
+	private int m_retryMax;
+
+	/**
+	 * Delay (ms) before the first retry, doubled for each following retry.
+	 */
+	@Property(name="smtp.retry.delay", value="30000")
+	private long m_retryDelay;
+
+	/**
+	 * Maximum delay (ms) between two retries.
+	 */
+	@Property(name="smtp.retry.maxDelay", value="1800000")
+	private long m_retryMaxDelay;
+
+	/**
+	 * The retry policy.
+	 */
+	private RetryPolicy m_retry;
+
+	/**
+	 * Schedules the retries.
+	 */
+	private ScheduledExecutorService m_scheduler;
+
+	/**
+	 * The mails whose retry is scheduled, by completion handle. The retries
+	 * still scheduled when the sender stops are failed.
+	 */
+	private final Map<MailFuture, Mail> m_scheduled = new ConcurrentHashMap<MailFuture, Mail>();
+
+	/**
+	 * Maximum number of mails sent per second, 0 for no limit.
+	 */
+	@Property(name="smtp.rate.global", value="0")
+	private double m_rateGlobal;
+
+	/**
+	 * Maximum number of mails sent per second to a relay (<tt>host:port</tt>),
+	 * 0 for no limit.
+	 */
+	@Property(name="smtp.rate.host", value="0")
+	private double m_rateHost;
+
+	/**
+	 * Maximum number of mails sent per second to a recipient domain, 0 for no limit.
+	 */
+	@Property(name="smtp.rate.domain", value="0")
+	private double m_rateDomain;
+
+	/**
+	 * Number of mails which can be sent at once after an idle period.
+	 */
+	@Property(name="smtp.rate.burst", value="10")
+	private double m_rateBurst;
+
+	/**
+	 * Share (between 0 and 1) of <tt>smtp.rate.global</tt> reserved to the
+	 * high priority mails. The other mails cannot use it, high priority
+	 * mails can use the whole rate. The reservation is opt-in: the default,
+	 * 0, gives the whole rate to all the mails (0.2 is a good start when
+	 * priorities are used).
+	 */
+	@Property(name="smtp.rate.highShare", value="0")
+	private double m_rateHighShare;
+
+	/**
+	 * The rate limiter.
+	 */
+	private RateLimiter m_limiter;
+
+	/**
+	 * Enables one SMTP transaction per recipient domain, so a slow or
+	 * rejecting domain does not delay the other recipients.
+	 */
+	@Property(name="smtp.partition.byDomain", value="false")
+	private boolean m_partitionByDomain;
+
+	/**
+	 * Maximum number of recipients per SMTP transaction, 0 for no limit.
+	 */
+	@Property(name="smtp.partition.maxRecipients", value="0")
+	private int m_partitionMaxRecipients;
+
+	/**
+	 * Runs the transactions of a partitioned mail in parallel,
+	 * <code>null</code> if partitioning is disabled.
+	 */
+	private ExecutorService m_partitionExecutor;
+
+	/**
+	 * Enables opening the connection while the message is built, when no
+	 * pooled connection is available. When <tt>smtp.pool.size</tt>
+	 * connections are already being opened, the connection is opened once
+	 * the message is built.
+	 */
+	@Property(name="smtp.connect.overlap", value="true")
+	private boolean m_connectOverlap;
+
+	/**
+	 * Opens connections while messages are built, with at most
+	 * <tt>smtp.pool.size</tt> threads.
+	 */
+	private ExecutorService m_connectExecutor;
+
+	/**
+	 * Maximum size (bytes) of the cache of encoded file attachments,
+	 * 0 disables the cache. Files are then read and encoded for each mail.
+	 */
+	@Property(name="smtp.attachmentCache.size", value="0")
+	private long m_attachmentCacheSize;
+
+	/**
+	 * The cache of encoded file attachments, <code>null</code> if disabled.
+	 */
+	private EncodedAttachmentCache m_attachmentCache;
+
+	/**
+	 * The SMTP client: <tt>javamail</tt> (one blocking connection per
+	 * sending thread) or <tt>nio</tt> (connections multiplexed by a single
+	 * thread, commands pipelined). The <tt>nio</tt> engine only supports
+	 * plain connections, javamail is used for SSL and TLS.
+	 */
+	@Property(name="smtp.engine", value="javamail")
+	private String m_engine;
+
+	/**
+	 * The execution mode of the sending threads: <tt>platform</tt> or
+	 * <tt>virtual</tt>. Virtual threads are cheap, <tt>smtp.async.threads</tt>
+	 * can then be raised to send thousands of mails concurrently. Platform
+	 * threads are used on JVMs without virtual threads.
+	 */
+	@Property(name="smtp.threads", value="platform")
+	private String m_threads;
+
+	/**
+	 * The non-blocking SMTP client, <code>null</code> if javamail is used.
+	 */
+	private volatile NioSmtpEngine m_nio;
+
+	/**
+	 * Creates a SMTPMailSender for testing purpose.
+	 * @param connection the connection
+	 * @param host the host
+	 * @param port the port
+	 * @param from the sender email address
+	 * @param username the username
+	 * @param password the password
+	 * @param quitwait if the receiver must wait until termination completion
+	 * @param useSMTPs enables SMTPs
+	 */
+	public SMTPMailSender(Connection connection, String host, int port, String from,
+			final String username, final String password, boolean quitwait, boolean useSMTPs) {
+		this(connection, host, port, from, username, password, quitwait, useSMTPs, new Properties());
+	}
+
+	/**
+	 * Creates a SMTPMailSender for testing purpose.
+	 * @param connection the connection
+	 * @param host the host
+	 * @param port the port
+	 * @param from the sender email address
+	 * @param username the username
+	 * @param password the password
+	 * @param quitwait if the receiver must wait until termination completion
+	 * @param useSMTPs enables SMTPs
+	 * @param options the other settings, using the iPOJO property names (<tt>smtp.pool.size</tt>...)
+	 */
+	public SMTPMailSender(Connection connection, String host, int port, String from,
+			final String username, final String password, boolean quitwait, boolean useSMTPs,
+			Properties options) {
+
+		this.m_from = from;
+
+		this.m_connection = connection;
+		this.m_username = username;
+		this.m_password = password;
+
+		this.m_useSMTPS = useSMTPs;
+		this.m_port = port;
+		this.m_host = host;
+
+		m_debug = true;
+		this.m_quitWait = quitwait;
+		this.m_useSMTPS = useSMTPs;
+
+		m_poolSize = Integer.parseInt(options.getProperty("smtp.pool.size", "4"));
+		m_poolMaxIdle = Long.parseLong(options.getProperty("smtp.pool.maxIdle", "60000"));
+		m_poolMaxAge = Long.parseLong(options.getProperty("smtp.pool.maxAge", "300000"));
+		m_poolValidateAfter = Long.parseLong(options.getProperty("smtp.pool.validateAfter", "5000"));
+		m_poolTimeout = Long.parseLong(options.getProperty("smtp.pool.timeout", "30000"));
+		m_relayList = options.getProperty("smtp.relays");
+		m_breakerFailures = Integer.parseInt(options.getProperty("smtp.breaker.failures", "3"));
+		m_breakerOpenTime = Long.parseLong(options.getProperty("smtp.breaker.openTime", "30000"));
+		m_adaptive = Boolean.parseBoolean(options.getProperty("smtp.adaptive", "false"));
+		m_adaptiveMin = Integer.parseInt(options.getProperty("smtp.adaptive.min", "1"));
+		m_adaptiveMax = Integer.parseInt(options.getProperty("smtp.adaptive.max", "0"));
+		m_adaptiveTolerance = Double.parseDouble(options.getProperty("smtp.adaptive.latencyTolerance", "2.0"));
+		m_asyncThreads = Integer.parseInt(options.getProperty("smtp.async.threads", "2"));
+		m_asyncQueue = Integer.parseInt(options.getProperty("smtp.async.queue", "1000"));
+		m_asyncPolicy = options.getProperty("smtp.async.policy", "reject");
+		m_asyncBlockTimeout = Long.parseLong(options.getProperty("smtp.async.blockTimeout", "5000"));
+		m_laneWeights = options.getProperty("smtp.lanes.weights", "8,3,1");
+		m_laneReserved = Integer.parseInt(options.getProperty("smtp.lanes.reserved", "0"));
+		m_digestWindow = Long.parseLong(options.getProperty("smtp.digest.window", "0"));
+		m_digestMaxMails = Integer.parseInt(options.getProperty("smtp.digest.maxMails", "100"));
+		m_digestBySubject = Boolean.parseBoolean(options.getProperty("smtp.digest.bySubject", "false"));
+		m_dedupeSize = Integer.parseInt(options.getProperty("smtp.dedupe.size", "10000"));
+		m_dedupeWindow = Long.parseLong(options.getProperty("smtp.dedupe.window", "86400000"));
+		m_dedupeFile = options.getProperty("smtp.dedupe.file");
+		m_spoolDir = options.getProperty("smtp.spool.dir");
+		m_spoolSegmentSize = Long.parseLong(options.getProperty("smtp.spool.segmentSize", "16777216"));
+		m_spoolRetryDelay = Long.parseLong(options.getProperty("smtp.spool.retryDelay", "30000"));
+		m_retryMax = Integer.parseInt(options.getProperty("smtp.retry.max", "0"));
+		m_retryDelay = Long.parseLong(options.getProperty("smtp.retry.delay", "30000"));
+		m_retryMaxDelay = Long.parseLong(options.getProperty("smtp.retry.maxDelay", "1800000"));
+		m_rateGlobal = Double.parseDouble(options.getProperty("smtp.rate.global", "0"));
+		m_rateHost = Double.parseDouble(options.getProperty("smtp.rate.host", "0"));
+		m_rateDomain = Double.parseDouble(options.getProperty("smtp.rate.domain", "0"));
+		m_rateBurst = Double.parseDouble(options.getProperty("smtp.rate.burst", "10"));
+		m_rateHighShare = Double.parseDouble(options.getProperty("smtp.rate.highShare", "0"));
+		m_partitionByDomain = Boolean.parseBoolean(options.getProperty("smtp.partition.byDomain", "false"));
+		m_partitionMaxRecipients = Integer.parseInt(options.getProperty("smtp.partition.maxRecipients", "0"));
+		m_attachmentCacheSize = Long.parseLong(options.getProperty("smtp.attachmentCache.size", "0"));
+		m_connectOverlap = Boolean.parseBoolean(options.getProperty("smtp.connect.overlap", "true"));
+		m_engine = options.getProperty("smtp.engine", "javamail");
+		m_threads = options.getProperty("smtp.threads", "platform");
+		m_eventPayloadName = options.getProperty("smtp.event.payload", "full");
+		m_jmx = Boolean.parseBoolean(options.getProperty("smtp.jmx", "true"));
+		m_jmxName = options.getProperty("smtp.jmx.name");
+		configure();
+	}
+
+	/**
+	 * Creates a SMTPMailSender (used by iPOJO).
+	 */
+	public SMTPMailSender() {
+		configure();
+	}
+
+	/**
+	 * Configures the sender.
+	 */
+	private void configure() {
+		m_metrics = new SendMetrics();
+		m_eventPayload = EventPayload.parse(m_eventPayloadName);
+		m_context = createContext();
+		m_relays = createRelays();
+		m_pool = createPool();
+		m_nio = createEngine();
+
+		boolean virtual = Threads.isVirtual(m_threads);
+		// The mails are bounded by the outbound queue, the executor only receives a task per queued mail.
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(m_asyncThreads, m_asyncThreads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), Threads.factory("smtp-sender", virtual));
+		executor.allowCoreThreadTimeOut(virtual);
+		m_executor = executor;
+		if (m_laneReserved > 0) {
+			ThreadPoolExecutor priority = new ThreadPoolExecutor(m_laneReserved, m_laneReserved, 60,
+					TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), Threads.factory("smtp-priority", virtual));
+			priority.allowCoreThreadTimeOut(virtual);
+			m_priorityExecutor = priority;
+		}
+
+		m_retry = new RetryPolicy(m_retryMax, m_retryDelay, m_retryMaxDelay);
+		if (m_adaptive) {
+			int max = m_adaptiveMax > 0 ? m_adaptiveMax : (m_poolSize > 0 ? m_poolSize : 16);
+			m_concurrency = new ConcurrencyLimiter(m_adaptiveMin, max, m_adaptiveMin, m_adaptiveTolerance);
+		}
+		m_limiter = new RateLimiter(m_rateGlobal, m_rateHost, m_rateDomain, m_rateBurst, m_rateHighShare);
+		if (m_attachmentCacheSize > 0) {
+			m_attachmentCache = new EncodedAttachmentCache(m_attachmentCacheSize);
+		}
+
+		// At most one connection opened per pooled connection, the others are opened when needed.
+		m_connectExecutor = new ThreadPoolExecutor(0, Math.max(1, m_poolSize), 60, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), Threads.factory("smtp-connect", virtual));
+
+		if (m_partitionByDomain || m_partitionMaxRecipients > 0) {
+			m_partitionExecutor = Executors.newCachedThreadPool(Threads.factory("smtp-partition", virtual));
+		}
+		m_scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "smtp-retry");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		OutboundQueue.Policy policy = OutboundQueue.Policy.parse(m_asyncPolicy);
+		if (policy == OutboundQueue.Policy.SPILL && (m_spoolDir == null || m_spoolDir.length() == 0)) {
+			m_logger.warn("The spill policy requires the outbound spool (smtp.spool.dir), using reject");
+			policy = OutboundQueue.Policy.REJECT;
+		}
+		m_queue = new OutboundQueue(m_asyncQueue, policy, m_asyncBlockTimeout,
+				OutboundQueue.parseWeights(m_laneWeights));
+
+		if (m_digestWindow > 0) {
+			m_digest = new DigestCoalescer(m_digestWindow, m_digestMaxMails, m_digestBySubject, m_scheduler,
+					new DigestCoalescer.Sink() {
+						public void send(Mail digest, int count) {
+							try {
+								sendAsync(digest);
+							} catch (RejectedExecutionException e) {
+								m_logger.warn("Cannot send a digest of " + count + " mails", e);
+								propagateToEventAdmin(digest, e);
+							}
+						}
+					});
+		}
+
+		try {
+			m_dedupe = new DedupeStore(m_dedupeSize, m_dedupeWindow,
+					m_dedupeFile == null || m_dedupeFile.length() == 0 ? null : new File(m_dedupeFile));
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot open the idempotency key store " + m_dedupeFile, e);
+		}
+
+		if (m_spoolDir != null && m_spoolDir.length() > 0) {
+			try {
+				m_spool = new MailSpool(new File(m_spoolDir), m_spoolSegmentSize);
+			} catch (IOException e) {
+				throw new IllegalStateException("Cannot open the outbound spool " + m_spoolDir, e);
+			}
+			m_spoolThread = Threads.create("smtp-spool", new Runnable() {
+				public void run() {
+					drain();
+				}
+			}, virtual);
+			m_spoolThread.setDaemon(true);
+			m_spoolThread.start();
+		}
+		if (m_jmx) {
+			register();
+		}
+	}
+
+	/**
+	 * Publishes the metrics on the platform MBean server, under
+	 * <tt>org.ow2.chameleon.mail:type=MailSender,name=</tt><i>smtp.jmx.name</i>.
+	 */
+	private void register() {
+		String name = m_jmxName == null || m_jmxName.length() == 0 ? m_host + ":" + m_port : m_jmxName;
+		try {
+			ObjectName mbean = new ObjectName("org.ow2.chameleon.mail:type=MailSender,name="
+					+ ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(
+					new StandardMBean(m_metrics, MailSenderMetrics.class), mbean);
+			m_mbean = mbean;
+		} catch (JMException e) {
+			m_logger.warn("Cannot publish the metrics of the sender " + name + " over JMX", e);
+		}
+	}
+
+	/**
+	 * Applies a new configuration: the send context and the connection
+	 * pool are rebuilt, the connections opened with the previous settings
+	 * are closed once released.
+	 */
+	@Updated
+	public void updated() {
+		SendContext context = createContext();
+		TransportPool previous = m_pool;
+		NioSmtpEngine previousEngine = m_nio;
+		m_eventPayload = EventPayload.parse(m_eventPayloadName);
+		m_context = context;
+		m_relays = createRelays();
+		m_pool = createPool();
+		m_nio = createEngine();
+		if (previous != null) {
+			previous.close();
+		}
+		if (previousEngine != null) {
+			previousEngine.close();
+		}
+	}
+
+	/**
+	 * Creates the send context from the current settings.
+	 * @return the send context
+	 */
+	private SendContext createContext() {
+		// The transactions of a partitioned mail share the message, it cannot be converted while sent.
+		return new SendContext(m_connection, m_host, m_port, m_from, m_username, m_password,
+				m_quitWait, m_useSMTPS, m_debug, ! m_partitionByDomain && m_partitionMaxRecipients <= 0);
+	}
+
+	/**
+	 * Creates the relays from the current settings.
+	 * @return the relays
+	 */
+	private RelayGroup createRelays() {
+		return new RelayGroup(m_relayList, m_host, m_port, m_breakerFailures, m_breakerOpenTime);
+	}
+
+	/**
+	 * Creates the non-blocking SMTP client if enabled and supported by the
+	 * current settings.
+	 * @return the client, <code>null</code> if javamail is used
+	 */
+	private NioSmtpEngine createEngine() {
+		if (! "nio".equalsIgnoreCase(m_engine)) {
+			return null;
+		}
+		if (! m_context.isPlain()) {
+			m_logger.warn("The nio SMTP engine does not support " + m_connection
+					+ (m_useSMTPS ? " over SMTPS" : "") + " connections, using javamail");
+			return null;
+		}
+		try {
+			return new NioSmtpEngine(m_poolSize, m_poolTimeout, m_poolMaxIdle);
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot start the nio SMTP engine", e);
+		}
+	}
+
+	/**
+	 * Creates the connection pool. Connections are opened using the send
+	 * context current when the pool was created.
+	 * @return the pool
+	 */
+	private TransportPool createPool() {
+		final SendContext context = m_context;
+		final RelayGroup relays = m_relays;
+		return new TransportPool(new TransportPool.Connector() {
+			public Transport connect(String key) throws MessagingException {
+				RelayGroup.Relay relay = relays.get(key);
+				long start = System.nanoTime();
+				try {
+					Transport transport = context.connect(relay.host(), relay.port());
+					relay.success();
+					return transport;
+				} catch (MessagingException e) {
+					relays.record(relay, e);
+					throw e;
+				} finally {
+					m_metrics.record(MailSenderMetrics.PHASE_CONNECT, start);
+				}
+			}
+		}, m_poolSize, m_poolMaxIdle, m_poolMaxAge, m_poolValidateAfter, m_poolTimeout, m_laneReserved);
+	}
+
+	/**
+	 * Sends the spooled mails until the spool is closed.
+	 */
+	private void drain() {
+		MailSpool spool = m_spool;
+		while (true) {
+			MailSpool.Entry entry;
+			try {
+				entry = spool.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (entry == null) {
+				return;
+			}
+
+			Mail mail = entry.mail();
+			int attempt = entry.nextAttempt();
+			try {
+				throttle(mail);
+			} catch (InterruptedException e) {
+				spool.requeue(entry);
+				return;
+			}
+			try {
+				deliver(mail);
+				propagateToEventAdmin(mail, null);
+			} catch (Exception e) {
+				Mail retry = RetryPolicy.getRetry(mail, e);
+				if (retry != null && ! (e instanceof SendFailedException)) {
+					// The relay is not reachable, keep the mail and try later.
+					m_logger.warn("Cannot send a spooled mail, retrying in " + m_spoolRetryDelay + " ms", e);
+					m_metrics.retried();
+					spool.requeue(entry);
+					try {
+						Thread.sleep(m_spoolRetryDelay);
+						continue;
+					} catch (InterruptedException ie) {
+						return;
+					}
+				}
+				if (retry != null) {
+					// Temporary failure (4xx): the mail stays in the spool, whatever smtp.retry.max.
+					if (requeueLater(spool, entry, retry, e, attempt)) {
+						continue;
+					}
+				} else {
+					// Rejected by the server.
+					m_logger.error("Cannot send a spooled mail", e);
+					propagateToEventAdmin(mail, e);
+				}
+			}
+
+			try {
+				spool.ack(entry);
+			} catch (IOException e) {
+				m_logger.error("Cannot remove a sent mail from the spool", e);
+			}
+		}
+	}
+
+	/**
+	 * Sends again a spooled mail after a transient failure. The spool keeps
+	 * sending the other mails in the meantime.
+	 * @param spool the spool
+	 * @param entry the spooled mail
+	 * @param retry the mail to send again, restricted to the recipients to retry
+	 * @param failure the failure
+	 * @param attempt the number of attempts done
+	 * @return <code>true</code> if the entry is kept in the spool, <code>false</code>
+	 * if it must be acknowledged (replaced by the retried mail)
+	 */
+	private boolean requeueLater(final MailSpool spool, final MailSpool.Entry entry, Mail retry,
+			Exception failure, int attempt) {
+		Mail rejected = RetryPolicy.getRejected(entry.mail(), failure);
+		if (rejected != null) {
+			propagateToEventAdmin(rejected, failure);
+		}
+		if (retry != entry.mail()) {
+			// Only some recipients must be retried, spool them as a new mail.
+			try {
+				spool.add(retry);
+			} catch (IOException e) {
+				m_logger.error("Cannot spool the mail to send again", e);
+				propagateToEventAdmin(retry, failure);
+			}
+			return false;
+		}
+		m_metrics.retried();
+		m_scheduler.schedule(new Runnable() {
+			public void run() {
+				spool.requeue(entry);
+			}
+		}, m_retry.getDelay(attempt), TimeUnit.MILLISECONDS);
+		return true;
+	}
+
+	/**
+	 * Stops the sender and closes the pooled connections.
+	 */
+	@Invalidate
+	public void stop() {
+		if (m_digest != null) {
+			m_digest.flush();
+		}
+		// Lets the queued mails (and the flushed digests) be sent before closing the connections.
+		long deadline = System.currentTimeMillis() + m_poolTimeout;
+		if (m_executor != null) {
+			m_executor.shutdown();
+		}
+		if (m_priorityExecutor != null) {
+			m_priorityExecutor.shutdown();
+		}
+		awaitTermination(m_executor, deadline);
+		awaitTermination(m_priorityExecutor, deadline);
+		if (m_nio != null) {
+			m_nio.awaitCompletion(Math.max(0, deadline - System.currentTimeMillis()));
+		}
+		if (m_scheduler != null) {
+			// The digest windows are flushed. The spooled mails waiting for a retry stay
+			// in the spool, they are sent again once restarted.
+			m_scheduler.shutdownNow();
+			failScheduled();
+		}
+		if (m_spool != null) {
+			// Lets the mail being sent complete, so it is acknowledged.
+			m_spoolThread.interrupt();
+			try {
+				m_spoolThread.join(m_poolTimeout);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			m_spool.close();
+		}
+		if (m_partitionExecutor != null) {
+			m_partitionExecutor.shutdown();
+		}
+		if (m_connectExecutor != null) {
+			m_connectExecutor.shutdown();
+		}
+		awaitTermination(m_partitionExecutor, deadline);
+		awaitTermination(m_connectExecutor, deadline);
+		if (m_pool != null) {
+			m_pool.close();
+		}
+		if (m_nio != null) {
+			m_nio.close();
+		}
+		if (m_dedupe != null) {
+			m_dedupe.close();
+		}
+		if (m_mbean != null) {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			try {
+				server.unregisterMBean(m_mbean);
+			} catch (JMException e) {
+				// Already unregistered.
+			}
+			m_mbean = null;
+		}
+	}
+
+	/**
+	 * Waits for the termination of a stopped executor.
+	 * @param executor the executor, may be <code>null</code>
+	 * @param deadline the time (ms) after which the running tasks are abandoned
+	 */
+	private static void awaitTermination(ExecutorService executor, long deadline) {
+		if (executor == null) {
+			return;
+		}
+		try {
+			executor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Sends a mail.
+	 * @param to to
+	 * @param cc cc
+	 * @param subject subject
+	 * @param body body
+	 * @throws Exception if the mail cannot be sent.
+	 * @see org.ow2.chameleon.mail.MailSenderService#send(java.lang.String, java.lang.String,
+	 * java.lang.String, java.lang.String)
+	 */
+	public void send(String to, String cc, String subject, String body)
+			throws Exception {
+		send(to, cc, subject, body, null);
+	}
+
+	/**
+	 * Sends a mail
+	 * @param to to
+	 * @param cc cc
+	 * @param subject subject
+	 * @param body body
+	 * @param attachments list of attachments
+	 * @throws Exception if the mail cannot be sent
+	 * @see org.ow2.chameleon.mail.MailSenderService#send(java.lang.String, java.lang.String, java.lang.String,
+	 * java.lang.String, java.util.List)
+	 */
+	public void send(String to, String cc, String subject, String body,
+			List<File> attachments) throws Exception {
+		if (attachments != null  && ! attachments.isEmpty()) {
+			send(new Mail()
+				.to(to)
+				.cc(cc)
+				.subject(subject)
+				.body(body)
+				.attach(attachments));
+		} else {
+			send(new Mail()
+				.to(to)
+				.cc(cc)
+				.subject(subject)
+				.body(body));
+		}
+	}
+
+	/**
+	 * Sends the given mail once. This method really send the mail, others
+	 * are just front-ends. The outcome is not published.
+	 * @param mail the mail
+	 * @throws Exception if the mail cannot be sent.
+	 */
+	private void deliver(Mail mail) throws Exception {
+		long start = System.nanoTime();
+		try {
+			deliver(mail, start);
+		} finally {
+			m_metrics.record(MailSenderMetrics.PHASE_SEND, start);
+		}
+	}
+
+	/**
+	 * Sends the given mail once.
+	 * @param mail the mail
+	 * @param start the start time of the attempt
+	 * @throws Exception if the mail cannot be sent.
+	 */
+	private void deliver(Mail mail, long start) throws Exception {
+		TransportPool pool = m_pool;
+		final boolean priority = mail.priority() == Mail.Priority.HIGH;
+		Future<TransportPool.Entry> connection = connect(pool, priority);
+		MimeMessage msg;
+		try {
+			msg = createMessage(mail);
+			if (m_nio != null) {
+				prepare(m_nio, msg);
+			}
+		} catch (Exception ex) {
+			release(pool, connection);
+			throw ex;
+		} finally {
+			m_metrics.record(MailSenderMetrics.PHASE_BUILD, start);
+		}
+		Address[] recipients = msg.getAllRecipients();
+		if (m_partitionExecutor == null) {
+			deliver(pool, connection, msg, recipients, priority);
+			return;
+		}
+
+		List<Address[]> transactions = RecipientGroups.split(recipients, m_partitionByDomain,
+				m_partitionMaxRecipients);
+		if (transactions.size() == 1) {
+			deliver(pool, connection, msg, recipients, priority);
+			return;
+		}
+
+		// The transactions write the same message concurrently, compute its headers once.
+		msg.saveChanges();
+		final RecipientGroups outcome = new RecipientGroups();
+		final TransportPool transactionPool = pool;
+		List<Future<?>> running = new ArrayList<Future<?>>();
+		for (int index = 1; index < transactions.size(); index++) {
+			final MimeMessage message = msg;
+			final Address[] group = transactions.get(index);
+			try {
+				running.add(m_partitionExecutor.submit(new Runnable() {
+					public void run() {
+						deliverPartition(outcome, transactionPool, null, message, group, priority);
+					}
+				}));
+			} catch (RejectedExecutionException e) {
+				outcome.failed(group, e);
+			}
+		}
+		deliverPartition(outcome, pool, connection, msg, transactions.get(0), priority);
+		for (Future<?> transaction : running) {
+			transaction.get();
+		}
+		outcome.check();
+	}
+
+	/**
+	 * Starts opening a connection, so the handshake runs while the message
+	 * is built. Nothing is done when a pooled connection is available.
+	 * @param pool the connection pool
+	 * @param priority whether the reserved connections can be used
+	 * @return the connection being opened, <code>null</code> if the connection
+	 * must be borrowed when the message is built
+	 */
+	private Future<TransportPool.Entry> connect(final TransportPool pool, final boolean priority) {
+		if (! m_connectOverlap || m_nio != null) {
+			return null;
+		}
+		RelayGroup.Relay preferred = m_relays.getRelays().get(0);
+		if (! preferred.isOpen() && pool.getIdleCount(preferred.key()) > 0) {
+			return null;
+		}
+		try {
+			return m_connectExecutor.submit(new Callable<TransportPool.Entry>() {
+				public TransportPool.Entry call() throws MessagingException {
+					return borrow(pool, priority);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Enough connections are being opened, or the sender is stopping.
+			return null;
+		}
+	}
+
+	/**
+	 * Borrows a connection to the preferred relay which is up. If the
+	 * connection cannot be opened, the next relays are tried.
+	 * @param pool the connection pool
+	 * @param priority whether the reserved connections can be used
+	 * @return the connection
+	 * @throws MessagingException if no relay can be reached
+	 */
+	private TransportPool.Entry borrow(TransportPool pool, boolean priority) throws MessagingException {
+		RelayGroup relays = m_relays;
+		List<RelayGroup.Relay> tried = new ArrayList<RelayGroup.Relay>();
+		MessagingException failure = null;
+		RelayGroup.Relay relay;
+		while ((relay = relays.select(tried)) != null) {
+			try {
+				return pool.borrow(relay.key(), priority);
+			} catch (MessagingException e) {
+				if (! RelayGroup.isRelayFailure(e)) {
+					throw e;
+				}
+				m_logger.warn("Cannot connect to the SMTP relay " + relay + ": " + e.getMessage());
+				tried.add(relay);
+				failure = e;
+			}
+		}
+		throw relays.unavailable(failure);
+	}
+
+	/**
+	 * Starts a SMTP transaction, once the adaptive concurrency limit permits it.
+	 * @return the start time of the transaction, to give to {@link #end(long, Exception)}
+	 * @throws MessagingException if no transaction can start before <tt>smtp.pool.timeout</tt>
+	 */
+	private long begin() throws MessagingException {
+		ConcurrencyLimiter limiter = m_concurrency;
+		return limiter == null ? System.nanoTime() : limiter.acquire(m_poolTimeout);
+	}
+
+	/**
+	 * Ends a SMTP transaction started by {@link #begin()}, and records its latency.
+	 * @param start the start time of the transaction
+	 * @param failure the failure, <code>null</code> if the mail was sent
+	 */
+	private void end(long start, Exception failure) {
+		m_metrics.record(MailSenderMetrics.PHASE_TRANSACTION, start);
+		ConcurrencyLimiter limiter = m_concurrency;
+		if (limiter != null) {
+			limiter.release(start, failure);
+		}
+	}
+
+	/**
+	 * Selects the relay used by the non-blocking SMTP client.
+	 * @return the preferred relay which is up
+	 * @throws MessagingException if all the relays are down
+	 */
+	private RelayGroup.Relay select() throws MessagingException {
+		RelayGroup.Relay relay = m_relays.select(null);
+		if (relay == null) {
+			throw m_relays.unavailable(null);
+		}
+		return relay;
+	}
+
+	/**
+	 * Waits for a connection being opened.
+	 * @param pool the connection pool
+	 * @param connection the connection being opened
+	 * @return the connection
+	 * @throws MessagingException if the connection cannot be opened
+	 */
+	private TransportPool.Entry await(TransportPool pool, Future<TransportPool.Entry> connection)
+			throws MessagingException {
+		try {
+			return connection.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			release(pool, connection);
+			throw new MessagingException("Interrupted while connecting", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof MessagingException) {
+				throw (MessagingException) e.getCause();
+			}
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw (Error) e.getCause();
+		}
+	}
+
+	/**
+	 * Returns a connection being opened to the pool, once opened. Used when
+	 * the message cannot be built.
+	 * @param pool the connection pool
+	 * @param connection the connection being opened, may be <code>null</code>
+	 */
+	private void release(final TransportPool pool, final Future<TransportPool.Entry> connection) {
+		if (connection == null) {
+			return;
+		}
+		Runnable release = new Runnable() {
+			public void run() {
+				try {
+					pool.release(connection.get(), false);
+				} catch (Exception e) {
+					// Not connected.
+				}
+			}
+		};
+		try {
+			m_connectExecutor.execute(release);
+		} catch (RejectedExecutionException e) {
+			// All the threads are busy, or the sender is stopped (a closed pool closes the connection).
+			release.run();
+		}
+	}
+
+	/**
+	 * Sends a message to a part of its recipients, and records the outcome.
+	 * @param outcome the outcome of the mail
+	 * @param pool the connection pool
+	 * @param connection the connection being opened, <code>null</code> to borrow one
+	 * @param msg the message
+	 * @param recipients the recipients of the transaction
+	 * @param priority whether the reserved connections can be used
+	 */
+	private void deliverPartition(RecipientGroups outcome, TransportPool pool,
+			Future<TransportPool.Entry> connection, MimeMessage msg, Address[] recipients, boolean priority) {
+		try {
+			deliver(pool, connection, msg, recipients, priority);
+			outcome.sent(recipients);
+		} catch (Exception e) {
+			outcome.failed(recipients, e);
+		}
+	}
+
+	/**
+	 * Sends a message to the given recipients in a single transaction,
+	 * using a pooled connection.
+	 * @param pool the connection pool
+	 * @param connection the connection being opened, <code>null</code> to borrow one
+	 * @param msg the message
+	 * @param recipients the recipients
+	 * @param priority whether the reserved connections can be used
+	 * @throws MessagingException if the message cannot be sent
+	 */
+	private void deliver(TransportPool pool, Future<TransportPool.Entry> connection, MimeMessage msg,
+			Address[] recipients, boolean priority) throws MessagingException {
+		SendContext context = m_context;
+		RelayGroup relays = m_relays;
+		NioSmtpEngine engine = m_nio;
+		if (engine != null) {
+			RelayGroup.Relay relay = select();
+			long start = begin();
+			try {
+				engine.send(relay.host(), relay.port(), context.from(), recipients, msg);
+			} catch (MessagingException ex) {
+				end(start, ex);
+				relays.record(relay, ex);
+				throw ex;
+			}
+			end(start, null);
+			relay.success();
+			return;
+		}
+		TransportPool.Entry entry;
+		if (connection == null) {
+			entry = borrow(pool, priority);
+		} else {
+			entry = await(pool, connection);
+		}
+		RelayGroup.Relay relay = relays.get(entry.host());
+		long start;
+		try {
+			start = begin();
+		} catch (MessagingException ex) {
+			pool.release(entry, false);
+			throw ex;
+		}
+		boolean broken = true;
+		Exception failure = null;
+		try {
+			if (m_partitionExecutor == null) {
+				// Sets the transfer encodings, javamail converts them to 8-bit if the relay supports it.
+				msg.saveChanges();
+			}
+			entry.transport().sendMessage(msg, recipients);
+			broken = false;
+			relays.record(relay, null);
+		} catch (SendFailedException ex) {
+			// The server rejected the mail, the connection is generally still usable.
+			broken = ! entry.transport().isConnected();
+			failure = ex;
+			relays.record(relay, ex);
+			throw ex;
+		} catch (MessagingException ex) {
+			failure = ex;
+			relays.record(relay, ex);
+			throw ex;
+		} finally {
+			end(start, failure);
+			pool.release(entry, broken);
+		}
+	}
+
+	/**
+	 * Sends a list of mails back-to-back on a single connection.
+	 * @param mails the mails
+	 * @return the list of failures, index-aligned with the given list,
+	 * containing <code>null</code> for the mails sent successfully.
+	 * @see org.ow2.chameleon.mail.MailSenderService#send(java.util.List)
+	 */
+	public List<Exception> send(List<Mail> mails) {
+		List<Exception> results = new ArrayList<Exception>(mails.size());
+		MimeMessage[] messages = new MimeMessage[mails.size()];
+		for (int index = 0; index < messages.length; index++) {
+			long start = System.nanoTime();
+			try {
+				messages[index] = createMessage(mails.get(index));
+				results.add(null);
+			} catch (Exception ex) {
+				results.add(ex);
+			} finally {
+				m_metrics.record(MailSenderMetrics.PHASE_BUILD, start);
+			}
+		}
+		transmit(mails, messages, results);
+		return results;
+	}
+
+	/**
+	 * Sends a template to a list of recipients. The attachments are encoded
+	 * once, then the mails are sent as a batch.
+	 * @param template the template
+	 * @param recipients the recipients
+	 * @return the list of failures, index-aligned with the recipient list,
+	 * containing <code>null</code> for the mails sent successfully.
+	 * @see org.ow2.chameleon.mail.MailSenderService#send(org.ow2.chameleon.mail.MailTemplate, java.util.List)
+	 */
+	public List<Exception> send(MailTemplate template, List<MailTemplate.Recipient> recipients) {
+		List<Mail> mails = new ArrayList<Mail>(recipients.size());
+		List<Exception> results = new ArrayList<Exception>(recipients.size());
+		CompiledTemplate compiled;
+		try {
+			compiled = new CompiledTemplate(template, m_context);
+		} catch (Exception ex) {
+			for (MailTemplate.Recipient recipient : recipients) {
+				Mail mail = template.render(recipient);
+				propagateToEventAdmin(mail, ex);
+				results.add(ex);
+			}
+			return results;
+		}
+
+		MimeMessage[] messages = new MimeMessage[recipients.size()];
+		for (int index = 0; index < messages.length; index++) {
+			Mail mail = compiled.render(recipients.get(index));
+			mails.add(mail);
+			long start = System.nanoTime();
+			try {
+				messages[index] = compiled.createMessage(mail);
+				results.add(null);
+			} catch (Exception ex) {
+				results.add(ex);
+			} finally {
+				m_metrics.record(MailSenderMetrics.PHASE_BUILD, start);
+			}
+		}
+		transmit(mails, messages, results);
+		return results;
+	}
+
+	/**
+	 * Transmits messages back-to-back on a single connection, and publishes
+	 * the outcome of each mail.
+	 * @param mails the mails
+	 * @param messages the messages, <code>null</code> for the mails which cannot be sent
+	 * @param results the failures, updated with the failed transmissions
+	 */
+	private void transmit(List<Mail> mails, MimeMessage[] messages, List<Exception> results) {
+		NioSmtpEngine engine = m_nio;
+		if (engine != null) {
+			transmit(engine, mails, messages, results);
+			return;
+		}
+		TransportPool pool = m_pool;
+		TransportPool.Entry entry = null;
+		try {
+			for (int index = 0; index < messages.length; index++) {
+				Mail mail = mails.get(index);
+				MimeMessage msg = messages[index];
+				if (msg == null) {
+					continue;
+				}
+				try {
+					throttle(mail);
+					if (entry == null) {
+						entry = borrow(pool, false);
+					}
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					propagateToEventAdmin(mail, ex);
+					results.set(index, ex);
+					continue;
+				} catch (MessagingException ex) {
+					propagateToEventAdmin(mail, ex);
+					results.set(index, ex);
+					continue;
+				}
+				long start;
+				try {
+					start = begin();
+				} catch (MessagingException ex) {
+					propagateToEventAdmin(mail, ex);
+					results.set(index, ex);
+					continue;
+				}
+				try {
+					transmit(entry.transport(), msg);
+					end(start, null);
+					propagateToEventAdmin(mail, null);
+				} catch (SendFailedException ex) {
+					end(start, ex);
+					propagateToEventAdmin(mail, ex);
+					results.set(index, ex);
+					if (! entry.transport().isConnected()) {
+						pool.release(entry, true);
+						entry = null;
+					}
+				} catch (MessagingException ex) {
+					// Connection lost, the next mail uses a new connection.
+					end(start, ex);
+					m_relays.record(m_relays.get(entry.host()), ex);
+					propagateToEventAdmin(mail, ex);
+					results.set(index, ex);
+					pool.release(entry, true);
+					entry = null;
+				}
+			}
+		} finally {
+			if (entry != null) {
+				pool.release(entry, false);
+			}
+		}
+	}
+
+	/**
+	 * Transmits messages with the non-blocking SMTP client: the messages
+	 * are spread on its connections, and the outcomes are awaited.
+	 * @param engine the client
+	 * @param mails the mails
+	 * @param messages the messages, <code>null</code> for the mails which cannot be sent
+	 * @param results the failures, updated with the failed transmissions
 	 */
-	private Properties m_properties;
+	private void transmit(NioSmtpEngine engine, List<Mail> mails, MimeMessage[] messages,
+			List<Exception> results) {
+		SendContext context = m_context;
+		final Exception[] failures = new Exception[messages.length];
+		final CountDownLatch done = new CountDownLatch(messages.length);
+		for (int index = 0; index < messages.length; index++) {
+			final Mail mail = mails.get(index);
+			final int position = index;
+			try {
+				if (messages[index] == null) {
+					done.countDown();
+					continue;
+				}
+				throttle(mail);
+				prepare(engine, messages[index]);
+				Address[] recipients = messages[index].getAllRecipients();
+				byte[] data = NioSmtpEngine.encode(messages[index]);
+				final RelayGroup.Relay relay = select();
+				final long start = begin();
+				engine.send(relay.host(), relay.port(), context.from(), recipients, data,
+						new NioSmtpEngine.Callback() {
+					public void completed(Exception failure) {
+						end(start, failure);
+						m_relays.record(relay, failure);
+						propagateToEventAdmin(mail, failure);
+						failures[position] = failure;
+						done.countDown();
+					}
+				});
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				propagateToEventAdmin(mail, ex);
+				failures[index] = ex;
+				done.countDown();
+			} catch (MessagingException ex) {
+				propagateToEventAdmin(mail, ex);
+				failures[index] = ex;
+				done.countDown();
+			}
+		}
+		try {
+			done.await();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		for (int index = 0; index < failures.length; index++) {
+			if (failures[index] != null) {
+				results.set(index, failures[index]);
+			}
+		}
+	}
 
 	/**
-	 * Enables / Disabled debugging.
+	 * Gets the relay a mail is about to be sent to, as counted by the
+	 * per-relay rate. The relay is only selected when sending, so this is
+	 * the preferred relay which is up (without probing a relay which is down).
+	 * @return the <tt>host:port</tt> of the relay
 	 */
-	@Property(name="smtp.debug", value="false")
-	private boolean m_debug;
+	private String rateKey() {
+		List<RelayGroup.Relay> relays = m_relays.getRelays();
+		for (RelayGroup.Relay relay : relays) {
+			if (! relay.isOpen()) {
+				return relay.key();
+			}
+		}
+		return relays.get(0).key();
+	}
 
 	/**
-	 * The mail address of the sender.
+	 * Waits until the rate limiter permits to send the given mail.
+	 * @param mail the mail
+	 * @throws InterruptedException if the thread is interrupted while waiting
 	 */
-	@Property(name="smtp.from", mandatory=true)
-	@ServiceProperty(name=MailSenderService.FROM_PROPERTY)
-	private String m_from;
+	private void throttle(Mail mail) throws InterruptedException {
+		long wait = m_limiter.reserve(rateKey(), mail);
+		if (wait > 0) {
+			Thread.sleep(wait);
+		}
+	}
 
 	/**
-	 * The port.
+	 * Gets the cache of encoded file attachments.
+	 * @return the cache, <code>null</code> if disabled
 	 */
-	@Property(name="smtp.port", mandatory=true)
-	private int m_port;
+	public EncodedAttachmentCache getAttachmentCache() {
+		return m_attachmentCache;
+	}
 
 	/**
-	 * The host.
+	 * Gets the digest coalescer.
+	 * @return the coalescer, <code>null</code> if disabled
 	 */
-	@Property(name="smtp.host", mandatory=true)
-	private String m_host;
+	public DigestCoalescer getDigestCoalescer() {
+		return m_digest;
+	}
 
 	/**
-	 * Does quit should wait until termination.
+	 * Gets the metrics of the sender, with the latency histogram of each phase.
+	 * @return the metrics
 	 */
-	@Property(name="smtp.quitwait", value="false")
-	private boolean m_quitWait;
+	public SendMetrics getMetrics() {
+		return m_metrics;
+	}
 
 	/**
-	 * Enables /Disables SMTPS.
+	 * @return the number of mails sent successfully
+	 * @see org.ow2.chameleon.mail.MailSenderMetrics#getSentCount()
 	 */
-	@Property(name="smtp.useSMTPS", value="false")
-	private boolean m_useSMTPS;
-
+	public long getSentCount() {
+		return m_metrics.getSentCount();
+	}
 
 	/**
-	 * The username.
+	 * @return the number of failed mails
+	 * @see org.ow2.chameleon.mail.MailSenderMetrics#getFailedCount()
 	 */
-	@Property(name="smtp.username")
-	private String m_username;
+	public long getFailedCount() {
+		return m_metrics.getFailedCount();
+	}
 
 	/**
-	 * The password.
+	 * @return the number of retries
+	 * @see org.ow2.chameleon.mail.MailSenderMetrics#getRetryCount()
 	 */
-	@Property(name="smtp.password")
-	private String m_password;
+	public long getRetryCount() {
+		return m_metrics.getRetryCount();
+	}
 
 	/**
-	 * The authenticator used for SSL.
+	 * @param phase the phase
+	 * @return the number of samples
+	 * @see org.ow2.chameleon.mail.MailSenderMetrics#getCount(java.lang.String)
 	 */
-	private Authenticator sslAuthentication;
+	public long getCount(String phase) {
+		return m_metrics.getCount(phase);
+	}
 
 	/**
-	 * The connection type.
+	 * @param phase the phase
+	 * @return the mean latency (ms)
+	 * @see org.ow2.chameleon.mail.MailSenderMetrics#getMeanLatency(java.lang.String)
 	 */
-	@Property(name="smtp.connection", mandatory=true)
-	private Connection m_connection;
-
+	public double getMeanLatency(String phase) {
+		return m_metrics.getMeanLatency(phase);
+	}
 
 	/**
-	 * Creates a SMTPMailSender for testing purpose.
-	 * @param connection the connection
-	 * @param host the host
-	 * @param port the port
-	 * @param from the sender email address
-	 * @param username the username
-	 * @param password the password
-	 * @param quitwait if the receiver must wait until termination completion
-	 * @param useSMTPs enables SMTPs
+	 * @param phase the phase
+	 * @return the maximum latency (ms)
+	 * @see org.ow2.chameleon.mail.MailSenderMetrics#getMaxLatency(java.lang.String)
 	 */
-	public SMTPMailSender(Connection connection, String host, int port, String from,
-			final String username, final String password, boolean quitwait, boolean useSMTPs) {
-
-		this.m_from = from;
-
-		this.m_connection = connection;
-		this.m_username = username;
-		this.m_password = password;
+	public double getMaxLatency(String phase) {
+		return m_metrics.getMaxLatency(phase);
+	}
 
-		this.m_useSMTPS = useSMTPs;
-		this.m_port = port;
-		this.m_host = host;
+	/**
+	 * @param phase the phase
+	 * @param percentile the percentile
+	 * @return the latency (ms)
+	 * @see org.ow2.chameleon.mail.MailSenderMetrics#getLatency(java.lang.String, double)
+	 */
+	public double getLatency(String phase, double percentile) {
+		return m_metrics.getLatency(phase, percentile);
+	}
 
-		m_debug = true;
-		this.m_quitWait = quitwait;
-		this.m_useSMTPS = useSMTPs;
-		configure();
+	/**
+	 * Gets the adaptive concurrency limiter, giving the current limit.
+	 * @return the limiter, <code>null</code> if <tt>smtp.adaptive</tt> is disabled
+	 */
+	public ConcurrencyLimiter getConcurrencyLimiter() {
+		return m_concurrency;
 	}
 
 	/**
-	 * Creates a SMTPMailSender (used by iPOJO).
+	 * Gets the relays, giving their health.
+	 * @return the relays
 	 */
-	public SMTPMailSender() {
-		configure();
+	public RelayGroup getRelays() {
+		return m_relays;
 	}
 
 	/**
-	 * Configures the sender.
+	 * Gets the store of the idempotency keys.
+	 * @return the store
 	 */
-	private void configure() {
-		m_properties = new Properties();
-		m_properties.put("mail.smtp.host", m_host);
-		m_properties.put("mail.smtp.port", Integer.toString(m_port));
-
-		m_properties.put("mail.smtps.quitwait", m_quitWait);
-		switch (m_connection) {
-		case SSL:
-		    m_properties.put("mail.smtp.auth", Boolean.toString(true));
-			m_properties.put("mail.smtp.socketFactory.port", Integer.toString(m_port));
-			m_properties.put("mail.smtp.socketFactory.class", javax.net.ssl.SSLSocketFactory.class.getName());
-		    sslAuthentication = new javax.mail.Authenticator() {
-				protected javax.mail.PasswordAuthentication getPasswordAuthentication(){
-					return new javax.mail.PasswordAuthentication(m_username, m_password);
-				}
-			};
-		    break;
-		case TLS:
-			m_properties.put("mail.smtp.auth", Boolean.toString(true));
-	    	m_properties.put("mail.smtp.starttls.enable", Boolean.toString(true));
-	    	break;
-		case NO_AUTH:
-			m_properties.put("mail.smtp.auth", Boolean.toString(false));
-		}
+	public DedupeStore getDedupeStore() {
+		return m_dedupe;
 	}
 
 	/**
-	 * Sends a mail.
-	 * @param to to
-	 * @param cc cc
-	 * @param subject subject
-	 * @param body body
-	 * @throws Exception if the mail cannot be sent.
-	 * @see org.ow2.chameleon.mail.MailSenderService#send(java.lang.String, java.lang.String,
-	 * java.lang.String, java.lang.String)
+	 * Gets the rate limiter, giving the time spent waiting for permits.
+	 * @return the rate limiter
 	 */
-	public void send(String to, String cc, String subject, String body)
-			throws Exception {
-		send(to, cc, subject, body, null);
+	public RateLimiter getRateLimiter() {
+		return m_limiter;
 	}
 
 	/**
-	 * Sends a mail
-	 * @param to to
-	 * @param cc cc
-	 * @param subject subject
-	 * @param body body
-	 * @param attachments list of attachments
-	 * @throws Exception if the mail cannot be sent
-	 * @see org.ow2.chameleon.mail.MailSenderService#send(java.lang.String, java.lang.String, java.lang.String,
-	 * java.lang.String, java.util.List)
+	 * Transmits a message on a connected transport.
+	 * @param transport the connected transport
+	 * @param msg the message
+	 * @throws MessagingException if the message cannot be transmitted
 	 */
-	public void send(String to, String cc, String subject, String body,
-			List<File> attachments) throws Exception {
-		if (attachments != null  && ! attachments.isEmpty()) {
-			send(new Mail()
-				.to(to)
-				.cc(cc)
-				.subject(subject)
-				.body(body)
-				.attach(attachments));
-		} else {
-			send(new Mail()
-				.to(to)
-				.cc(cc)
-				.subject(subject)
-				.body(body));
-		}
+	private void transmit(Transport transport, MimeMessage msg) throws MessagingException {
+		msg.saveChanges();
+		transport.sendMessage(msg, msg.getAllRecipients());
 	}
 
 	/**
-	 * Sends the given mail. This method really send the mail, others
-	 * are just front-ends.
+	 * Creates the message to send from the given mail.
 	 * @param mail the mail
-	 * @throws Exception if the mail cannot be sent.
+	 * @return the message
+	 * @throws Exception if the message cannot be created.
 	 */
-	private void process(Mail mail) throws Exception {
+	private MimeMessage createMessage(Mail mail) throws Exception {
 		if (mail.to() == null  || mail.to().isEmpty()) {
 			throw new NullPointerException("The given 'to' is null or empty");
 		}
 
-		Session session = Session.getInstance(m_properties, sslAuthentication);
-
-		session.setDebug(m_debug);
 		// create a message
-		MimeMessage msg = new MimeMessage(session);
-		msg.setFrom(new InternetAddress(m_from));
+		SendContext context = m_context;
+		MimeMessage msg = new MimeMessage(context.session());
+		msg.setFrom(context.from());
 
 		// Manage to.
 		List<String> to = mail.to();
@@ -270,7 +1820,7 @@ public class SMTPMailSender implements MailSenderService {
 			if (t == null) {
 				throw new NullPointerException("A 'to' address is null");
 			} else {
-				address[index] = new InternetAddress(t);
+				address[index] = toAddress(t);
 			}
 		}
 		msg.setRecipients(Message.RecipientType.TO, address);
@@ -283,7 +1833,7 @@ public class SMTPMailSender implements MailSenderService {
 			if (t == null) {
 				throw new NullPointerException("A 'cc' address is null");
 			} else {
-				addressCC[index] = new InternetAddress(t);
+				addressCC[index] = toAddress(t);
 			}
 		}
 		msg.setRecipients(Message.RecipientType.CC, addressCC);
@@ -306,6 +1856,10 @@ public class SMTPMailSender implements MailSenderService {
 		List<File> attachments = mail.attachments();
 		if (attachments != null  && ! attachments.isEmpty()) {
 			for (File file : attachments) {
+				if (m_attachmentCache != null) {
+					mp.addBodyPart(m_attachmentCache.createPart(file));
+					continue;
+				}
 				MimeBodyPart part = new MimeBodyPart();
 				DataSource source = new FileDataSource(file);
 	            part.setDataHandler(new DataHandler(source));
@@ -314,48 +1868,70 @@ public class SMTPMailSender implements MailSenderService {
 			}
 		}
 
+		// Contents are streamed to the encoder when the message is written.
+		for (AttachmentSource source : mail.attachmentSources()) {
+			MimeBodyPart part = new MimeBodyPart();
+			part.setDataHandler(new DataHandler(new SourceDataSource(source)));
+			part.setFileName(source.getName());
+			mp.addBodyPart(part);
+		}
+
 
 		// add the Multipart to the message
 		msg.setContent(mp);
-		// send the message
-		Transport transport;
-		if (m_useSMTPS) {
-			transport = session.getTransport("smtps");
-		} else {
-			transport = session.getTransport("smtp");
-		}
+		return msg;
+	}
 
-		if (m_connection == Connection.TLS) {
-		    transport.connect("smtp.gmail.com",
-		    		m_port, m_username, m_password);
-		} else {
-			transport.connect();
+	/**
+	 * Parses a recipient address. Internationalized addresses are accepted
+	 * when the nio engine is used, it negotiates SMTPUTF8 with the relay.
+	 * @param address the address
+	 * @return the parsed address
+	 * @throws AddressException if the address is invalid
+	 */
+	private InternetAddress toAddress(String address) throws AddressException {
+		if (m_nio != null && ! NioSmtpEngine.isAscii(address)) {
+			InternetAddress[] parsed = InternetAddress.parseHeader(address, false);
+			if (parsed.length != 1) {
+				throw new AddressException("Expected a single address", address);
+			}
+			return parsed[0];
 		}
+		return new InternetAddress(address);
+	}
 
-		try {
-			transport.sendMessage(msg, msg.getAllRecipients());
-			propagateToEventAdmin(mail, msg, null);
-		} catch (SendFailedException ex) {
-			propagateToEventAdmin(mail, msg, ex);
-			throw ex;
-		} finally {
-			transport.close();
+	/**
+	 * Converts the text parts of a message to 8-bit, if all the relays are
+	 * known to accept 8BITMIME. Otherwise the parts keep the encoding chosen by
+	 * javamail (quoted-printable or base64).
+	 * @param engine the nio engine
+	 * @param msg the message
+	 * @throws MessagingException if the message cannot be converted
+	 */
+	private void prepare(NioSmtpEngine engine, MimeMessage msg) throws MessagingException {
+		// The message may be sent to any relay.
+		for (RelayGroup.Relay relay : m_relays.getRelays()) {
+			if (! engine.supports(relay.host(), relay.port(), "8BITMIME")) {
+				return;
+			}
 		}
+		msg.saveChanges();
+		NioSmtpEngine.convertTo8Bit(msg);
 	}
 
 	/**
 	 * Propagates the given mail to the event admin if available
 	 * @param mail the mail
-	 * @param msg the message
 	 * @param ex the exception if any
 	 */
 	@SuppressWarnings({ "unchecked", "rawtypes" })
-	private void propagateToEventAdmin(Mail mail, MimeMessage msg, SendFailedException ex) {
+	private void propagateToEventAdmin(Mail mail, Exception ex) {
+		m_metrics.outcome(ex);
 		if (m_eventAdmin != null) {
 			Dictionary m = new Hashtable();
 			m.put(MailSenderService.FROM_KEY, m_from);
-			m.put(MailSenderService.TO_KEY, mail.to());
-			m.put(MailSenderService.CC_KEY, mail.cc());
+			m.put(MailSenderService.TO_KEY, ReadOnlyMail.eventTo(mail));
+			m.put(MailSenderService.CC_KEY, ReadOnlyMail.eventCc(mail));
 
 			if (mail.subject() != null) {
 				m.put(MailSenderService.SUBJECT_KEY, mail.subject());
@@ -363,10 +1939,13 @@ public class SMTPMailSender implements MailSenderService {
 				m.put(MailSenderService.SUBJECT_KEY, "");
 			}
 
-			if (mail.body() != null) {
-				m.put(MailSenderService.BODY_KEY, mail.body());
-			} else {
-				m.put(MailSenderService.BODY_KEY, "");
+			String body = mail.body() != null ? mail.body() : "";
+			EventPayload payload = m_eventPayload;
+			if (payload == EventPayload.FULL) {
+				m.put(MailSenderService.BODY_KEY, body);
+			} else if (payload == EventPayload.SUMMARY) {
+				m.put(MailSenderService.BODY_SIZE_KEY, body.length());
+				m.put(MailSenderService.BODY_HASH_KEY, body.hashCode());
 			}
 
 			if (ex == null) {
@@ -383,13 +1962,371 @@ public class SMTPMailSender implements MailSenderService {
 	}
 
 	/**
-	 * Sends the given mail
+	 * Sends the given mail. If the outbound spool is enabled, the mail is
+	 * stored on disk and sent in background; failures are then only
+	 * published on the event admin. If retries are enabled, a transient
+	 * failure does not throw an exception: the mail is sent again in
+	 * background, and the final outcome is published on the event admin.
+	 * Recipients rejected permanently are still reported by an exception.
+	 * When a rate limit is reached, the caller waits for the permit;
+	 * {@link #sendAsync(Mail)} queues the mail instead.
+	 * If a mail with the same idempotency key is being sent or was sent,
+	 * the mail is not sent again: the method waits for the outcome of the
+	 * first send and reports it. If <tt>smtp.digest.window</tt> is set,
+	 * the mail may be buffered and sent later in a digest, its outcome is
+	 * then only published, for the digest.
 	 * @param mail the mail
 	 * @throws Exception the mail cannot be sent.
 	 * @see org.ow2.chameleon.mail.MailSenderService#send(org.ow2.chameleon.mail.Mail)
 	 */
 	public void send(Mail mail) throws Exception {
-		process(mail);
+		String key = mail.idempotencyKey();
+		if (m_digest != null && key == null && mail.priority() != Mail.Priority.HIGH && m_digest.offer(mail)) {
+			// Sent later in a digest.
+			return;
+		}
+		MailFuture future = new MailFuture();
+		if (key != null) {
+			future = m_dedupe.newFuture(key);
+			MailFuture original = m_dedupe.claim(key, future, mail);
+			if (original != null) {
+				awaitOutcome(original);
+				return;
+			}
+		}
+		try {
+			if (m_spool != null) {
+				if (mail.to() == null  || mail.to().isEmpty()) {
+					throw new NullPointerException("The given 'to' is null or empty");
+				}
+				m_spool.add(mail);
+				future.set(mail);
+				return;
+			}
+			throttle(mail);
+		} catch (Exception ex) {
+			future.fail(ex);
+			throw ex;
+		}
+
+		try {
+			deliver(mail);
+		} catch (Exception ex) {
+			if (m_retry.isEnabled() && RetryPolicy.getRetry(mail, ex) != null) {
+				// The retries complete the handle.
+				onFailure(mail, 1, future, ex);
+				if (RetryPolicy.getRejected(mail, ex) == null) {
+					return;
+				}
+			} else {
+				propagateToEventAdmin(mail, ex);
+				future.fail(ex);
+			}
+			throw ex;
+		}
+		propagateToEventAdmin(mail, null);
+		future.set(mail);
+	}
+
+	/**
+	 * Waits for the outcome of a send.
+	 * @param future the handle of the send
+	 * @throws Exception the failure of the send
+	 */
+	private void awaitOutcome(MailFuture future) throws Exception {
+		try {
+			future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Sends the given mail asynchronously using the sender's executor.
+	 * The returned handle completes once the mail is sent, or once it
+	 * failed permanently (retries included). When the outbound queue is
+	 * full, the <tt>smtp.async.policy</tt> applies. A mail written to the
+	 * spool completes its handle once stored, its outcome is only published.
+	 * The mails are taken from the queue by priority (see <tt>smtp.lanes.weights</tt>),
+	 * the high priority mails are also taken by the reserved threads.
+	 * If a mail with the same idempotency key is being sent or was sent,
+	 * the handle of the first send is returned.
+	 * @param mail the mail
+	 * @return the completion handle
+	 * @throws RejectedExecutionException if the queue is full
+	 * @see org.ow2.chameleon.mail.MailSenderService#sendAsync(org.ow2.chameleon.mail.Mail)
+	 */
+	public Future<Mail> sendAsync(final Mail mail) {
+		String key = mail.idempotencyKey();
+		MailFuture future = new MailFuture();
+		if (key != null) {
+			future = m_dedupe.newFuture(key);
+			MailFuture original = m_dedupe.claim(key, future, mail);
+			if (original != null) {
+				return original;
+			}
+		}
+		OutboundQueue.Entry dropped;
+		try {
+			dropped = m_queue.add(new OutboundQueue.Entry(mail, future));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			RejectedExecutionException ex = new RejectedExecutionException(
+					"Interrupted while waiting for the outbound queue", e);
+			future.fail(ex);
+			throw ex;
+		} catch (RejectedExecutionException e) {
+			if (m_queue.getPolicy() != OutboundQueue.Policy.SPILL) {
+				future.fail(e);
+				throw e;
+			}
+			try {
+				m_spool.add(mail);
+			} catch (IOException io) {
+				RejectedExecutionException ex = new RejectedExecutionException("Cannot spool the mail", io);
+				future.fail(ex);
+				throw ex;
+			}
+			m_queue.spilled();
+			future.set(mail);
+			return future;
+		}
+		if (dropped != null) {
+			Exception ex = new RejectedExecutionException("Dropped from the full outbound queue");
+			propagateToEventAdmin(dropped.mail(), ex);
+			dropped.future().fail(ex);
+		}
+		m_executor.execute(new Runnable() {
+			public void run() {
+				OutboundQueue.Entry entry = m_queue.poll();
+				if (entry != null) {
+					attempt(entry.mail(), 1, entry.future());
+				}
+			}
+		});
+		if (m_priorityExecutor != null && mail.priority() == Mail.Priority.HIGH) {
+			// The reserved threads only serve the high priority lane, whatever the backlog of the others.
+			m_priorityExecutor.execute(new Runnable() {
+				public void run() {
+					OutboundQueue.Entry entry = m_queue.poll(Mail.Priority.HIGH);
+					if (entry != null) {
+						attempt(entry.mail(), 1, entry.future());
+					}
+				}
+			});
+		}
+		return future;
+	}
+
+	/**
+	 * Gets the queue of the mails sent asynchronously, to monitor its
+	 * depth and wait time, per priority lane.
+	 * @return the queue
+	 */
+	public OutboundQueue getOutboundQueue() {
+		return m_queue;
+	}
+
+	/**
+	 * Sends a mail, and completes the handle or schedules a retry.
+	 * @param mail the mail
+	 * @param attempt the attempt number, starting at 1
+	 * @param future the completion handle
+	 */
+	private void attempt(Mail mail, int attempt, MailFuture future) {
+		if (future.isCancelled()) {
+			return;
+		}
+		long wait = m_limiter.reserve(rateKey(), mail);
+		if (wait > 0) {
+			// Do not hold the sender thread, send the mail once the permit is available.
+			schedule(mail, attempt, future, wait, true);
+			return;
+		}
+		perform(mail, future, attempt);
+	}
+
+	/**
+	 * Sends a mail once its permit is granted, and completes the handle
+	 * or schedules a retry.
+	 * @param mail the mail
+	 * @param future the completion handle
+	 * @param attempt the attempt number, starting at 1
+	 */
+	private void perform(Mail mail, MailFuture future, int attempt) {
+		if (future.isCancelled()) {
+			return;
+		}
+		NioSmtpEngine engine = m_nio;
+		if (engine != null && m_partitionExecutor == null) {
+			submit(engine, mail, future, attempt);
+			return;
+		}
+		try {
+			deliver(mail);
+		} catch (Exception ex) {
+			onFailure(mail, attempt, future, ex);
+			return;
+		}
+		propagateToEventAdmin(mail, null);
+		future.set(mail);
+	}
+
+	/**
+	 * Hands a mail to the non-blocking SMTP client. The sender thread does
+	 * not wait for the SMTP transaction, the handle is completed by the
+	 * client thread.
+	 * @param engine the client
+	 * @param mail the mail
+	 * @param future the completion handle
+	 * @param attempt the attempt number, starting at 1
+	 */
+	private void submit(NioSmtpEngine engine, final Mail mail, final MailFuture future, final int attempt) {
+		SendContext context = m_context;
+		final long attemptStart = System.nanoTime();
+		Address[] recipients;
+		byte[] data;
+		try {
+			MimeMessage msg = createMessage(mail);
+			prepare(engine, msg);
+			recipients = msg.getAllRecipients();
+			data = NioSmtpEngine.encode(msg);
+		} catch (Exception ex) {
+			m_metrics.record(MailSenderMetrics.PHASE_SEND, attemptStart);
+			onFailure(mail, attempt, future, ex);
+			return;
+		} finally {
+			m_metrics.record(MailSenderMetrics.PHASE_BUILD, attemptStart);
+		}
+		final RelayGroup.Relay relay;
+		final long start;
+		try {
+			relay = select();
+			start = begin();
+		} catch (MessagingException ex) {
+			m_metrics.record(MailSenderMetrics.PHASE_SEND, attemptStart);
+			onFailure(mail, attempt, future, ex);
+			return;
+		}
+		engine.send(relay.host(), relay.port(), context.from(), recipients, data,
+				new NioSmtpEngine.Callback() {
+			public void completed(Exception failure) {
+				end(start, failure);
+				m_metrics.record(MailSenderMetrics.PHASE_SEND, attemptStart);
+				m_relays.record(relay, failure);
+				if (failure == null) {
+					propagateToEventAdmin(mail, null);
+					future.set(mail);
+				} else {
+					onFailure(mail, attempt, future, failure);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Handles a failed attempt: transient failures are scheduled for retry,
+	 * permanent failures complete the handle and are published.
+	 * @param mail the mail
+	 * @param attempt the attempt number
+	 * @param future the completion handle
+	 * @param ex the failure
+	 */
+	private void onFailure(Mail mail, int attempt, MailFuture future, Exception ex) {
+		Mail retry = null;
+		if (m_retry.canRetry(attempt)) {
+			retry = RetryPolicy.getRetry(mail, ex);
+		}
+		if (retry == null) {
+			propagateToEventAdmin(mail, ex);
+			future.fail(ex);
+			return;
+		}
+
+		Mail rejected = RetryPolicy.getRejected(mail, ex);
+		if (rejected != null) {
+			propagateToEventAdmin(rejected, ex);
+		}
+		long delay = m_retry.getDelay(attempt);
+		m_metrics.retried();
+		m_logger.info("Cannot send the mail '" + mail.subject() + "' (" + ex.getMessage()
+				+ "), retrying in " + delay + " ms");
+		schedule(retry, attempt + 1, future, delay, false);
+	}
+
+	/**
+	 * Gets the executor sending a mail: the reserved one for the high
+	 * priority mails, if any.
+	 * @param mail the mail
+	 * @return the executor
+	 */
+	private ExecutorService executor(Mail mail) {
+		if (m_priorityExecutor != null && mail.priority() == Mail.Priority.HIGH) {
+			return m_priorityExecutor;
+		}
+		return m_executor;
+	}
+
+	/**
+	 * Schedules an attempt.
+	 * @param mail the mail
+	 * @param attempt the attempt number
+	 * @param future the completion handle
+	 * @param delay the delay (ms)
+	 * @param permitted whether the rate limiter permit is already reserved
+	 */
+	private void schedule(final Mail mail, final int attempt, final MailFuture future, long delay,
+			final boolean permitted) {
+		m_scheduled.put(future, mail);
+		try {
+			m_scheduler.schedule(new Runnable() {
+				public void run() {
+					if (m_scheduled.remove(future) == null) {
+						// Failed by stop().
+						return;
+					}
+					try {
+						executor(mail).execute(new Runnable() {
+							public void run() {
+								if (permitted) {
+									perform(mail, future, attempt);
+								} else {
+									attempt(mail, attempt, future);
+								}
+							}
+						});
+					} catch (RejectedExecutionException e) {
+						propagateToEventAdmin(mail, e);
+						future.fail(e);
+					}
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// The sender is stopped.
+			if (m_scheduled.remove(future) != null) {
+				propagateToEventAdmin(mail, e);
+				future.fail(e);
+			}
+		}
+	}
+
+	/**
+	 * Fails the mails whose retry was scheduled, once the scheduler is
+	 * stopped: their handles complete and their failure is published.
+	 */
+	private void failScheduled() {
+		RejectedExecutionException stopped = new RejectedExecutionException(
+				"The sender is stopped before the mail could be sent again");
+		for (MailFuture future : m_scheduled.keySet()) {
+			Mail mail = m_scheduled.remove(future);
+			if (mail != null) {
+				propagateToEventAdmin(mail, stopped);
+				future.fail(stopped);
+			}
+		}
 	}
 
 }
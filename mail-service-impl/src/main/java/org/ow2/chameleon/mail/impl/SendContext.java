@@ -0,0 +1,236 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.impl;
+
+import org.ow2.chameleon.mail.impl.SMTPMailSender.Connection;
+
+import javax.mail.Authenticator;
+import javax.mail.MessagingException;
+import javax.mail.PasswordAuthentication;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import java.util.Properties;
+
+/**
+ * The immutable settings used to send mails: the mail session, the parsed
+ * sender address, the transport protocol and the credentials. It is built
+ * once per configuration, so sending a mail does not set anything up.
+ */
+public class SendContext {
+
+    /**
+     * The mail session.
+     */
+    private final Session m_session;
+
+    /**
+     * The sender address.
+     */
+    private final InternetAddress m_from;
+
+    /**
+     * The transport protocol, <tt>smtp</tt> or <tt>smtps</tt>.
+     */
+    private final String m_protocol;
+
+    /**
+     * The connection type.
+     */
+    private final Connection m_connection;
+
+    /**
+     * The relay host.
+     */
+    private final String m_host;
+
+    /**
+     * The relay port.
+     */
+    private final int m_port;
+
+    /**
+     * The username.
+     */
+    private final String m_username;
+
+    /**
+     * The password.
+     */
+    private final String m_password;
+
+    /**
+     * Creates the context.
+     *
+     * @param connection the connection type
+     * @param host       the relay host
+     * @param port       the relay port
+     * @param from       the sender address
+     * @param username   the username
+     * @param password   the password
+     * @param quitWait   whether closing a connection waits for the server reply
+     * @param useSMTPS   enables SMTPS
+     * @param debug      enables the javamail debug output
+     * @throws IllegalArgumentException if the sender address is invalid
+     */
+    public SendContext(Connection connection, String host, int port, String from,
+            final String username, final String password, boolean quitWait, boolean useSMTPS,
+            boolean debug) {
+        this(connection, host, port, from, username, password, quitWait, useSMTPS, debug, true);
+    }
+
+    /**
+     * Creates the context.
+     *
+     * @param connection   the connection type
+     * @param host         the relay host
+     * @param port         the relay port
+     * @param from         the sender address
+     * @param username     the username
+     * @param password     the password
+     * @param quitWait     whether closing a connection waits for the server reply
+     * @param useSMTPS     enables SMTPS
+     * @param debug        enables the javamail debug output
+     * @param allow8bitMime lets javamail send the text parts unencoded when the relay
+     *                     announces 8BITMIME. Javamail converts the message while
+     *                     sending it, so it must be disabled when a message is sent
+     *                     by several threads.
+     * @throws IllegalArgumentException if the sender address is invalid
+     */
+    public SendContext(Connection connection, String host, int port, String from,
+            final String username, final String password, boolean quitWait, boolean useSMTPS,
+            boolean debug, boolean allow8bitMime) {
+        try {
+            m_from = new InternetAddress(from);
+        } catch (AddressException e) {
+            throw new IllegalArgumentException("Invalid sender address " + from, e);
+        }
+        m_connection = connection;
+        m_host = host;
+        m_port = port;
+        m_username = username;
+        m_password = password;
+        m_protocol = useSMTPS ? "smtps" : "smtp";
+
+        Properties properties = new Properties();
+        properties.put("mail.smtp.host", host);
+        properties.put("mail.smtp.port", Integer.toString(port));
+        properties.put("mail.smtps.quitwait", Boolean.toString(quitWait));
+        properties.put("mail.smtp.allow8bitmime", Boolean.toString(allow8bitMime));
+        properties.put("mail.smtps.allow8bitmime", Boolean.toString(allow8bitMime));
+        // The recipients are read back from the headers, internationalized addresses must be accepted.
+        properties.put("mail.mime.address.strict", Boolean.toString(false));
+
+        Authenticator authenticator = null;
+        switch (connection) {
+        case SSL:
+            properties.put("mail.smtp.auth", Boolean.toString(true));
+            // No socket factory port: the SSL sockets use the port of each connection, failover relays included.
+            properties.put("mail.smtp.socketFactory.class", javax.net.ssl.SSLSocketFactory.class.getName());
+            authenticator = new Authenticator() {
+                protected PasswordAuthentication getPasswordAuthentication() {
+                    return new PasswordAuthentication(username, password);
+                }
+            };
+            break;
+        case TLS:
+            properties.put("mail.smtp.auth", Boolean.toString(true));
+            properties.put("mail.smtp.starttls.enable", Boolean.toString(true));
+            break;
+        default:
+            properties.put("mail.smtp.auth", Boolean.toString(false));
+        }
+
+        m_session = Session.getInstance(properties, authenticator);
+        m_session.setDebug(debug);
+    }
+
+    /**
+     * Gets the mail session.
+     *
+     * @return the session
+     */
+    public Session session() {
+        return m_session;
+    }
+
+    /**
+     * Gets the sender address.
+     *
+     * @return the sender address
+     */
+    public InternetAddress from() {
+        return m_from;
+    }
+
+    /**
+     * Gets the relay host.
+     *
+     * @return the host
+     */
+    public String host() {
+        return m_host;
+    }
+
+    /**
+     * Gets the relay port.
+     *
+     * @return the port
+     */
+    public int port() {
+        return m_port;
+    }
+
+    /**
+     * Checks whether the relay is reached without encryption nor
+     * authentication.
+     *
+     * @return <code>true</code> for plain SMTP connections
+     */
+    public boolean isPlain() {
+        return m_connection == Connection.NO_AUTH && "smtp".equals(m_protocol);
+    }
+
+    /**
+     * Opens a connection to a relay.
+     *
+     * @param host the relay host
+     * @return the connected transport
+     * @throws MessagingException if the connection cannot be opened
+     */
+    public Transport connect(String host) throws MessagingException {
+        return connect(host, m_port);
+    }
+
+    /**
+     * Opens a connection to a relay.
+     *
+     * @param host the relay host
+     * @param port the relay port
+     * @return the connected transport
+     * @throws MessagingException if the connection cannot be opened
+     */
+    public Transport connect(String host, int port) throws MessagingException {
+        Transport transport = m_session.getTransport(m_protocol);
+        if (m_connection == Connection.TLS) {
+            transport.connect(host, port, m_username, m_password);
+        } else {
+            transport.connect(host, port, null, null);
+        }
+        return transport;
+    }
+
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.impl;
+
+import org.ow2.chameleon.mail.MailSenderMetrics;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The metrics of a sender: a latency histogram per phase, and counters of
+ * the outcomes. Recording does not lock nor allocate.
+ */
+public class SendMetrics implements MailSenderMetrics {
+
+    /**
+     * The histograms, per phase. Not modified once built.
+     */
+    private final Map<String, LatencyHistogram> m_phases;
+
+    /**
+     * Number of mails sent.
+     */
+    private final AtomicLong m_sent = new AtomicLong();
+
+    /**
+     * Number of mails which could not be sent.
+     */
+    private final AtomicLong m_failed = new AtomicLong();
+
+    /**
+     * Number of retries.
+     */
+    private final AtomicLong m_retries = new AtomicLong();
+
+    /**
+     * Creates the metrics.
+     */
+    public SendMetrics() {
+        Map<String, LatencyHistogram> phases = new LinkedHashMap<String, LatencyHistogram>();
+        phases.put(PHASE_BUILD, new LatencyHistogram());
+        phases.put(PHASE_CONNECT, new LatencyHistogram());
+        phases.put(PHASE_TRANSACTION, new LatencyHistogram());
+        phases.put(PHASE_SEND, new LatencyHistogram());
+        m_phases = Collections.unmodifiableMap(phases);
+    }
+
+    /**
+     * Records the duration of a phase.
+     *
+     * @param phase the phase
+     * @param start the start time of the phase, given by {@link System#nanoTime()}
+     */
+    public void record(String phase, long start) {
+        histogram(phase).recordSince(start);
+    }
+
+    /**
+     * Records the outcome of a mail.
+     *
+     * @param failure the failure, <code>null</code> if the mail was sent
+     */
+    public void outcome(Exception failure) {
+        if (failure == null) {
+            m_sent.incrementAndGet();
+        } else {
+            m_failed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records a retry.
+     */
+    public void retried() {
+        m_retries.incrementAndGet();
+    }
+
+    /**
+     * Gets the histogram of a phase.
+     *
+     * @param phase the phase
+     * @return the histogram (&micro;s)
+     * @throws IllegalArgumentException if the phase is unknown
+     */
+    public LatencyHistogram histogram(String phase) {
+        LatencyHistogram histogram = m_phases.get(phase);
+        if (histogram == null) {
+            throw new IllegalArgumentException("Unknown phase " + phase + ", expected one of " + m_phases.keySet());
+        }
+        return histogram;
+    }
+
+    /**
+     * @return the number of mails sent successfully
+     * @see org.ow2.chameleon.mail.MailSenderMetrics#getSentCount()
+     */
+    public long getSentCount() {
+        return m_sent.get();
+    }
+
+    /**
+     * @return the number of failed mails
+     * @see org.ow2.chameleon.mail.MailSenderMetrics#getFailedCount()
+     */
+    public long getFailedCount() {
+        return m_failed.get();
+    }
+
+    /**
+     * @return the number of retries
+     * @see org.ow2.chameleon.mail.MailSenderMetrics#getRetryCount()
+     */
+    public long getRetryCount() {
+        return m_retries.get();
+    }
+
+    /**
+     * @param phase the phase
+     * @return the number of samples
+     * @see org.ow2.chameleon.mail.MailSenderMetrics#getCount(java.lang.String)
+     */
+    public long getCount(String phase) {
+        return histogram(phase).getCount();
+    }
+
+    /**
+     * @param phase the phase
+     * @return the mean latency (ms)
+     * @see org.ow2.chameleon.mail.MailSenderMetrics#getMeanLatency(java.lang.String)
+     */
+    public double getMeanLatency(String phase) {
+        return histogram(phase).getMean() / 1000;
+    }
+
+    /**
+     * @param phase the phase
+     * @return the maximum latency (ms)
+     * @see org.ow2.chameleon.mail.MailSenderMetrics#getMaxLatency(java.lang.String)
+     */
+    public double getMaxLatency(String phase) {
+        return histogram(phase).getMax() / 1000.0;
+    }
+
+    /**
+     * @param phase the phase
+     * @param percentile the percentile
+     * @return the latency (ms)
+     * @see org.ow2.chameleon.mail.MailSenderMetrics#getLatency(java.lang.String, double)
+     */
+    public double getLatency(String phase, double percentile) {
+        return histogram(phase).getPercentile(percentile) / 1000.0;
+    }
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.impl;
+
+import org.ow2.chameleon.mail.AttachmentSource;
+
+import javax.activation.DataSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Read-only {@link DataSource} streaming an {@link AttachmentSource} to the
+ * MIME encoder.
+ */
+public class SourceDataSource implements DataSource {
+
+    /**
+     * The attachment.
+     */
+    private final AttachmentSource m_source;
+
+    /**
+     * Creates the data source.
+     *
+     * @param source the attachment
+     */
+    public SourceDataSource(AttachmentSource source) {
+        m_source = source;
+    }
+
+    /**
+     * @return the content type of the attachment
+     * @see javax.activation.DataSource#getContentType()
+     */
+    public String getContentType() {
+        return m_source.getContentType();
+    }
+
+    /**
+     * @return a new stream on the attachment content
+     * @throws IOException if the content cannot be read
+     * @see javax.activation.DataSource#getInputStream()
+     */
+    public InputStream getInputStream() throws IOException {
+        return m_source.getInputStream();
+    }
+
+    /**
+     * @return the attachment name
+     * @see javax.activation.DataSource#getName()
+     */
+    public String getName() {
+        return m_source.getName();
+    }
+
+    /**
+     * Not supported, the source is read-only.
+     *
+     * @return never
+     * @throws IOException always
+     * @see javax.activation.DataSource#getOutputStream()
+     */
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException("Attachment sources are read-only");
+    }
+
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the threads of the senders and receivers, according to their
+ * execution mode: <tt>platform</tt> (default) or <tt>virtual</tt>.
+ * Virtual threads are created by reflection, so the bundle still runs on
+ * JVMs without them (before Java 21); platform threads are used instead.
+ * <p/>
+ * On JVMs before Java 24, a virtual thread blocked in a javamail
+ * <code>synchronized</code> method pins its carrier thread.
+ */
+public final class Threads {
+
+    /**
+     * The platform thread mode.
+     */
+    public static final String PLATFORM = "platform";
+
+    /**
+     * The virtual thread mode.
+     */
+    public static final String VIRTUAL = "virtual";
+
+    /**
+     * The logger.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(Threads.class.getName());
+
+    /**
+     * <code>Thread.ofVirtual()</code>, <code>null</code> if not available.
+     */
+    private static final Method OF_VIRTUAL;
+
+    /**
+     * <code>Thread.Builder.name(String)</code>.
+     */
+    private static final Method NAME;
+
+    /**
+     * <code>Thread.Builder.name(String, long)</code>.
+     */
+    private static final Method NAME_COUNTER;
+
+    /**
+     * <code>Thread.Builder.factory()</code>.
+     */
+    private static final Method FACTORY;
+
+    /**
+     * <code>Thread.Builder.unstarted(Runnable)</code>.
+     */
+    private static final Method UNSTARTED;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method nameCounter = null;
+        Method factory = null;
+        Method unstarted = null;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            name = builder.getMethod("name", String.class);
+            nameCounter = builder.getMethod("name", String.class, long.class);
+            factory = builder.getMethod("factory");
+            unstarted = builder.getMethod("unstarted", Runnable.class);
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            // Fails if virtual threads are a disabled preview feature.
+            ofVirtual.invoke(null);
+        } catch (Exception e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        NAME_COUNTER = nameCounter;
+        FACTORY = factory;
+        UNSTARTED = unstarted;
+    }
+
+    /**
+     * Not instantiable.
+     */
+    private Threads() {
+        // Utility class.
+    }
+
+    /**
+     * Checks whether the JVM supports virtual threads.
+     *
+     * @return <code>true</code> if virtual threads can be created
+     */
+    public static boolean isVirtualSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Checks whether an execution mode uses virtual threads. A warning is
+     * logged if virtual threads are requested but not supported.
+     *
+     * @param mode the execution mode, <code>null</code> for <tt>platform</tt>
+     * @return <code>true</code> if virtual threads must be used
+     * @throws IllegalArgumentException if the mode is unknown
+     */
+    public static boolean isVirtual(String mode) {
+        if (mode == null || mode.length() == 0 || PLATFORM.equalsIgnoreCase(mode)) {
+            return false;
+        }
+        if (! VIRTUAL.equalsIgnoreCase(mode)) {
+            throw new IllegalArgumentException("Unknown execution mode " + mode + ", expected "
+                    + PLATFORM + " or " + VIRTUAL);
+        }
+        if (! isVirtualSupported()) {
+            LOGGER.warn("Virtual threads are not supported by this JVM, using platform threads");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Creates a thread factory. Platform threads are daemon threads.
+     *
+     * @param prefix  the thread name prefix, the threads are named <tt>prefix-N</tt>
+     * @param virtual creates virtual threads if supported
+     * @return the factory
+     */
+    public static ThreadFactory factory(final String prefix, boolean virtual) {
+        if (virtual && OF_VIRTUAL != null) {
+            try {
+                Object builder = NAME_COUNTER.invoke(OF_VIRTUAL.invoke(null), prefix + "-", 1L);
+                return (ThreadFactory) FACTORY.invoke(builder);
+            } catch (Exception e) {
+                LOGGER.warn("Cannot create virtual threads, using platform threads", e);
+            }
+        }
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Creates a thread, not started. Like <code>new Thread</code>, a platform
+     * thread is a daemon thread only if the calling thread is one.
+     *
+     * @param name     the thread name
+     * @param runnable the task
+     * @param virtual  creates a virtual thread if supported
+     * @return the thread
+     */
+    public static Thread create(String name, Runnable runnable, boolean virtual) {
+        if (virtual && OF_VIRTUAL != null) {
+            try {
+                Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name);
+                return (Thread) UNSTARTED.invoke(builder, runnable);
+            } catch (Exception e) {
+                LOGGER.warn("Cannot create a virtual thread, using a platform thread", e);
+            }
+        }
+        return new Thread(runnable, name);
+    }
+
+}
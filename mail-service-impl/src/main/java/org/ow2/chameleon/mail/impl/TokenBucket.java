@@ -0,0 +1,94 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.impl;
+
+/**
+ * Token bucket: permits are added at a fixed rate, up to a maximum burst.
+ * Permits are reserved in advance: when the bucket is empty, the permit is
+ * still granted but the caller is told how long to wait before using it,
+ * so callers can be scheduled instead of blocked.
+ */
+public class TokenBucket {
+
+    /**
+     * Permits added per nanosecond.
+     */
+    private final double m_rate;
+
+    /**
+     * Maximum number of available permits.
+     */
+    private final double m_burst;
+
+    /**
+     * Available permits, negative when permits are reserved in advance.
+     */
+    private double m_tokens;
+
+    /**
+     * Last refill time (ns).
+     */
+    private long m_last;
+
+    /**
+     * Creates a bucket, initially full.
+     *
+     * @param rate  the number of permits per second
+     * @param burst the maximum number of permits accumulated
+     */
+    public TokenBucket(double rate, double burst) {
+        m_rate = rate / 1000000000d;
+        m_burst = Math.max(1, burst);
+        m_tokens = m_burst;
+        m_last = System.nanoTime();
+    }
+
+    /**
+     * Reserves a permit.
+     *
+     * @param now the current time (ns), from {@link System#nanoTime()}
+     * @return the time (ns) to wait before using the permit, 0 if it can be used immediately
+     */
+    public synchronized long reserve(long now) {
+        if (now > m_last) {
+            m_tokens = Math.min(m_burst, m_tokens + (now - m_last) * m_rate);
+            m_last = now;
+        }
+        m_tokens -= 1;
+        if (m_tokens >= 0) {
+            return 0;
+        }
+        return (long) (-m_tokens / m_rate);
+    }
+
+    /**
+     * Computes the time to wait for a permit, without reserving it.
+     *
+     * @param now the current time (ns), from {@link System#nanoTime()}
+     * @return the time (ns) {@link #reserve(long)} would return
+     */
+    public synchronized long peek(long now) {
+        double tokens = m_tokens;
+        if (now > m_last) {
+            tokens = Math.min(m_burst, tokens + (now - m_last) * m_rate);
+        }
+        tokens -= 1;
+        if (tokens >= 0) {
+            return 0;
+        }
+        return (long) (-tokens / m_rate);
+    }
+
+}
@@ -0,0 +1,471 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.mail.MessagingException;
+import javax.mail.Transport;
+import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of connected (and authenticated) SMTP {@link Transport}s.
+ * Transports are pooled per host so the TCP, TLS and AUTH handshakes are paid
+ * once per connection instead of once per mail. Idle transports are evicted
+ * after <tt>maxIdle</tt> milliseconds, transports older than <tt>maxAge</tt>
+ * are never reused, and transports idle for more than <tt>validateAfter</tt>
+ * are checked (NOOP) before being handed out.
+ */
+public class TransportPool {
+
+    /**
+     * Opens new transports.
+     */
+    public interface Connector {
+
+        /**
+         * Creates a connected transport.
+         *
+         * @param host the host to connect to
+         * @return the connected transport
+         * @throws MessagingException if the connection cannot be established
+         */
+        Transport connect(String host) throws MessagingException;
+    }
+
+    /**
+     * A transport borrowed from the pool.
+     */
+    public static final class Entry {
+
+        /**
+         * The host.
+         */
+        private final String m_host;
+
+        /**
+         * The connected transport.
+         */
+        private final Transport m_transport;
+
+        /**
+         * Creation date (ms).
+         */
+        private final long m_created;
+
+        /**
+         * Last time the entry was returned to the pool (ms).
+         */
+        private long m_lastUsed;
+
+        /**
+         * Was the entry borrowed with a reserved permit?
+         */
+        private boolean m_priority;
+
+        /**
+         * Creates an entry.
+         *
+         * @param host      the host
+         * @param transport the connected transport
+         */
+        Entry(String host, Transport transport) {
+            m_host = host;
+            m_transport = transport;
+            m_created = System.currentTimeMillis();
+            m_lastUsed = m_created;
+        }
+
+        /**
+         * Gets the transport.
+         *
+         * @return the connected transport
+         */
+        public Transport transport() {
+            return m_transport;
+        }
+
+        /**
+         * Gets the host.
+         *
+         * @return the host this transport is connected to
+         */
+        public String host() {
+            return m_host;
+        }
+    }
+
+    /**
+     * Per-host state: idle transports and connection permits.
+     */
+    private static final class Slot {
+
+        /**
+         * Idle transports, most recently used first.
+         */
+        private final LinkedList<Entry> m_idle = new LinkedList<Entry>();
+
+        /**
+         * Bounds the number of connections open to the host.
+         */
+        private final Semaphore m_permits;
+
+        /**
+         * Bounds the number of connections reserved to priority borrowers.
+         */
+        private final Semaphore m_reserved;
+
+        /**
+         * Creates the slot.
+         *
+         * @param size     the maximum number of connections
+         * @param reserved the number of connections reserved to priority borrowers
+         */
+        Slot(int size, int reserved) {
+            m_permits = new Semaphore(size - reserved, true);
+            m_reserved = new Semaphore(reserved);
+        }
+    }
+
+    /**
+     * The logger.
+     */
+    private final Logger m_logger = LoggerFactory.getLogger(TransportPool.class.getName());
+
+    /**
+     * The connector.
+     */
+    private final Connector m_connector;
+
+    /**
+     * Maximum number of connections per host, 0 disables pooling.
+     */
+    private final int m_size;
+
+    /**
+     * Number of connections per host reserved to priority borrowers.
+     */
+    private final int m_reserved;
+
+    /**
+     * Maximum idle time (ms).
+     */
+    private final long m_maxIdle;
+
+    /**
+     * Maximum age of a connection (ms).
+     */
+    private final long m_maxAge;
+
+    /**
+     * Idle time (ms) after which a transport is checked before reuse.
+     */
+    private final long m_validateAfter;
+
+    /**
+     * Maximum time (ms) to wait for a connection.
+     */
+    private final long m_timeout;
+
+    /**
+     * The per-host slots.
+     */
+    private final Map<String, Slot> m_slots = new HashMap<String, Slot>();
+
+    /**
+     * Evicts idle transports.
+     */
+    private Timer m_evictor;
+
+    /**
+     * Is the pool closed?
+     */
+    private boolean m_closed;
+
+    /**
+     * Creates a pool.
+     *
+     * @param connector     the connector used to open new transports
+     * @param size          the maximum number of connections per host, 0 disables pooling
+     * @param maxIdle       the maximum idle time (ms)
+     * @param maxAge        the maximum age of a connection (ms)
+     * @param validateAfter the idle time (ms) after which a transport is checked before reuse
+     * @param timeout       the maximum time (ms) to wait for a connection
+     */
+    public TransportPool(Connector connector, int size, long maxIdle, long maxAge,
+                         long validateAfter, long timeout) {
+        this(connector, size, maxIdle, maxAge, validateAfter, timeout, 0);
+    }
+
+    /**
+     * Creates a pool reserving connections to priority borrowers. At least
+     * one connection per host stays shared.
+     *
+     * @param connector     the connector used to open new transports
+     * @param size          the maximum number of connections per host, 0 disables pooling
+     * @param maxIdle       the maximum idle time (ms)
+     * @param maxAge        the maximum age of a connection (ms)
+     * @param validateAfter the idle time (ms) after which a transport is checked before reuse
+     * @param timeout       the maximum time (ms) to wait for a connection
+     * @param reserved      the number of connections per host reserved to priority borrowers
+     */
+    public TransportPool(Connector connector, int size, long maxIdle, long maxAge,
+                         long validateAfter, long timeout, int reserved) {
+        m_connector = connector;
+        m_size = size;
+        m_reserved = Math.max(0, Math.min(reserved, size - 1));
+        m_maxIdle = maxIdle;
+        m_maxAge = maxAge;
+        m_validateAfter = validateAfter;
+        m_timeout = timeout;
+
+        if (m_size > 0 && m_maxIdle > 0) {
+            m_evictor = new Timer("smtp-pool-evictor", true);
+            m_evictor.schedule(new TimerTask() {
+                public void run() {
+                    evict();
+                }
+            }, m_maxIdle, m_maxIdle);
+        }
+    }
+
+    /**
+     * Borrows a connected transport to the given host.
+     * The transport must be given back using {@link #release(Entry, boolean)}.
+     *
+     * @param host the host
+     * @return the pooled transport
+     * @throws MessagingException if no connection can be established or if the pool
+     *                            is exhausted for longer than the timeout
+     */
+    public Entry borrow(String host) throws MessagingException {
+        return borrow(host, false);
+    }
+
+    /**
+     * Borrows a connected transport to the given host. Priority borrowers
+     * first use the reserved connections, then the shared ones.
+     * The transport must be given back using {@link #release(Entry, boolean)}.
+     *
+     * @param host     the host
+     * @param priority <code>true</code> to use the reserved connections
+     * @return the pooled transport
+     * @throws MessagingException if no connection can be established or if the pool
+     *                            is exhausted for longer than the timeout
+     */
+    public Entry borrow(String host, boolean priority) throws MessagingException {
+        if (m_size <= 0) {
+            return new Entry(host, m_connector.connect(host));
+        }
+
+        Slot slot = getSlot(host);
+        Semaphore permits = slot.m_permits;
+        if (priority && slot.m_reserved.tryAcquire()) {
+            permits = slot.m_reserved;
+        } else {
+            try {
+                if (!permits.tryAcquire(m_timeout, TimeUnit.MILLISECONDS)) {
+                    throw new MessagingException("No SMTP connection to " + host + " available after "
+                            + m_timeout + " ms");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MessagingException("Interrupted while waiting for a SMTP connection", e);
+            }
+        }
+
+        try {
+            Entry entry;
+            while ((entry = pollIdle(slot)) != null) {
+                if (isReusable(entry)) {
+                    entry.m_priority = permits == slot.m_reserved;
+                    return entry;
+                }
+                close(entry);
+            }
+            entry = new Entry(host, m_connector.connect(host));
+            entry.m_priority = permits == slot.m_reserved;
+            return entry;
+        } catch (MessagingException e) {
+            permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Gives back a borrowed transport.
+     *
+     * @param entry  the borrowed transport
+     * @param broken <code>true</code> if the transport must not be reused
+     *               (protocol error, connection lost...)
+     */
+    public void release(Entry entry, boolean broken) {
+        if (m_size <= 0) {
+            close(entry);
+            return;
+        }
+
+        Slot slot = getSlot(entry.m_host);
+        boolean keep = false;
+        synchronized (this) {
+            if (!broken && !m_closed && !isTooOld(entry, System.currentTimeMillis())) {
+                entry.m_lastUsed = System.currentTimeMillis();
+                slot.m_idle.addFirst(entry);
+                keep = true;
+            }
+        }
+        if (entry.m_priority) {
+            slot.m_reserved.release();
+        } else {
+            slot.m_permits.release();
+        }
+        if (!keep) {
+            close(entry);
+        }
+    }
+
+    /**
+     * Closes idle transports that have not been used for <tt>maxIdle</tt>
+     * milliseconds or that are older than <tt>maxAge</tt>.
+     */
+    public void evict() {
+        List<Entry> evicted = new ArrayList<Entry>();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            for (Slot slot : m_slots.values()) {
+                Iterator<Entry> iterator = slot.m_idle.iterator();
+                while (iterator.hasNext()) {
+                    Entry entry = iterator.next();
+                    if (isTooOld(entry, now) || (m_maxIdle > 0 && now - entry.m_lastUsed >= m_maxIdle)) {
+                        iterator.remove();
+                        evicted.add(entry);
+                    }
+                }
+            }
+        }
+        for (Entry entry : evicted) {
+            close(entry);
+        }
+    }
+
+    /**
+     * Closes the pool and all idle transports.
+     * Borrowed transports are closed when released.
+     */
+    public void close() {
+        List<Entry> idle = new ArrayList<Entry>();
+        synchronized (this) {
+            m_closed = true;
+            for (Slot slot : m_slots.values()) {
+                idle.addAll(slot.m_idle);
+                slot.m_idle.clear();
+            }
+        }
+        if (m_evictor != null) {
+            m_evictor.cancel();
+        }
+        for (Entry entry : idle) {
+            close(entry);
+        }
+    }
+
+    /**
+     * Gets the number of idle transports to the given host.
+     *
+     * @param host the host
+     * @return the number of idle transports
+     */
+    public synchronized int getIdleCount(String host) {
+        Slot slot = m_slots.get(host);
+        if (slot == null) {
+            return 0;
+        }
+        return slot.m_idle.size();
+    }
+
+    /**
+     * Gets (or creates) the slot of the given host.
+     *
+     * @param host the host
+     * @return the slot
+     */
+    private synchronized Slot getSlot(String host) {
+        Slot slot = m_slots.get(host);
+        if (slot == null) {
+            slot = new Slot(m_size, m_reserved);
+            m_slots.put(host, slot);
+        }
+        return slot;
+    }
+
+    /**
+     * Pops the most recently used idle transport.
+     *
+     * @param slot the slot
+     * @return the transport, <code>null</code> if none
+     */
+    private synchronized Entry pollIdle(Slot slot) {
+        return slot.m_idle.poll();
+    }
+
+    /**
+     * Checks whether the given idle transport can be reused.
+     *
+     * @param entry the transport
+     * @return <code>true</code> if the transport is still alive
+     */
+    private boolean isReusable(Entry entry) {
+        long now = System.currentTimeMillis();
+        if (isTooOld(entry, now)) {
+            return false;
+        }
+        if (now - entry.m_lastUsed >= m_validateAfter) {
+            // Sends a NOOP command.
+            return entry.m_transport.isConnected();
+        }
+        return true;
+    }
+
+    /**
+     * Checks the age of a transport.
+     *
+     * @param entry the transport
+     * @param now   the current time
+     * @return <code>true</code> if the transport exceeds the maximum age
+     */
+    private boolean isTooOld(Entry entry, long now) {
+        return m_maxAge > 0 && now - entry.m_created >= m_maxAge;
+    }
+
+    /**
+     * Closes a transport, ignoring errors.
+     *
+     * @param entry the transport
+     */
+    private void close(Entry entry) {
+        try {
+            entry.m_transport.close();
+        } catch (MessagingException e) {
+            m_logger.debug("Cannot close the SMTP connection to " + entry.m_host, e);
+        }
+    }
+
+}
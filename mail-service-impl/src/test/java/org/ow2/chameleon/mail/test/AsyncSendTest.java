@@ -0,0 +1,93 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.SendFailedException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.ow2.chameleon.mail.Mail;
+import org.ow2.chameleon.mail.impl.SMTPMailSender;
+
+
+public class AsyncSendTest {
+
+	private FakeSMTPServer server;
+
+	private SMTPMailSender sender;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new FakeSMTPServer();
+		sender = server.createSender(new Properties());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		sender.stop();
+		server.stop();
+	}
+
+	@Test
+	public void testSendAsync() throws Exception {
+		List<Future<Mail>> futures = new ArrayList<Future<Mail>>();
+		for (int i = 0; i < 10; i++) {
+			futures.add(sender.sendAsync(new Mail("to@localhost", "Mail " + i, "This is the mail " + i)));
+		}
+		for (Future<Mail> future : futures) {
+			Assert.assertNotNull(future.get().sent());
+		}
+		Assert.assertEquals(10, server.getMessages().size());
+	}
+
+	@Test
+	public void testSendAsyncFailure() throws Exception {
+		server.reply("invalid@localhost", "550 No such user");
+		Future<Mail> future = sender.sendAsync(new Mail("invalid@localhost", "Rejected", "This mail is rejected"));
+		try {
+			future.get();
+			Assert.fail("The mail should have been rejected");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof SendFailedException);
+		}
+	}
+
+	@Test
+	public void testStopSendsTheQueuedMails() throws Exception {
+		server.greetingDelay(50);
+		Properties options = new Properties();
+		options.setProperty("smtp.engine", "nio");
+		SMTPMailSender stopped = server.createSender(options);
+		List<Future<Mail>> futures = new ArrayList<Future<Mail>>();
+		for (int i = 0; i < 10; i++) {
+			futures.add(stopped.sendAsync(new Mail("to@localhost", "Mail " + i, "Queued before stop")));
+		}
+		stopped.stop();
+		for (Future<Mail> future : futures) {
+			Assert.assertNotNull(future.get(1, TimeUnit.SECONDS).sent());
+		}
+		Assert.assertEquals(10, server.getMessages().size());
+	}
+
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.internet.MimeBodyPart;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.ow2.chameleon.mail.Mail;
+import org.ow2.chameleon.mail.impl.EncodedAttachmentCache;
+import org.ow2.chameleon.mail.impl.SMTPMailSender;
+
+
+public class AttachmentCacheTest {
+
+	private List<File> files = new ArrayList<File>();
+
+	@After
+	public void tearDown() {
+		for (File file : files) {
+			file.delete();
+		}
+	}
+
+	private File createFile(int size, int seed) throws Exception {
+		File file = File.createTempFile("attachment", ".bin");
+		files.add(file);
+		FileOutputStream out = new FileOutputStream(file);
+		for (int i = 0; i < size; i++) {
+			out.write(i + seed);
+		}
+		out.close();
+		return file;
+	}
+
+	@Test
+	public void testFileIsEncodedOnce() throws Exception {
+		FakeSMTPServer server = new FakeSMTPServer();
+		Properties options = new Properties();
+		options.setProperty("smtp.attachmentCache.size", "1048576");
+		SMTPMailSender sender = server.createSender(options);
+		try {
+			File file = createFile(10000, 0);
+			List<Mail> mails = new ArrayList<Mail>();
+			for (int i = 0; i < 10; i++) {
+				mails.add(new Mail("user" + i + "@localhost", "Report", "See attached").attach(file));
+			}
+			sender.send(mails);
+
+			EncodedAttachmentCache cache = sender.getAttachmentCache();
+			Assert.assertEquals(1, cache.getMissCount());
+			Assert.assertEquals(9, cache.getHitCount());
+			Assert.assertEquals(10, server.getMessages().size());
+			for (String message : server.getMessages()) {
+				Assert.assertTrue(message.contains("Content-Transfer-Encoding: base64"));
+				Assert.assertTrue(message.contains("\nAAECAwQFBgcICQoL"));
+			}
+		} finally {
+			sender.stop();
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testModifiedFileIsEncodedAgain() throws Exception {
+		EncodedAttachmentCache cache = new EncodedAttachmentCache(1024 * 1024);
+		File file = createFile(1000, 0);
+		cache.createPart(file);
+		FileOutputStream out = new FileOutputStream(file, true);
+		out.write(42);
+		out.close();
+		cache.createPart(file);
+		Assert.assertEquals(2, cache.getMissCount());
+	}
+
+	@Test
+	public void testCopiesShareTheEncodedContent() throws Exception {
+		EncodedAttachmentCache cache = new EncodedAttachmentCache(1024 * 1024);
+		cache.createPart(createFile(3000, 0));
+		long size = cache.getSize();
+		cache.createPart(createFile(3000, 0));
+		Assert.assertEquals(size, cache.getSize());
+	}
+
+	@Test
+	public void testLeastRecentlyUsedIsEvicted() throws Exception {
+		// Each file takes about 4 KB once encoded.
+		EncodedAttachmentCache cache = new EncodedAttachmentCache(10000);
+		File first = createFile(3000, 1);
+		File second = createFile(3000, 2);
+		File third = createFile(3000, 3);
+		cache.createPart(first);
+		cache.createPart(second);
+		cache.createPart(first);
+		cache.createPart(third);
+		Assert.assertTrue(cache.getSize() <= 10000);
+
+		cache.createPart(first);
+		Assert.assertEquals(2, cache.getHitCount());
+		cache.createPart(second);
+		Assert.assertEquals(4, cache.getMissCount());
+
+		MimeBodyPart part = cache.createPart(third);
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		part.writeTo(content);
+		Assert.assertTrue(content.toString("US-ASCII").contains("filename=" + third.getName()));
+	}
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.ow2.chameleon.mail.Attachments;
+import org.ow2.chameleon.mail.Mail;
+import org.ow2.chameleon.mail.impl.SMTPMailSender;
+
+
+public class AttachmentSourceTest {
+
+	private FakeSMTPServer server;
+
+	private SMTPMailSender sender;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new FakeSMTPServer();
+		sender = server.createSender(new Properties());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		sender.stop();
+		server.stop();
+	}
+
+	@Test
+	public void testInMemoryAttachments() throws Exception {
+		ByteBuffer buffer = ByteBuffer.wrap("--buffer content--".getBytes("US-ASCII"));
+		buffer.position(2);
+		buffer.limit(buffer.capacity() - 2);
+		Mail mail = new Mail("to@localhost", "Reports", "See attached")
+				.attach(Attachments.of("bytes.txt", "text/plain", "byte array content".getBytes("US-ASCII")))
+				.attach(Attachments.of("buffer.txt", "text/plain", buffer));
+		sender.send(mail);
+		sender.send(mail);
+
+		Assert.assertEquals(2, server.getMessages().size());
+		for (String message : server.getMessages()) {
+			Assert.assertTrue(message.contains("filename=bytes.txt"));
+			Assert.assertTrue(message.contains("byte array content"));
+			Assert.assertTrue(message.contains("filename=buffer.txt"));
+			Assert.assertTrue(message.contains("buffer content"));
+			Assert.assertFalse(message.contains("--buffer content--"));
+		}
+		// The buffer is not consumed.
+		Assert.assertEquals(2, buffer.position());
+	}
+
+	@Test
+	public void testMappedFileRegion() throws Exception {
+		File file = File.createTempFile("region", ".bin");
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			byte[] region = new byte[4096];
+			for (int i = 0; i < region.length; i++) {
+				region[i] = (byte) i;
+			}
+			out.write(new byte[100]);
+			out.write(region);
+			out.close();
+
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = raf.getChannel();
+				sender.send(new Mail("to@localhost", "Region", "See attached")
+						.attach(Attachments.of("region.bin", "application/octet-stream", channel, 100, 4096)));
+			} finally {
+				raf.close();
+			}
+
+			// Base64 of the bytes 0, 1, 2... starting the region.
+			Assert.assertTrue(server.getMessages().get(0).contains("\nAAECAwQFBgcICQoL"));
+		} finally {
+			file.delete();
+		}
+	}
+
+}
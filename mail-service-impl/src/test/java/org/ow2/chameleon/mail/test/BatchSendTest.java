@@ -0,0 +1,76 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.SendFailedException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.ow2.chameleon.mail.Mail;
+import org.ow2.chameleon.mail.impl.SMTPMailSender;
+
+
+public class BatchSendTest {
+
+	private FakeSMTPServer server;
+
+	private SMTPMailSender sender;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new FakeSMTPServer();
+		sender = server.createSender(new Properties());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		sender.stop();
+		server.stop();
+	}
+
+	@Test
+	public void testBatchUsesASingleConnection() throws Exception {
+		server.reply("invalid@localhost", "550 No such user");
+		List<Mail> mails = new ArrayList<Mail>();
+		for (int i = 0; i < 20; i++) {
+			mails.add(new Mail("to" + i + "@localhost", "Mail " + i, "This is the mail " + i));
+		}
+		mails.add(5, new Mail("invalid@localhost", "Rejected", "This mail is rejected"));
+		mails.add(new Mail());
+
+		List<Exception> results = sender.send(mails);
+
+		Assert.assertEquals(mails.size(), results.size());
+		for (int i = 0; i < results.size(); i++) {
+			if (i == 5) {
+				Assert.assertTrue(results.get(i) instanceof SendFailedException);
+			} else if (i == results.size() - 1) {
+				// No recipient.
+				Assert.assertNotNull(results.get(i));
+			} else {
+				Assert.assertNull(results.get(i));
+			}
+		}
+		Assert.assertEquals(20, server.getMessages().size());
+		Assert.assertEquals(1, server.getConnectionCount());
+	}
+
+}
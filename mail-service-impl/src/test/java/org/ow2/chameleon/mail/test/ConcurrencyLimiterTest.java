@@ -0,0 +1,157 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.test;
+
+import java.util.Properties;
+
+import javax.mail.MessagingException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.ow2.chameleon.mail.Mail;
+import org.ow2.chameleon.mail.impl.ConcurrencyLimiter;
+import org.ow2.chameleon.mail.impl.SMTPMailSender;
+
+import com.sun.mail.smtp.SMTPSendFailedException;
+
+
+public class ConcurrencyLimiterTest {
+
+	private FakeSMTPServer server;
+
+	private SMTPMailSender sender;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new FakeSMTPServer();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (sender != null) {
+			sender.stop();
+		}
+		server.stop();
+	}
+
+	private static MessagingException overloaded(int code) {
+		return new SMTPSendFailedException("RCPT TO", code, code + " Try again later", null, null, null, null);
+	}
+
+	@Test
+	public void testAdditiveIncrease() throws Exception {
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 4, 1, 0);
+		limiter.release(limiter.acquire(100), null);
+		Assert.assertEquals(2, limiter.getLimit());
+		for (int round = 0; round < 20; round++) {
+			long[] starts = new long[limiter.getLimit()];
+			for (int i = 0; i < starts.length; i++) {
+				starts[i] = limiter.acquire(100);
+			}
+			for (long start : starts) {
+				limiter.release(start, null);
+			}
+		}
+		Assert.assertEquals(4, limiter.getLimit());
+		Assert.assertEquals(0, limiter.getInFlight());
+	}
+
+	@Test
+	public void testOverloadHalvesTheLimit() throws Exception {
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 16, 8, 0);
+		long first = limiter.acquire(100);
+		long second = limiter.acquire(100);
+		limiter.release(first, overloaded(451));
+		Assert.assertEquals(4, limiter.getLimit());
+		// Started before the decrease, same round.
+		limiter.release(second, overloaded(421));
+		Assert.assertEquals(4, limiter.getLimit());
+		Assert.assertEquals(1, limiter.getDecreaseCount());
+
+		// A rejected mail does not show congestion.
+		limiter.release(limiter.acquire(100), overloaded(550));
+		Assert.assertEquals(4, limiter.getLimit());
+	}
+
+	private static void transaction(ConcurrencyLimiter limiter, long duration) throws Exception {
+		long start = limiter.acquire(100);
+		Thread.sleep(duration);
+		limiter.release(start, null);
+	}
+
+	@Test
+	public void testLatencyBaselineFollowsTheRelay() throws Exception {
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 4, 4, 2);
+		for (int i = 0; i < 10; i++) {
+			transaction(limiter, 2);
+		}
+		// A single large mail is not congestion.
+		transaction(limiter, 40);
+		Assert.assertEquals(0, limiter.getDecreaseCount());
+		Assert.assertEquals(4, limiter.getLimit());
+
+		// The relay becomes slower for good: the limit backs off, then grows again.
+		for (int i = 0; i < 40; i++) {
+			transaction(limiter, 20);
+		}
+		Assert.assertTrue(limiter.getDecreaseCount() > 0);
+		Assert.assertTrue(limiter.getLatency() > 10);
+		Assert.assertEquals(2, limiter.getLimit());
+	}
+
+	@Test
+	public void testAcquireTimesOut() throws Exception {
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 1, 0);
+		long start = limiter.acquire(100);
+		try {
+			limiter.acquire(50);
+			Assert.fail("The limit is reached");
+		} catch (MessagingException e) {
+			// Expected.
+		}
+		limiter.release(start, null);
+		limiter.acquire(50);
+	}
+
+	@Test
+	public void testSenderBacksOffOnTemporaryFailures() throws Exception {
+		Properties options = new Properties();
+		options.setProperty("smtp.adaptive", "true");
+		options.setProperty("smtp.adaptive.max", "8");
+		// Only the replies of the server.
+		options.setProperty("smtp.adaptive.latencyTolerance", "0");
+		options.setProperty("smtp.retry.max", "0");
+		sender = server.createSender(options);
+		ConcurrencyLimiter limiter = sender.getConcurrencyLimiter();
+		for (int i = 0; i < 6; i++) {
+			sender.send(new Mail("to@localhost", "Mail " + i, "Mail " + i));
+		}
+		// Sequential sends only use one connection.
+		Assert.assertEquals(2, limiter.getLimit());
+
+		server.reply("busy@localhost", "451 Too many connections");
+		try {
+			sender.send(new Mail("busy@localhost", "Busy", "Busy"));
+			Assert.fail("The server is busy");
+		} catch (MessagingException e) {
+			// Expected.
+		}
+		Assert.assertEquals(1, limiter.getLimit());
+		Assert.assertEquals(0, limiter.getInFlight());
+	}
+
+}
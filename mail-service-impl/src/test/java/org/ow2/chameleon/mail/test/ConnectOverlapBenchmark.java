@@ -0,0 +1,78 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Properties;
+import java.util.Random;
+
+import org.ow2.chameleon.mail.Mail;
+import org.ow2.chameleon.mail.impl.SMTPMailSender;
+
+/**
+ * Measures the latency of a send without pooled connection, when the
+ * handshake takes 200 ms and the attachments take a similar time to
+ * encode, with and without opening the connection while the message is
+ * built (<tt>smtp.connect.overlap</tt>).
+ * <p/>
+ * Usage: <tt>ConnectOverlapBenchmark [sends]</tt>, 10 sends by default.
+ */
+public class ConnectOverlapBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		File file = File.createTempFile("attachment", ".bin");
+		file.deleteOnExit();
+		byte[] content = new byte[8 * 1024 * 1024];
+		new Random(0).nextBytes(content);
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(content);
+		out.close();
+
+		long sequential = measure(file, false, count);
+		long overlapped = measure(file, true, count);
+
+		System.out.println("Sends:      " + count);
+		System.out.println("Sequential: " + sequential + " ms/send");
+		System.out.println("Overlapped: " + overlapped + " ms/send");
+	}
+
+	private static long measure(File file, boolean overlap, int count) throws Exception {
+		FakeSMTPServer server = new FakeSMTPServer();
+		server.greetingDelay(200);
+		Properties options = new Properties();
+		options.setProperty("smtp.connect.overlap", Boolean.toString(overlap));
+		options.setProperty("smtp.pool.size", "0");
+		// Encodes the attachments while the message is built.
+		options.setProperty("smtp.attachmentCache.size", "1");
+		SMTPMailSender sender = server.createSender(options);
+		try {
+			// Warm up.
+			sender.send(new Mail("to@localhost", "Attachment", "See attached").attach(file));
+			server.getMessages().clear();
+			long start = System.currentTimeMillis();
+			for (int i = 0; i < count; i++) {
+				sender.send(new Mail("to@localhost", "Attachment", "See attached").attach(file));
+				server.getMessages().clear();
+			}
+			return (System.currentTimeMillis() - start) / count;
+		} finally {
+			sender.stop();
+			server.stop();
+		}
+	}
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.test;
+
+import java.util.Properties;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.ow2.chameleon.mail.Mail;
+import org.ow2.chameleon.mail.impl.SMTPMailSender;
+
+
+public class ConnectOverlapTest {
+
+	private SMTPMailSender createSender(FakeSMTPServer server, boolean overlap, int poolSize) {
+		Properties options = new Properties();
+		options.setProperty("smtp.connect.overlap", Boolean.toString(overlap));
+		options.setProperty("smtp.pool.size", Integer.toString(poolSize));
+		// Encodes the attachments while the message is built.
+		options.setProperty("smtp.attachmentCache.size", "1");
+		return server.createSender(options);
+	}
+
+	@Test
+	public void testConnectionIsReleasedWhenTheMessageCannotBeBuilt() throws Exception {
+		FakeSMTPServer server = new FakeSMTPServer();
+		SMTPMailSender sender = createSender(server, true, 1);
+		try {
+			try {
+				sender.send(new Mail("to@localhost", "Invalid", "Invalid cc").cc("invalid address@@"));
+				Assert.fail("The message should not be built");
+			} catch (Exception e) {
+				// Expected.
+			}
+			// The connection opened in the meantime is pooled and reused.
+			sender.send(new Mail("to@localhost", "Valid", "Valid"));
+			Assert.assertEquals(1, server.getMessages().size());
+			Assert.assertEquals(1, server.getConnectionCount());
+		} finally {
+			sender.stop();
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testConnectionIsOpenedWhileTheMessageIsBuilt() throws Exception {
+		FakeSMTPServer server = new FakeSMTPServer();
+		SMTPMailSender sender = createSender(server, true, 1);
+		try {
+			try {
+				sender.send(new Mail("to@localhost", "Invalid", "Invalid cc").cc("invalid address@@"));
+				Assert.fail("The message should not be built");
+			} catch (Exception e) {
+				// Expected.
+			}
+			// The message was never complete, the connection was opened before.
+			long deadline = System.currentTimeMillis() + 5000;
+			while (server.getConnectionCount() == 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			Assert.assertEquals(1, server.getConnectionCount());
+		} finally {
+			sender.stop();
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testNoConnectionWithoutOverlap() throws Exception {
+		FakeSMTPServer server = new FakeSMTPServer();
+		SMTPMailSender sender = createSender(server, false, 1);
+		try {
+			try {
+				sender.send(new Mail("to@localhost", "Invalid", "Invalid cc").cc("invalid address@@"));
+				Assert.fail("The message should not be built");
+			} catch (Exception e) {
+				// Expected.
+			}
+			Assert.assertEquals(0, server.getConnectionCount());
+		} finally {
+			sender.stop();
+			server.stop();
+		}
+	}
+
+}
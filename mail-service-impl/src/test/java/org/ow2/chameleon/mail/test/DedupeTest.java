@@ -0,0 +1,109 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.test;
+
+import java.io.File;
+import java.util.Properties;
+import java.util.concurrent.Future;
+
+import javax.mail.SendFailedException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.ow2.chameleon.mail.Mail;
+import org.ow2.chameleon.mail.impl.DedupeStore;
+import org.ow2.chameleon.mail.impl.MailFuture;
+import org.ow2.chameleon.mail.impl.SMTPMailSender;
+
+
+public class DedupeTest {
+
+	private FakeSMTPServer server;
+
+	private SMTPMailSender sender;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new FakeSMTPServer();
+		sender = server.createSender(new Properties());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		sender.stop();
+		server.stop();
+	}
+
+	@Test
+	public void testDuplicateSendIsSkipped() throws Exception {
+		sender.send(new Mail("to@localhost", "Reset", "Reset").idempotencyKey("reset-42"));
+		sender.send(new Mail("to@localhost", "Reset", "Reset").idempotencyKey("reset-42"));
+		sender.send(new Mail("to@localhost", "Reset", "Reset").idempotencyKey("reset-43"));
+
+		Assert.assertEquals(2, server.getMessages().size());
+		Assert.assertEquals(1, sender.getDedupeStore().getDuplicateCount());
+	}
+
+	@Test
+	public void testDuplicateAsyncSendSharesTheOutcome() throws Exception {
+		Future<Mail> first = sender.sendAsync(new Mail("to@localhost", "Order", "Order").idempotencyKey("order-1"));
+		Future<Mail> second = sender.sendAsync(new Mail("to@localhost", "Order", "Order").idempotencyKey("order-1"));
+		Assert.assertSame(first.get(), second.get());
+		Assert.assertEquals(1, server.getMessages().size());
+	}
+
+	@Test
+	public void testFailedSendCanBeRetried() throws Exception {
+		server.reply("invalid@localhost", "550 No such user");
+		for (int i = 0; i < 2; i++) {
+			try {
+				sender.send(new Mail("invalid@localhost", "Failed", "Failed").idempotencyKey("failed"));
+				Assert.fail("The recipient is rejected");
+			} catch (SendFailedException e) {
+				// Expected.
+			}
+		}
+		Assert.assertEquals(0, sender.getDedupeStore().getDuplicateCount());
+		Assert.assertEquals(0, sender.getDedupeStore().size());
+	}
+
+	@Test
+	public void testKeysArePersisted() throws Exception {
+		File file = File.createTempFile("dedupe", ".bin");
+		file.delete();
+		try {
+			DedupeStore store = new DedupeStore(10, 60000, file);
+			MailFuture future = store.newFuture("key");
+			Assert.assertNull(store.claim("key", future, new Mail()));
+			future.set(new Mail());
+			store.close();
+
+			store = new DedupeStore(10, 60000, file);
+			Mail mail = new Mail();
+			Assert.assertSame(mail, store.claim("key", store.newFuture("key"), mail).get());
+			store.close();
+
+			// Expired.
+			store = new DedupeStore(10, 0, file);
+			Assert.assertEquals(0, store.size());
+			store.close();
+		} finally {
+			file.delete();
+		}
+	}
+
+}
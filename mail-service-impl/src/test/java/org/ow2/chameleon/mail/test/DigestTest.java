@@ -0,0 +1,109 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.test;
+
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.ow2.chameleon.mail.Mail;
+import org.ow2.chameleon.mail.impl.SMTPMailSender;
+
+
+public class DigestTest {
+
+	private FakeSMTPServer server;
+
+	private SMTPMailSender sender;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new FakeSMTPServer();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (sender != null) {
+			sender.stop();
+		}
+		server.stop();
+	}
+
+	private void createSender(String window, String maxMails) {
+		Properties options = new Properties();
+		options.setProperty("smtp.digest.window", window);
+		options.setProperty("smtp.digest.maxMails", maxMails);
+		sender = server.createSender(options);
+	}
+
+	private void waitForMessages(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (server.getMessages().size() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+	}
+
+	@Test
+	public void testStormIsCoalesced() throws Exception {
+		createSender("300", "100");
+		for (int i = 0; i < 20; i++) {
+			sender.send(new Mail("oncall@localhost", "Alert " + i, "Disk full on node " + i));
+		}
+		// The first alert is not delayed.
+		Assert.assertEquals(1, server.getMessages().size());
+
+		waitForMessages(2);
+		Thread.sleep(100);
+		Assert.assertEquals(2, server.getMessages().size());
+		String digest = server.getMessages().get(1);
+		Assert.assertTrue(digest.contains("[19 messages] Alert 1"));
+		Assert.assertTrue(digest.contains("Disk full on node 19"));
+		Assert.assertEquals(19, sender.getDigestCoalescer().getCoalescedCount());
+		Assert.assertEquals(1, sender.getDigestCoalescer().getDigestCount());
+	}
+
+	@Test
+	public void testRecipientsAreNotMixed() throws Exception {
+		createSender("60000", "2");
+		sender.send(new Mail("alice@localhost", "Alert", "Alert"));
+		sender.send(new Mail("bob@localhost", "Alert", "Alert"));
+		sender.send(new Mail("alice@localhost", "Alert", "Alert"));
+		sender.send(new Mail("alice@localhost", "Alert", "Alert"));
+
+		// The second window of alice is full.
+		waitForMessages(3);
+		Assert.assertEquals(3, server.getMessages().size());
+		Assert.assertEquals("alice@localhost", server.getRecipients().get(2));
+	}
+
+	@Test
+	public void testHighPriorityIsNotCoalesced() throws Exception {
+		createSender("60000", "100");
+		sender.send(new Mail("user@localhost", "Reset", "Reset"));
+		sender.send(new Mail("user@localhost", "Reset", "Reset").priority(Mail.Priority.HIGH));
+		Assert.assertEquals(2, server.getMessages().size());
+
+		sender.send(new Mail("user@localhost", "Newsletter", "Newsletter"));
+		Assert.assertEquals(2, server.getMessages().size());
+		// Stopping sends the pending digests.
+		sender.stop();
+		sender = null;
+		waitForMessages(3);
+		Assert.assertEquals(3, server.getMessages().size());
+	}
+
+}
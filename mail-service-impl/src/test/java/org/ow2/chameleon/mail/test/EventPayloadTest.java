@@ -0,0 +1,114 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.test;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
+import org.ow2.chameleon.mail.Mail;
+import org.ow2.chameleon.mail.MailSenderService;
+import org.ow2.chameleon.mail.impl.RateLimiter;
+import org.ow2.chameleon.mail.impl.ReadOnlyMail;
+import org.ow2.chameleon.mail.impl.SMTPMailSender;
+
+
+public class EventPayloadTest {
+
+	private FakeSMTPServer server;
+
+	private SMTPMailSender sender;
+
+	private final List<Event> events = new ArrayList<Event>();
+
+	@Before
+	public void setUp() throws Exception {
+		server = new FakeSMTPServer();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (sender != null) {
+			sender.stop();
+		}
+		server.stop();
+	}
+
+	private void createSender(String payload) throws Exception {
+		Properties options = new Properties();
+		options.setProperty("smtp.event.payload", payload);
+		sender = server.createSender(options);
+		Field field = SMTPMailSender.class.getDeclaredField("m_eventAdmin");
+		field.setAccessible(true);
+		field.set(sender, new EventAdmin() {
+			public void postEvent(Event event) {
+				events.add(event);
+			}
+
+			public void sendEvent(Event event) {
+				events.add(event);
+			}
+		});
+	}
+
+	@Test
+	public void testFullPayload() throws Exception {
+		createSender("full");
+		sender.send(new Mail("to@localhost", "Report", "The body"));
+		Event event = events.get(0);
+		Assert.assertEquals("The body", event.getProperty(MailSenderService.BODY_KEY));
+		Assert.assertEquals(Boolean.TRUE, event.getProperty(MailSenderService.STATUS_KEY));
+	}
+
+	@Test
+	public void testSummaryPayload() throws Exception {
+		createSender("summary");
+		sender.send(new Mail("to@localhost", "Report", "The body"));
+		Event event = events.get(0);
+		Assert.assertNull(event.getProperty(MailSenderService.BODY_KEY));
+		Assert.assertEquals(8, event.getProperty(MailSenderService.BODY_SIZE_KEY));
+		Assert.assertEquals("The body".hashCode(), event.getProperty(MailSenderService.BODY_HASH_KEY));
+		Assert.assertEquals("Report", event.getProperty(MailSenderService.SUBJECT_KEY));
+	}
+
+	@Test
+	public void testEnvelopePayload() throws Exception {
+		createSender("envelope");
+		sender.send(new Mail("to@localhost", "Report", "The body"));
+		Event event = events.get(0);
+		Assert.assertNull(event.getProperty(MailSenderService.BODY_KEY));
+		Assert.assertNull(event.getProperty(MailSenderService.BODY_SIZE_KEY));
+		Assert.assertEquals("[to@localhost]", event.getProperty(MailSenderService.TO_KEY).toString());
+	}
+
+	@Test
+	public void testReadOnlyGettersReturnCopies() throws Exception {
+		Mail mail = new ReadOnlyMail(new Mail("to@localhost", "Subject", "Body").cc("cc@example.com"));
+		List<String> to = mail.to();
+		to.addAll(mail.cc());
+		Assert.assertEquals(1, mail.to().size());
+		Assert.assertEquals("cc@example.com", mail.cc().get(0));
+		// A received mail can be sent again with a per-domain rate.
+		Assert.assertEquals(0, new RateLimiter(0, 0, 10, 1).reserve("localhost:25", mail));
+	}
+
+}
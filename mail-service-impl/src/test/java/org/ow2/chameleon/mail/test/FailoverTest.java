@@ -0,0 +1,126 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.test;
+
+import java.net.ServerSocket;
+import java.util.Properties;
+
+import javax.mail.MessagingException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.ow2.chameleon.mail.Mail;
+import org.ow2.chameleon.mail.impl.RelayGroup;
+import org.ow2.chameleon.mail.impl.SMTPMailSender;
+import org.ow2.chameleon.mail.impl.SendContext;
+
+
+public class FailoverTest {
+
+	private FakeSMTPServer server;
+
+	private SMTPMailSender sender;
+
+	private int deadPort;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new FakeSMTPServer();
+		ServerSocket socket = new ServerSocket(0);
+		deadPort = socket.getLocalPort();
+		socket.close();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (sender != null) {
+			sender.stop();
+		}
+		server.stop();
+	}
+
+	private void createSender(String relays, String failures) {
+		Properties options = new Properties();
+		options.setProperty("smtp.relays", relays);
+		options.setProperty("smtp.breaker.failures", failures);
+		sender = server.createSender(options);
+	}
+
+	@Test
+	public void testFailoverToTheNextRelay() throws Exception {
+		createSender("localhost:" + deadPort + ", localhost:" + server.getPort(), "2");
+		RelayGroup.Relay dead = sender.getRelays().getRelays().get(0);
+		for (int i = 0; i < 4; i++) {
+			sender.send(new Mail("to@localhost", "Mail " + i, "Mail " + i));
+		}
+		Assert.assertEquals(4, server.getMessages().size());
+		// Skipped once down.
+		Assert.assertEquals(2, dead.getFailureCount());
+		Assert.assertTrue(dead.isOpen());
+		Assert.assertFalse(sender.getRelays().getRelays().get(1).isOpen());
+	}
+
+	@Test
+	public void testOpenCircuitFailsFast() throws Exception {
+		createSender("localhost:" + deadPort, "1");
+		try {
+			sender.send(new Mail("to@localhost", "First", "First"));
+			Assert.fail("The relay is down");
+		} catch (MessagingException e) {
+			// Expected.
+		}
+		Assert.assertTrue(sender.getRelays().getRelays().get(0).isOpen());
+
+		try {
+			sender.send(new Mail("to@localhost", "Second", "Second"));
+			Assert.fail("The relay is down");
+		} catch (MessagingException e) {
+			Assert.assertTrue(e.getMessage().startsWith("No SMTP relay available"));
+			Assert.assertNull(e.getNextException());
+		}
+	}
+
+	@Test
+	public void testHalfOpenProbe() throws Exception {
+		RelayGroup relays = new RelayGroup("primary:25,backup", "localhost", 2525, 2, 100);
+		RelayGroup.Relay primary = relays.getRelays().get(0);
+		Assert.assertEquals("backup:2525", relays.getRelays().get(1).key());
+
+		relays.failure(primary);
+		Assert.assertSame(primary, relays.select(null));
+		relays.failure(primary);
+		Assert.assertTrue(primary.isOpen());
+		Assert.assertEquals("backup:2525", relays.select(null).key());
+
+		Thread.sleep(150);
+		// A single send probes the primary relay.
+		Assert.assertSame(primary, relays.select(null));
+		Assert.assertEquals("backup:2525", relays.select(null).key());
+		relays.record(primary, null);
+		Assert.assertFalse(primary.isOpen());
+		Assert.assertSame(primary, relays.select(null));
+	}
+
+	@Test
+	public void testSslPortIsNotPinnedToThePrimaryRelay() throws Exception {
+		SendContext context = new SendContext(SMTPMailSender.Connection.SSL, "primary", 465, "from@localhost",
+				"user", "secret", false, false, false, false);
+		// The socket factory then connects to the port of each relay.
+		Assert.assertNull(context.session().getProperty("mail.smtp.socketFactory.port"));
+	}
+
+}
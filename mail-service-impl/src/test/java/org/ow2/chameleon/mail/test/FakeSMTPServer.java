@@ -0,0 +1,237 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ow2.chameleon.mail.impl.SMTPMailSender;
+import org.ow2.chameleon.mail.impl.SMTPMailSender.Connection;
+
+/**
+ * Minimal SMTP server used to test the sender without network access.
+ * Recipients can be rejected by registering a reply for them.
+ */
+public class FakeSMTPServer {
+
+    private final ServerSocket m_socket;
+
+    private final AtomicInteger m_connections = new AtomicInteger();
+
+    private final List<String> m_messages = Collections.synchronizedList(new ArrayList<String>());
+
+    private final List<String> m_recipients = Collections.synchronizedList(new ArrayList<String>());
+
+    private final List<String> m_commands = Collections.synchronizedList(new ArrayList<String>());
+
+    private final Map<String, String> m_replies = Collections.synchronizedMap(new HashMap<String, String>());
+
+    private volatile String m_extensions = "";
+
+    private volatile long m_greetingDelay;
+
+    private final AtomicBoolean m_dropMail = new AtomicBoolean();
+
+    private volatile boolean m_run = true;
+
+    public FakeSMTPServer() throws IOException {
+        m_socket = new ServerSocket(0);
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                while (m_run) {
+                    try {
+                        final Socket client = m_socket.accept();
+                        m_connections.incrementAndGet();
+                        Thread handler = new Thread(new Runnable() {
+                            public void run() {
+                                handle(client);
+                            }
+                        });
+                        handler.setDaemon(true);
+                        handler.start();
+                    } catch (IOException e) {
+                        // Closed.
+                    }
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getPort() {
+        return m_socket.getLocalPort();
+    }
+
+    public int getConnectionCount() {
+        return m_connections.get();
+    }
+
+    public List<String> getMessages() {
+        return m_messages;
+    }
+
+    public List<String> getRecipients() {
+        return m_recipients;
+    }
+
+    /**
+     * Gets the commands received, in ISO-8859-1 (UTF-8 commands are not decoded).
+     */
+    public List<String> getCommands() {
+        return m_commands;
+    }
+
+    /**
+     * Sets the reply sent to a <code>RCPT TO</code> command for the given address.
+     * If the reply starts with <tt>!</tt>, it is used once only.
+     */
+    public void reply(String address, String reply) {
+        m_replies.put(address, reply);
+    }
+
+    /**
+     * Sets the additional EHLO extensions (one per line).
+     */
+    public void extensions(String... extensions) {
+        StringBuilder builder = new StringBuilder();
+        for (String ext : extensions) {
+            builder.append("250-").append(ext).append("\r\n");
+        }
+        m_extensions = builder.toString();
+    }
+
+    /**
+     * Delays the greeting of new connections, simulating a slow handshake.
+     */
+    public void greetingDelay(long delay) {
+        m_greetingDelay = delay;
+    }
+
+    /**
+     * Closes the connection receiving the next <code>MAIL</code> command,
+     * without reply, as a relay which just closed an idle connection.
+     */
+    public void dropNextMail() {
+        m_dropMail.set(true);
+    }
+
+    /**
+     * Creates a sender using this server, without authentication.
+     */
+    public SMTPMailSender createSender(Properties options) {
+        return createSender(getPort(), options);
+    }
+
+    /**
+     * Creates a sender using the server listening on the given local port,
+     * without authentication.
+     */
+    public static SMTPMailSender createSender(int port, Properties options) {
+        return new SMTPMailSender(Connection.NO_AUTH, "localhost", port, "sender@localhost", null, null, false, false,
+                options);
+    }
+
+    public void stop() throws IOException {
+        m_run = false;
+        m_socket.close();
+    }
+
+    private void handle(Socket client) {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), "ISO-8859-1"));
+            OutputStream out = client.getOutputStream();
+            if (m_greetingDelay > 0) {
+                Thread.sleep(m_greetingDelay);
+            }
+            write(out, "220 localhost fake SMTP");
+            String line;
+            StringBuilder chunks = new StringBuilder();
+            while ((line = in.readLine()) != null) {
+                m_commands.add(line);
+                String command = line.toUpperCase();
+                if (command.startsWith("MAIL") && m_dropMail.compareAndSet(true, false)) {
+                    break;
+                } else if (command.startsWith("EHLO")) {
+                    out.write(("250-localhost\r\n" + m_extensions + "250 OK\r\n").getBytes("ISO-8859-1"));
+                    out.flush();
+                } else if (command.startsWith("HELO") || command.startsWith("NOOP")
+                        || command.startsWith("RSET") || command.startsWith("MAIL")) {
+                    write(out, "250 OK");
+                } else if (command.startsWith("RCPT")) {
+                    String address = line.substring(line.indexOf('<') + 1, line.indexOf('>'));
+                    String reply = m_replies.get(address);
+                    if (reply != null && reply.startsWith("!")) {
+                        m_replies.remove(address);
+                        reply = reply.substring(1);
+                    }
+                    if (reply == null) {
+                        m_recipients.add(address);
+                        reply = "250 OK";
+                    }
+                    write(out, reply);
+                } else if (command.startsWith("DATA")) {
+                    write(out, "354 End data with <CR><LF>.<CR><LF>");
+                    StringBuilder message = new StringBuilder();
+                    while ((line = in.readLine()) != null && !line.equals(".")) {
+                        message.append(line).append("\n");
+                    }
+                    m_messages.add(message.toString());
+                    write(out, "250 OK queued");
+                } else if (command.startsWith("BDAT")) {
+                    String[] arguments = line.split(" ");
+                    char[] chunk = new char[Integer.parseInt(arguments[1])];
+                    int read = 0;
+                    while (read < chunk.length) {
+                        read += in.read(chunk, read, chunk.length - read);
+                    }
+                    chunks.append(chunk);
+                    if (arguments.length > 2 && arguments[2].equalsIgnoreCase("LAST")) {
+                        m_messages.add(chunks.toString().replace("\r\n", "\n"));
+                        chunks.setLength(0);
+                    }
+                    write(out, "250 OK");
+                } else if (command.startsWith("QUIT")) {
+                    write(out, "221 Bye");
+                    break;
+                } else {
+                    write(out, "502 Command not implemented");
+                }
+            }
+            client.close();
+        } catch (IOException e) {
+            // Connection closed by the client.
+        } catch (InterruptedException e) {
+            // Stopped.
+        }
+    }
+
+    private void write(OutputStream out, String reply) throws IOException {
+        out.write((reply + "\r\n").getBytes("ISO-8859-1"));
+        out.flush();
+    }
+}
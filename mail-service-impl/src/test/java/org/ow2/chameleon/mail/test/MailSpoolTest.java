@@ -0,0 +1,197 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.ow2.chameleon.mail.AttachmentSource;
+import org.ow2.chameleon.mail.Attachments;
+import org.ow2.chameleon.mail.Mail;
+import org.ow2.chameleon.mail.impl.MailSpool;
+import org.ow2.chameleon.mail.impl.SMTPMailSender;
+
+
+public class MailSpoolTest {
+
+	private File dir;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = File.createTempFile("spool", "");
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	private SMTPMailSender createSender(int port) {
+		Properties options = new Properties();
+		options.setProperty("smtp.spool.dir", dir.getAbsolutePath());
+		options.setProperty("smtp.spool.retryDelay", "100");
+		options.setProperty("smtp.retry.delay", "100");
+		return FakeSMTPServer.createSender(port, options);
+	}
+
+	@Test
+	public void testSpooledMailsAreSentAfterRestart() throws Exception {
+		FakeSMTPServer down = new FakeSMTPServer();
+		down.stop();
+
+		SMTPMailSender sender = createSender(down.getPort());
+		sender.send("to@localhost", null, "First", "First spooled mail");
+		sender.send("to@localhost", null, "Second", "Second spooled mail");
+		sender.stop();
+
+		FakeSMTPServer server = new FakeSMTPServer();
+		sender = createSender(server.getPort());
+		for (int i = 0; i < 50 && server.getMessages().size() < 2; i++) {
+			Thread.sleep(100);
+		}
+		sender.stop();
+		server.stop();
+
+		Assert.assertEquals(2, server.getMessages().size());
+		Assert.assertTrue(server.getMessages().get(0).contains("First spooled mail"));
+		Assert.assertTrue(server.getMessages().get(1).contains("Second spooled mail"));
+		Assert.assertEquals(0, new MailSpool(dir, 1024).size());
+	}
+
+	@Test
+	public void testTemporaryFailuresAreKept() throws Exception {
+		FakeSMTPServer server = new FakeSMTPServer();
+		server.reply("greylisted@localhost", "!451 Greylisted, try again later");
+		SMTPMailSender sender = createSender(server.getPort());
+		sender.send("greylisted@localhost", null, "Greylisted", "Sent on the second attempt");
+		for (int i = 0; i < 50 && server.getMessages().isEmpty(); i++) {
+			Thread.sleep(100);
+		}
+		sender.stop();
+		server.stop();
+
+		Assert.assertEquals(1, server.getMessages().size());
+		Assert.assertEquals(0, new MailSpool(dir, 1024).size());
+	}
+
+	@Test
+	public void testInterruptedWriteIsIgnored() throws Exception {
+		MailSpool spool = new MailSpool(dir, 1024 * 1024);
+		spool.add(new Mail("to@localhost", "Subject", "Body"));
+		spool.close();
+
+		File[] segments = dir.listFiles();
+		Assert.assertEquals(1, segments.length);
+		FileOutputStream out = new FileOutputStream(segments[0], true);
+		out.write(new byte[] {0, 0, 0, 42, 1, 2, 3});
+		out.close();
+
+		spool = new MailSpool(dir, 1024 * 1024);
+		Assert.assertEquals(1, spool.size());
+		Assert.assertEquals("Subject", spool.take().mail().subject());
+		spool.close();
+	}
+
+	@Test
+	public void testAttachmentSourcesAreSpooled() throws Exception {
+		MailSpool spool = new MailSpool(dir, 1024 * 1024);
+		spool.add(new Mail("to@localhost", "Report", "See attached")
+				.attach(Attachments.of("report.csv", "text/csv", "a,b\n1,2\n".getBytes("UTF-8"))));
+		spool.close();
+
+		spool = new MailSpool(dir, 1024 * 1024);
+		Mail mail = spool.take().mail();
+		spool.close();
+		Assert.assertEquals(1, mail.attachmentSources().size());
+		AttachmentSource source = mail.attachmentSources().get(0);
+		Assert.assertEquals("report.csv", source.getName());
+		Assert.assertEquals("text/csv", source.getContentType());
+		byte[] content = new byte[64];
+		int length = source.getInputStream().read(content);
+		Assert.assertEquals("a,b\n1,2\n", new String(content, 0, length, "UTF-8"));
+	}
+
+	@Test
+	public void testSpoolKeepsACopyOfTheMail() throws Exception {
+		MailSpool spool = new MailSpool(dir, 1024 * 1024);
+		Mail mail = new Mail("to@localhost", "Subject", "Body");
+		spool.add(mail);
+		mail.subject("Changed").to("other@localhost");
+		Mail spooled = spool.take().mail();
+		spool.close();
+		Assert.assertEquals("Subject", spooled.subject());
+		Assert.assertEquals(1, spooled.to().size());
+		Assert.assertEquals("to@localhost", spooled.to().get(0));
+	}
+
+	@Test
+	public void testAcknowledgedSegmentsAreDeleted() throws Exception {
+		MailSpool spool = new MailSpool(dir, 512);
+		for (int i = 0; i < 20; i++) {
+			spool.add(new Mail("to@localhost", "Subject " + i, "Body " + i));
+		}
+		Assert.assertTrue(dir.listFiles().length > 1);
+		for (int i = 0; i < 20; i++) {
+			spool.ack(spool.take());
+		}
+		spool.add(new Mail("to@localhost", "Last", "Body"));
+		Assert.assertEquals(1, spool.size());
+		Assert.assertEquals(1, dir.listFiles().length);
+		spool.close();
+	}
+
+	@Test
+	public void testAcknowledgementsSurviveSegmentDeletion() throws Exception {
+		MailSpool spool = new MailSpool(dir, 512);
+		List<MailSpool.Entry> first = new ArrayList<MailSpool.Entry>();
+		for (int i = 0; i < 10; i++) {
+			spool.add(new Mail("to@localhost", "First " + i, "Body " + i));
+			first.add(spool.take());
+		}
+		// The acknowledgements are written to later segments than the mails.
+		for (int i = 0; i < 10; i += 2) {
+			spool.ack(first.get(i));
+		}
+		for (int i = 0; i < 10; i++) {
+			spool.add(new Mail("to@localhost", "Second " + i, "Body " + i));
+			spool.ack(spool.take());
+		}
+		Assert.assertEquals(5, spool.size());
+		spool.close();
+
+		spool = new MailSpool(dir, 512);
+		Assert.assertEquals(5, spool.size());
+		for (int i = 1; i < 10; i += 2) {
+			Assert.assertEquals("First " + i, spool.take().mail().subject());
+		}
+		spool.close();
+	}
+
+}
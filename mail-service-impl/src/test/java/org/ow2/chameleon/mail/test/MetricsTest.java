@@ -0,0 +1,128 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Properties;
+
+import javax.mail.MessagingException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.ow2.chameleon.mail.Mail;
+import org.ow2.chameleon.mail.MailSenderMetrics;
+import org.ow2.chameleon.mail.impl.LatencyHistogram;
+import org.ow2.chameleon.mail.impl.SMTPMailSender;
+
+
+public class MetricsTest {
+
+	private FakeSMTPServer server;
+
+	private SMTPMailSender sender;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new FakeSMTPServer();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (sender != null) {
+			sender.stop();
+		}
+		server.stop();
+	}
+
+	private void createSender(String engine) {
+		Properties options = new Properties();
+		options.setProperty("smtp.engine", engine);
+		options.setProperty("smtp.retry.max", "0");
+		options.setProperty("smtp.jmx.name", "metrics-" + engine);
+		sender = server.createSender(options);
+	}
+
+	@Test
+	public void testPhasesAreRecorded() throws Exception {
+		createSender("javamail");
+		for (int i = 0; i < 3; i++) {
+			sender.send(new Mail("to@localhost", "Mail " + i, "Mail " + i));
+		}
+		server.reply("unknown@localhost", "550 No such user");
+		try {
+			sender.send(new Mail("unknown@localhost", "Rejected", "Rejected"));
+			Assert.fail("The recipient is rejected");
+		} catch (MessagingException e) {
+			// Expected.
+		}
+
+		Assert.assertEquals(3, sender.getSentCount());
+		Assert.assertEquals(1, sender.getFailedCount());
+		Assert.assertEquals(4, sender.getCount(MailSenderMetrics.PHASE_BUILD));
+		Assert.assertEquals(4, sender.getCount(MailSenderMetrics.PHASE_TRANSACTION));
+		Assert.assertEquals(4, sender.getCount(MailSenderMetrics.PHASE_SEND));
+		// The connection is pooled.
+		Assert.assertEquals(1, sender.getCount(MailSenderMetrics.PHASE_CONNECT));
+		Assert.assertTrue(sender.getMaxLatency(MailSenderMetrics.PHASE_SEND)
+				>= sender.getLatency(MailSenderMetrics.PHASE_SEND, 50));
+		Assert.assertTrue(sender.getMeanLatency(MailSenderMetrics.PHASE_SEND) > 0);
+	}
+
+	@Test
+	public void testNioPhases() throws Exception {
+		createSender("nio");
+		sender.sendAsync(new Mail("to@localhost", "Async", "Async")).get();
+		Assert.assertEquals(1, sender.getSentCount());
+		Assert.assertEquals(1, sender.getCount(MailSenderMetrics.PHASE_BUILD));
+		Assert.assertEquals(1, sender.getCount(MailSenderMetrics.PHASE_TRANSACTION));
+		Assert.assertEquals(1, sender.getCount(MailSenderMetrics.PHASE_SEND));
+	}
+
+	@Test
+	public void testPublishedOverJmx() throws Exception {
+		createSender("javamail");
+		sender.send(new Mail("to@localhost", "Mail", "Mail"));
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName("org.ow2.chameleon.mail:type=MailSender,name=\"metrics-javamail\"");
+		Assert.assertEquals(1L, server.getAttribute(name, "SentCount"));
+		Assert.assertEquals(1L, server.invoke(name, "getCount", new Object[] {"send"},
+				new String[] {String.class.getName()}));
+
+		sender.stop();
+		sender = null;
+		Assert.assertFalse(server.isRegistered(name));
+	}
+
+	@Test
+	public void testHistogramPrecision() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 1000; i++) {
+			histogram.record(i * 1000);
+		}
+		Assert.assertEquals(1000, histogram.getCount());
+		Assert.assertEquals(1000000, histogram.getMax());
+		Assert.assertEquals(500500, histogram.getMean(), 0.1);
+		Assert.assertEquals(500000, histogram.getPercentile(50), 500000 * 0.03);
+		Assert.assertEquals(990000, histogram.getPercentile(99), 990000 * 0.03);
+		Assert.assertEquals(1000000, histogram.getPercentile(100));
+		Assert.assertEquals(0, new LatencyHistogram().getPercentile(99));
+	}
+
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.ow2.chameleon.mail.Mail;
+import org.ow2.chameleon.mail.impl.NioSmtpEngine;
+import org.ow2.chameleon.mail.impl.SMTPMailSender;
+
+
+public class NioEngineTest {
+
+	private FakeSMTPServer server;
+
+	private SMTPMailSender sender;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new FakeSMTPServer();
+		server.extensions("PIPELINING");
+		Properties options = new Properties();
+		options.setProperty("smtp.engine", "nio");
+		options.setProperty("smtp.pool.size", "4");
+		options.setProperty("smtp.async.threads", "1");
+		sender = server.createSender(options);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		sender.stop();
+		server.stop();
+	}
+
+	@Test
+	public void testSend() throws Exception {
+		sender.send(new Mail("to@localhost", "Hello", "First line\n.starts with a dot\nLast line"));
+		sender.send(new Mail("to@localhost", "Again", "Second mail").cc("cc@localhost"));
+
+		Assert.assertEquals(2, server.getMessages().size());
+		String message = server.getMessages().get(0);
+		Assert.assertTrue(message.contains("Subject: Hello"));
+		Assert.assertTrue(message.contains("\n..starts with a dot\n"));
+		Assert.assertEquals(3, server.getRecipients().size());
+		Assert.assertEquals(1, server.getConnectionCount());
+	}
+
+	@Test
+	public void testRejectedRecipient() throws Exception {
+		server.reply("invalid@localhost", "550 No such user");
+		try {
+			sender.send(new Mail("invalid@localhost", "Rejected", "Rejected").cc("cc@localhost"));
+			Assert.fail("The mail should have been rejected");
+		} catch (SendFailedException e) {
+			Assert.assertEquals("invalid@localhost", e.getInvalidAddresses()[0].toString());
+			Assert.assertEquals("cc@localhost", e.getValidUnsentAddresses()[0].toString());
+		}
+		Assert.assertTrue(server.getMessages().isEmpty());
+
+		// The transaction was reset, the connection is reused.
+		sender.send(new Mail("to@localhost", "Accepted", "Accepted"));
+		Assert.assertEquals(1, server.getMessages().size());
+		Assert.assertEquals(1, server.getConnectionCount());
+	}
+
+	@Test
+	public void testManyAsyncMailsShareFewConnections() throws Exception {
+		List<Future<Mail>> futures = new ArrayList<Future<Mail>>();
+		for (int i = 0; i < 200; i++) {
+			futures.add(sender.sendAsync(new Mail("user" + i + "@localhost", "Mail " + i, "Mail " + i)));
+		}
+		for (Future<Mail> future : futures) {
+			Assert.assertNotNull(future.get().sent());
+		}
+		Assert.assertEquals(200, server.getMessages().size());
+		Assert.assertTrue(server.getConnectionCount() <= 4);
+	}
+
+	@Test
+	public void testClosedEngineFailsMails() throws Exception {
+		NioSmtpEngine engine = new NioSmtpEngine(1, 5000, 60000);
+		engine.close();
+		final Exception[] outcome = new Exception[1];
+		engine.send("localhost", server.getPort(), new InternetAddress("sender@localhost"),
+				new Address[] {new InternetAddress("to@localhost")}, new byte[0], new NioSmtpEngine.Callback() {
+					public void completed(Exception failure) {
+						outcome[0] = failure;
+					}
+				});
+		// Failed by the calling thread, never queued.
+		Assert.assertTrue(outcome[0] instanceof MessagingException);
+		Assert.assertEquals(0, server.getConnectionCount());
+	}
+
+	@Test
+	public void testClosedIdleConnectionIsReplaced() throws Exception {
+		sender.send(new Mail("to@localhost", "First", "First mail"));
+		server.dropNextMail();
+		sender.send(new Mail("to@localhost", "Second", "Sent on a new connection"));
+		Assert.assertEquals(2, server.getMessages().size());
+		Assert.assertEquals(2, server.getConnectionCount());
+	}
+
+	@Test
+	public void testFailingCallbackDoesNotStopTheEngine() throws Exception {
+		NioSmtpEngine engine = new NioSmtpEngine(1, 5000, 60000);
+		server.reply("invalid@localhost", "550 No such user");
+		try {
+			final CountDownLatch called = new CountDownLatch(1);
+			engine.send("localhost", server.getPort(), new InternetAddress("sender@localhost"),
+					new Address[] {new InternetAddress("invalid@localhost")}, new byte[0], new NioSmtpEngine.Callback() {
+						public void completed(Exception failure) {
+							called.countDown();
+							throw new IllegalStateException("Broken callback");
+						}
+					});
+			Assert.assertTrue(called.await(5, TimeUnit.SECONDS));
+			MimeMessage message = new MimeMessage(javax.mail.Session.getInstance(new Properties()));
+			message.setText("Still running");
+			engine.send("localhost", server.getPort(), new InternetAddress("sender@localhost"),
+					new Address[] {new InternetAddress("to@localhost")}, message);
+			Assert.assertEquals(1, server.getMessages().size());
+		} finally {
+			engine.close();
+		}
+	}
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.ow2.chameleon.mail.Mail;
+import org.ow2.chameleon.mail.impl.MailFuture;
+import org.ow2.chameleon.mail.impl.OutboundQueue;
+import org.ow2.chameleon.mail.impl.OutboundQueue.Policy;
+import org.ow2.chameleon.mail.impl.SMTPMailSender;
+
+
+public class OutboundQueueTest {
+
+	private static OutboundQueue.Entry entry(String subject) {
+		return new OutboundQueue.Entry(new Mail("to@localhost", subject, subject), new MailFuture());
+	}
+
+	@Test
+	public void testReject() throws Exception {
+		OutboundQueue queue = new OutboundQueue(2, Policy.parse("reject"), 0);
+		queue.add(entry("1"));
+		queue.add(entry("2"));
+		try {
+			queue.add(entry("3"));
+			Assert.fail("The queue is full");
+		} catch (RejectedExecutionException e) {
+			// Expected.
+		}
+		Assert.assertEquals(2, queue.getDepth());
+		Assert.assertEquals(1, queue.getRejectedCount());
+		Assert.assertEquals("1", queue.poll().mail().subject());
+	}
+
+	@Test
+	public void testDropOldest() throws Exception {
+		OutboundQueue queue = new OutboundQueue(2, Policy.parse("drop-oldest"), 0);
+		Assert.assertNull(queue.add(entry("1")));
+		Assert.assertNull(queue.add(entry("2")));
+		Assert.assertEquals("1", queue.add(entry("3")).mail().subject());
+		Assert.assertEquals(1, queue.getDroppedCount());
+		Assert.assertEquals("2", queue.poll().mail().subject());
+		Assert.assertEquals("3", queue.poll().mail().subject());
+		Assert.assertNull(queue.poll());
+	}
+
+	@Test
+	public void testBlock() throws Exception {
+		final OutboundQueue queue = new OutboundQueue(1, Policy.parse("block"), 100);
+		queue.add(entry("1"));
+		long start = System.currentTimeMillis();
+		try {
+			queue.add(entry("2"));
+			Assert.fail("The queue is still full");
+		} catch (RejectedExecutionException e) {
+			Assert.assertTrue(System.currentTimeMillis() - start >= 100);
+		}
+
+		new Thread(new Runnable() {
+			public void run() {
+				try {
+					Thread.sleep(20);
+				} catch (InterruptedException e) {
+					// Ignored.
+				}
+				queue.poll();
+			}
+		}).start();
+		queue.add(entry("3"));
+		Assert.assertEquals("3", queue.poll().mail().subject());
+		Assert.assertTrue(queue.getMaxWait() >= 20);
+		Assert.assertTrue(queue.getAverageWait() > 0);
+	}
+
+	@Test
+	public void testSpillToSpool() throws Exception {
+		File dir = File.createTempFile("spool", "");
+		dir.delete();
+		dir.mkdirs();
+		FakeSMTPServer server = new FakeSMTPServer();
+		server.greetingDelay(100);
+		Properties options = new Properties();
+		options.setProperty("smtp.async.threads", "1");
+		options.setProperty("smtp.async.queue", "1");
+		options.setProperty("smtp.async.policy", "spill");
+		options.setProperty("smtp.spool.dir", dir.getAbsolutePath());
+		SMTPMailSender sender = server.createSender(options);
+		try {
+			List<Future<Mail>> futures = new ArrayList<Future<Mail>>();
+			for (int i = 0; i < 5; i++) {
+				futures.add(sender.sendAsync(new Mail("to@localhost", "Mail " + i, "Mail " + i)));
+			}
+			for (Future<Mail> future : futures) {
+				future.get();
+			}
+			Assert.assertTrue(sender.getOutboundQueue().getSpilledCount() > 0);
+			Assert.assertEquals(0, sender.getOutboundQueue().getRejectedCount());
+			long deadline = System.currentTimeMillis() + 10000;
+			while (server.getMessages().size() < 5 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(50);
+			}
+			Assert.assertEquals(5, server.getMessages().size());
+		} finally {
+			sender.stop();
+			server.stop();
+			for (File file : dir.listFiles()) {
+				file.delete();
+			}
+			dir.delete();
+		}
+	}
+
+}
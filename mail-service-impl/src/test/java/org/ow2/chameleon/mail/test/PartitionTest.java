@@ -0,0 +1,108 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Address;
+import javax.mail.SendFailedException;
+import javax.mail.internet.InternetAddress;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.ow2.chameleon.mail.Mail;
+import org.ow2.chameleon.mail.impl.RecipientGroups;
+import org.ow2.chameleon.mail.impl.SMTPMailSender;
+
+
+public class PartitionTest {
+
+	private FakeSMTPServer server;
+
+	private SMTPMailSender sender;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new FakeSMTPServer();
+		Properties options = new Properties();
+		options.setProperty("smtp.partition.byDomain", "true");
+		options.setProperty("smtp.partition.maxRecipients", "2");
+		options.setProperty("smtp.retry.max", "3");
+		options.setProperty("smtp.retry.delay", "50");
+		sender = server.createSender(options);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		sender.stop();
+		server.stop();
+	}
+
+	@Test
+	public void testSplit() throws Exception {
+		Address[] recipients = InternetAddress.parse("a@one.test, b@two.test, c@ONE.test, d@one.test");
+		List<Address[]> transactions = RecipientGroups.split(recipients, true, 2);
+		Assert.assertEquals(3, transactions.size());
+		Assert.assertEquals(2, transactions.get(0).length);
+		Assert.assertEquals(1, transactions.get(1).length);
+		Assert.assertEquals(1, transactions.get(2).length);
+		Assert.assertEquals(1, RecipientGroups.split(recipients, false, 0).size());
+	}
+
+	@Test
+	public void testRecipientsAreGroupedByDomain() throws Exception {
+		Mail mail = new Mail("a@one.test", "Grouped", "One transaction per domain")
+				.to("b@one.test")
+				.to("c@one.test")
+				.cc("d@two.test");
+		sender.send(mail);
+		Assert.assertEquals(3, server.getMessages().size());
+		Assert.assertEquals(4, server.getRecipients().size());
+	}
+
+	@Test
+	public void testRejectedDomainDoesNotBlockOthers() throws Exception {
+		server.reply("x@bad.test", "550 No such user");
+		Mail mail = new Mail("good@one.test", "Partial", "Some recipients are rejected")
+				.cc("x@bad.test");
+		try {
+			sender.send(mail);
+			Assert.fail("The rejected recipient should be reported");
+		} catch (SendFailedException e) {
+			Assert.assertEquals(1, e.getInvalidAddresses().length);
+			Assert.assertEquals("x@bad.test", e.getInvalidAddresses()[0].toString());
+			Assert.assertEquals(1, e.getValidSentAddresses().length);
+		}
+		Assert.assertEquals(1, server.getMessages().size());
+		Assert.assertEquals(Collections.singletonList("good@one.test"), server.getRecipients());
+	}
+
+	@Test
+	public void testOnlyDeferredDomainIsRetried() throws Exception {
+		server.reply("grey@two.test", "!451 Greylisted, try again later");
+		Mail mail = new Mail("good@one.test", "Greylisted", "One domain is greylisted")
+				.to("grey@two.test");
+		Mail sent = sender.sendAsync(mail).get(5, TimeUnit.SECONDS);
+		Assert.assertEquals(Collections.singletonList("grey@two.test"), sent.to());
+		Assert.assertEquals(2, server.getMessages().size());
+		Assert.assertEquals(2, server.getRecipients().size());
+	}
+
+}
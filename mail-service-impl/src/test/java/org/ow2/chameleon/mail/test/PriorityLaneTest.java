@@ -0,0 +1,157 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.ow2.chameleon.mail.Mail;
+import org.ow2.chameleon.mail.Mail.Priority;
+import org.ow2.chameleon.mail.impl.MailFuture;
+import org.ow2.chameleon.mail.impl.OutboundQueue;
+import org.ow2.chameleon.mail.impl.OutboundQueue.Policy;
+import org.ow2.chameleon.mail.impl.RateLimiter;
+import org.ow2.chameleon.mail.impl.SMTPMailSender;
+import org.ow2.chameleon.mail.impl.TransportPool;
+
+
+public class PriorityLaneTest {
+
+	private static OutboundQueue.Entry entry(String subject, Priority priority) {
+		return new OutboundQueue.Entry(new Mail("to@localhost", subject, subject).priority(priority),
+				new MailFuture());
+	}
+
+	@Test
+	public void testWeightedRoundRobin() throws Exception {
+		OutboundQueue queue = new OutboundQueue(100, Policy.REJECT, 0, new int[] {2, 1, 1});
+		for (int i = 0; i < 4; i++) {
+			queue.add(entry("L", Priority.LOW));
+			queue.add(entry("N", Priority.NORMAL));
+			queue.add(entry("H", Priority.HIGH));
+		}
+		Assert.assertEquals(4, queue.getDepth(Priority.HIGH));
+
+		StringBuilder order = new StringBuilder();
+		OutboundQueue.Entry entry;
+		while ((entry = queue.poll()) != null) {
+			order.append(entry.mail().subject());
+		}
+		Assert.assertEquals("HHNLHHNLNLNL", order.toString());
+		Assert.assertEquals(4, queue.getTakenCount(Priority.LOW));
+		Assert.assertEquals(0, queue.getDepth());
+	}
+
+	@Test
+	public void testDropOldestShedsLowPriority() throws Exception {
+		OutboundQueue queue = new OutboundQueue(2, Policy.DROP_OLDEST, 0);
+		queue.add(entry("High", Priority.HIGH));
+		queue.add(entry("Low", Priority.LOW));
+		Assert.assertEquals("Low", queue.add(entry("Normal", Priority.NORMAL)).mail().subject());
+		Assert.assertEquals("Normal", queue.add(entry("Other", Priority.NORMAL)).mail().subject());
+		Assert.assertEquals("High", queue.poll(Priority.HIGH).mail().subject());
+		Assert.assertNull(queue.poll(Priority.HIGH));
+	}
+
+	@Test
+	public void testDropOldestKeepsHigherPriority() throws Exception {
+		OutboundQueue queue = new OutboundQueue(2, Policy.DROP_OLDEST, 0);
+		queue.add(entry("High", Priority.HIGH));
+		queue.add(entry("Normal", Priority.NORMAL));
+		try {
+			queue.add(entry("Low", Priority.LOW));
+			Assert.fail("The queued mails have a higher priority");
+		} catch (RejectedExecutionException e) {
+			// Expected.
+		}
+		Assert.assertEquals(2, queue.getDepth());
+		Assert.assertEquals("Normal", queue.poll(Priority.NORMAL).mail().subject());
+	}
+
+	@Test
+	public void testReservedConnection() throws Exception {
+		final Session session = Session.getInstance(new Properties());
+		TransportPool pool = new TransportPool(new TransportPool.Connector() {
+			public Transport connect(String host) throws MessagingException {
+				return session.getTransport("smtp");
+			}
+		}, 2, 0, 0, 60000, 50, 1);
+		TransportPool.Entry bulk = pool.borrow("localhost");
+		try {
+			pool.borrow("localhost");
+			Assert.fail("The last connection is reserved");
+		} catch (MessagingException e) {
+			// Expected.
+		}
+		TransportPool.Entry high = pool.borrow("localhost", true);
+		pool.release(bulk, false);
+		pool.release(high, false);
+		Assert.assertEquals(2, pool.getIdleCount("localhost"));
+		pool.close();
+	}
+
+	@Test
+	public void testReservedRate() throws Exception {
+		RateLimiter limiter = new RateLimiter(2, 0, 0, 1, 0.5);
+		Mail bulk = new Mail("to@localhost", "Bulk", "Bulk").priority(Priority.LOW);
+		Assert.assertEquals(0, limiter.reserve("localhost", bulk));
+		Assert.assertTrue(limiter.reserve("localhost", bulk) > 0);
+		// The high priority mails still have their share.
+		Mail high = new Mail("to@localhost", "High", "High").priority(Priority.HIGH);
+		Assert.assertEquals(0, limiter.reserve("localhost", high));
+	}
+
+	@Test
+	public void testHighPriorityOvertakesBulk() throws Exception {
+		FakeSMTPServer server = new FakeSMTPServer();
+		server.greetingDelay(100);
+		Properties options = new Properties();
+		options.setProperty("smtp.pool.size", "0");
+		options.setProperty("smtp.async.threads", "1");
+		SMTPMailSender sender = server.createSender(options);
+		try {
+			List<Future<Mail>> bulk = new ArrayList<Future<Mail>>();
+			for (int i = 0; i < 10; i++) {
+				bulk.add(sender.sendAsync(new Mail("to@localhost", "Bulk " + i, "Bulk").priority(Priority.LOW)));
+			}
+			Future<Mail> high = sender.sendAsync(new Mail("to@localhost", "Reset", "Reset").priority(Priority.HIGH));
+			Assert.assertNotNull(high.get().sent());
+			int done = 0;
+			for (Future<Mail> future : bulk) {
+				done += future.isDone() ? 1 : 0;
+			}
+			Assert.assertTrue(done < 5);
+			for (Future<Mail> future : bulk) {
+				future.get();
+			}
+			OutboundQueue queue = sender.getOutboundQueue();
+			Assert.assertEquals(1, queue.getTakenCount(Priority.HIGH));
+			Assert.assertTrue(queue.getMaxWait(Priority.HIGH) < queue.getMaxWait(Priority.LOW));
+		} finally {
+			sender.stop();
+			server.stop();
+		}
+	}
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.ow2.chameleon.mail.Mail;
+import org.ow2.chameleon.mail.impl.RateLimiter;
+import org.ow2.chameleon.mail.impl.SMTPMailSender;
+import org.ow2.chameleon.mail.impl.TokenBucket;
+
+
+public class RateLimitTest {
+
+	private FakeSMTPServer server;
+
+	private SMTPMailSender sender;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new FakeSMTPServer();
+		Properties options = new Properties();
+		options.setProperty("smtp.rate.domain", "10");
+		options.setProperty("smtp.rate.burst", "1");
+		sender = server.createSender(options);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		sender.stop();
+		server.stop();
+	}
+
+	@Test
+	public void testTokenBucket() {
+		TokenBucket bucket = new TokenBucket(10, 2);
+		long now = System.nanoTime();
+		Assert.assertEquals(0, bucket.reserve(now));
+		Assert.assertEquals(0, bucket.reserve(now));
+		// Empty: the next permits are available every 100 ms.
+		Assert.assertEquals(100, TimeUnit.NANOSECONDS.toMillis(bucket.reserve(now)));
+		Assert.assertEquals(200, TimeUnit.NANOSECONDS.toMillis(bucket.reserve(now)));
+		// Refilled after one second, up to the burst.
+		now += TimeUnit.SECONDS.toNanos(1);
+		Assert.assertEquals(0, bucket.reserve(now));
+		Assert.assertEquals(0, bucket.reserve(now));
+		Assert.assertTrue(bucket.reserve(now) > 0);
+	}
+
+	@Test
+	public void testDomainsAreLimitedIndependently() {
+		RateLimiter limiter = new RateLimiter(0, 0, 1, 1);
+		Assert.assertEquals(0, limiter.reserve("localhost", new Mail("a@example.com", "A", "A")));
+		Assert.assertEquals(0, limiter.reserve("localhost", new Mail("a@example.org", "B", "B")));
+		Assert.assertTrue(limiter.reserve("localhost", new Mail("b@Example.COM", "C", "C")) > 0);
+		Assert.assertEquals(1, limiter.getThrottledCount());
+	}
+
+	@Test
+	public void testAsynchronousSendsAreQueued() throws Exception {
+		long start = System.currentTimeMillis();
+		List<Future<Mail>> futures = new ArrayList<Future<Mail>>();
+		for (int i = 0; i < 5; i++) {
+			futures.add(sender.sendAsync(new Mail("user" + i + "@localhost", "Mail " + i, "Limited")));
+		}
+		for (Future<Mail> future : futures) {
+			Assert.assertNotNull(future.get(5, TimeUnit.SECONDS));
+		}
+		// One mail immediately, then one every 100 ms.
+		Assert.assertTrue(System.currentTimeMillis() - start >= 350);
+		Assert.assertEquals(5, server.getMessages().size());
+		Assert.assertEquals(4, sender.getRateLimiter().getThrottledCount());
+		Assert.assertTrue(sender.getRateLimiter().getWaitTime() > 0);
+	}
+
+}
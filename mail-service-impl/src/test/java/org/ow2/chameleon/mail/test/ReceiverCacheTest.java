@@ -0,0 +1,136 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.test;
+
+import java.util.Date;
+import java.util.List;
+
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.ow2.chameleon.mail.Mail;
+import org.ow2.chameleon.mail.impl.AbstractMailReceiver;
+
+
+public class ReceiverCacheTest {
+
+	private static class CacheReceiver extends AbstractMailReceiver {
+
+		public CacheReceiver() {
+			clearMessages();
+		}
+
+		protected Message[] getMessages() {
+			return new Message[0];
+		}
+
+		public Message add(Mail mail) {
+			Message msg = new MimeMessage((Session) null);
+			addMessage(msg, mail);
+			return msg;
+		}
+
+		public void remove(Message msg) {
+			removeMessage(msg);
+		}
+	}
+
+	private CacheReceiver receiver;
+
+	@Before
+	public void setUp() {
+		receiver = new CacheReceiver();
+	}
+
+	private static Mail mail(String subject, long sent) {
+		return new Mail("to@localhost", subject, subject).sent(sent < 0 ? null : new Date(sent))
+				.id("INBOX/" + sent + "-" + subject);
+	}
+
+	@Test
+	public void testLookupById() throws Exception {
+		Mail first = mail("First", 1000);
+		Mail second = mail("Second", 2000);
+		Message msg = receiver.add(first);
+		receiver.add(second);
+
+		Assert.assertSame(first, receiver.getMessageById("INBOX/1000-First"));
+		Assert.assertSame(second, receiver.getMessageById("INBOX/2000-Second"));
+		Assert.assertNull(receiver.getMessageById("INBOX/3000-Third"));
+
+		receiver.remove(msg);
+		Assert.assertNull(receiver.getMessageById("INBOX/1000-First"));
+		Assert.assertSame(second, receiver.getMessageById("INBOX/2000-Second"));
+	}
+
+	@Test
+	public void testSharedId() throws Exception {
+		Mail first = mail("Same", 1000);
+		Mail copy = mail("Same", 1000);
+		Message msg = receiver.add(first);
+		receiver.add(copy);
+
+		Assert.assertSame(first, receiver.getMessageById("INBOX/1000-Same"));
+		receiver.remove(msg);
+		Assert.assertSame(copy, receiver.getMessageById("INBOX/1000-Same"));
+	}
+
+	@Test
+	public void testSharedIdReturnsMostRecent() throws Exception {
+		Mail old = mail("Old", 1000).id("INBOX/shared");
+		Mail recent = mail("Recent", 3000).id("INBOX/shared");
+		Mail oldest = mail("Oldest", 500).id("INBOX/shared");
+		receiver.add(old);
+		Message msg = receiver.add(recent);
+		receiver.add(oldest);
+
+		Assert.assertSame(recent, receiver.getMessageById("INBOX/shared"));
+		receiver.remove(msg);
+		Assert.assertSame(old, receiver.getMessageById("INBOX/shared"));
+	}
+
+	private static String subjects(List<Mail> mails) {
+		StringBuilder subjects = new StringBuilder();
+		for (Mail mail : mails) {
+			subjects.append(mail.subject()).append(' ');
+		}
+		return subjects.toString().trim();
+	}
+
+	@Test
+	public void testSortedByDate() throws Exception {
+		receiver.add(mail("B", 2000));
+		receiver.add(mail("Undated", -1));
+		Message msg = receiver.add(mail("D", 4000));
+		receiver.add(mail("A", 1000));
+		receiver.add(mail("C", 3000).read(true));
+
+		Assert.assertEquals("D C B A Undated", subjects(receiver.getAllMessages()));
+		Assert.assertEquals("D B A Undated", subjects(receiver.getUnreadMessages()));
+		Assert.assertEquals("D C B A Undated", subjects(receiver.getRecentMessages()));
+		Assert.assertEquals("C B", subjects(receiver.getMessages(new Date(1000), new Date(4000))));
+		Assert.assertTrue(receiver.getMessages(new Date(4000), new Date(1000)).isEmpty());
+
+		receiver.remove(msg);
+		Assert.assertEquals("C B A Undated", subjects(receiver.getAllMessages()));
+		Assert.assertEquals("C B A Undated", subjects(receiver.getRecentMessages()));
+		Assert.assertEquals("C B A", subjects(receiver.getMessages(new Date(0), new Date(5000))));
+	}
+
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.test;
+
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.AddressException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.ow2.chameleon.mail.Mail;
+import org.ow2.chameleon.mail.impl.RetryPolicy;
+import org.ow2.chameleon.mail.impl.SMTPMailSender;
+
+import com.sun.mail.smtp.SMTPSendFailedException;
+
+
+public class RetryTest {
+
+	private FakeSMTPServer server;
+
+	private SMTPMailSender sender;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new FakeSMTPServer();
+		Properties options = new Properties();
+		options.setProperty("smtp.retry.max", "3");
+		options.setProperty("smtp.retry.delay", "50");
+		sender = server.createSender(options);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		sender.stop();
+		server.stop();
+	}
+
+	@Test
+	public void testClassification() {
+		Assert.assertTrue(RetryPolicy.isTransient(
+				new SMTPSendFailedException("DATA", 451, "451 Try again later", null, null, null, null)));
+		Assert.assertFalse(RetryPolicy.isTransient(
+				new SMTPSendFailedException("DATA", 554, "554 Rejected", null, null, null, null)));
+		Assert.assertTrue(RetryPolicy.isTransient(new MessagingException("Could not connect")));
+		Assert.assertFalse(RetryPolicy.isTransient(new AddressException("Illegal address")));
+		Assert.assertFalse(RetryPolicy.isTransient(new SendFailedException("Invalid Addresses")));
+	}
+
+	@Test
+	public void testBackoff() {
+		RetryPolicy policy = new RetryPolicy(10, 1000, 5000);
+		for (int attempt = 1; attempt < 10; attempt++) {
+			long max = Math.min(1000L << (attempt - 1), 5000);
+			long delay = policy.getDelay(attempt);
+			Assert.assertTrue(delay >= max / 2 && delay <= max);
+		}
+	}
+
+	@Test
+	public void testGreylistedMailIsSentAgain() throws Exception {
+		server.reply("grey@localhost", "!451 Greylisted, try again later");
+		Future<Mail> future = sender.sendAsync(new Mail("grey@localhost", "Greylisted", "This mail is greylisted"));
+		Assert.assertNotNull(future.get(5, TimeUnit.SECONDS));
+		Assert.assertEquals(1, server.getMessages().size());
+	}
+
+	@Test
+	public void testOnlyValidUnsentRecipientsAreRetried() throws Exception {
+		server.reply("grey@localhost", "!451 Greylisted, try again later");
+		server.reply("invalid@localhost", "550 No such user");
+		Mail mail = new Mail("grey@localhost", "Partial", "Some recipients are rejected")
+				.to("invalid@localhost")
+				.cc("cc@localhost");
+		Mail sent = sender.sendAsync(mail).get(5, TimeUnit.SECONDS);
+
+		Assert.assertEquals(1, sent.to().size());
+		Assert.assertEquals("grey@localhost", sent.to().get(0));
+		Assert.assertEquals(1, server.getMessages().size());
+		Assert.assertTrue(server.getRecipients().contains("grey@localhost"));
+		Assert.assertTrue(server.getRecipients().contains("cc@localhost"));
+		Assert.assertFalse(server.getRecipients().contains("invalid@localhost"));
+	}
+
+	@Test
+	public void testPermanentFailureIsNotRetried() throws Exception {
+		server.reply("invalid@localhost", "550 No such user");
+		Future<Mail> future = sender.sendAsync(new Mail("invalid@localhost", "Rejected", "This mail is rejected"));
+		try {
+			future.get(5, TimeUnit.SECONDS);
+			Assert.fail("The mail should have been rejected");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof SendFailedException);
+		}
+	}
+
+	@Test
+	public void testStopFailsScheduledRetries() throws Exception {
+		server.reply("grey@localhost", "451 Greylisted, try again later");
+		Properties options = new Properties();
+		options.setProperty("smtp.retry.max", "3");
+		options.setProperty("smtp.retry.delay", "60000");
+		SMTPMailSender stopped = server.createSender(options);
+		Future<Mail> future = stopped.sendAsync(new Mail("grey@localhost", "Greylisted", "Never sent again"));
+		long deadline = System.currentTimeMillis() + 5000;
+		while (stopped.getRetryCount() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		stopped.stop();
+		try {
+			future.get(1, TimeUnit.SECONDS);
+			Assert.fail("The retry is cancelled by stop()");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+		}
+	}
+
+	@Test
+	public void testSynchronousSendRetriesInBackground() throws Exception {
+		server.reply("grey@localhost", "!451 Greylisted, try again later");
+		sender.send("grey@localhost", null, "Greylisted", "This mail is greylisted");
+		for (int i = 0; i < 50 && server.getMessages().isEmpty(); i++) {
+			Thread.sleep(100);
+		}
+		Assert.assertEquals(1, server.getMessages().size());
+	}
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.test;
+
+import java.util.Properties;
+
+import javax.mail.SendFailedException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.ow2.chameleon.mail.Mail;
+import org.ow2.chameleon.mail.impl.SMTPMailSender;
+
+
+public class SmtpExtensionsTest {
+
+	private static final String BODY = "Gr\u00fc\u00dfe aus K\u00f6ln\n.a line starting with a dot\n";
+
+	private FakeSMTPServer server;
+
+	private SMTPMailSender sender;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new FakeSMTPServer();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (sender != null) {
+			sender.stop();
+		}
+		server.stop();
+	}
+
+	private void createSender(String engine) {
+		Properties options = new Properties();
+		options.setProperty("smtp.engine", engine);
+		sender = server.createSender(options);
+	}
+
+	/**
+	 * Decodes the UTF-8 content received by the server.
+	 */
+	private static String utf8(String received) throws Exception {
+		return new String(received.getBytes("ISO-8859-1"), "UTF-8");
+	}
+
+	@Test
+	public void testChunkingAnd8BitMime() throws Exception {
+		server.extensions("PIPELINING", "CHUNKING", "8BITMIME");
+		createSender("nio");
+		// The extensions of the relay are unknown until the first connection.
+		sender.send(new Mail("to@localhost", "First", BODY).charset("UTF-8").subType("plain"));
+		Assert.assertTrue(server.getMessages().get(0).contains("quoted-printable"));
+
+		sender.send(new Mail("to@localhost", "Second", BODY).charset("UTF-8").subType("plain"));
+		String message = utf8(server.getMessages().get(1));
+		Assert.assertTrue(message.contains("Content-Transfer-Encoding: 8bit"));
+		Assert.assertTrue(message.contains(BODY));
+		Assert.assertTrue(server.getCommands().contains("MAIL FROM:<sender@localhost> BODY=8BITMIME"));
+		Assert.assertFalse(server.getCommands().contains("DATA"));
+	}
+
+	@Test
+	public void testSmtpUtf8() throws Exception {
+		server.extensions("PIPELINING", "8BITMIME", "SMTPUTF8");
+		createSender("nio");
+		sender.send(new Mail("jos\u00e9@localhost", "Internationalized", "Hello"));
+
+		Assert.assertEquals("jos\u00e9@localhost", utf8(server.getRecipients().get(0)));
+		Assert.assertTrue(server.getCommands().contains("MAIL FROM:<sender@localhost> BODY=8BITMIME SMTPUTF8"));
+		Assert.assertTrue(utf8(server.getMessages().get(0)).contains("To: jos\u00e9@localhost"));
+	}
+
+	@Test
+	public void testSmtpUtf8NotSupported() throws Exception {
+		server.extensions("PIPELINING");
+		createSender("nio");
+		try {
+			sender.send(new Mail("jos\u00e9@localhost", "Internationalized", "Hello"));
+			Assert.fail("The relay cannot deliver internationalized addresses");
+		} catch (SendFailedException e) {
+			Assert.assertEquals(1, e.getInvalidAddresses().length);
+		}
+		Assert.assertTrue(server.getMessages().isEmpty());
+	}
+
+	@Test
+	public void testJavamail8BitMime() throws Exception {
+		server.extensions("8BITMIME");
+		createSender("javamail");
+		sender.send(new Mail("to@localhost", "Javamail", BODY).charset("UTF-8").subType("plain"));
+		Assert.assertTrue(server.getMessages().get(0).contains("Content-Transfer-Encoding: 8bit"));
+	}
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.Random;
+
+import javax.activation.DataHandler;
+import javax.activation.FileDataSource;
+import javax.mail.Message;
+import javax.mail.Multipart;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+
+import org.ow2.chameleon.mail.Mail;
+import org.ow2.chameleon.mail.MailTemplate;
+import org.ow2.chameleon.mail.impl.CompiledTemplate;
+import org.ow2.chameleon.mail.impl.SMTPMailSender.Connection;
+import org.ow2.chameleon.mail.impl.SendContext;
+
+/**
+ * Measures the cost of building and writing one personalized message with
+ * a 64 KB attachment, per recipient (as {@link Mail} + MimeMessage) and
+ * with a compiled {@link MailTemplate}. No network is involved: messages
+ * are written to a stream discarding the bytes.
+ * <p/>
+ * Usage: <tt>TemplateBenchmark [recipients]</tt>, 100000 recipients by default.
+ */
+public class TemplateBenchmark {
+
+	private static final String SUBJECT = "Your invoice ${number}";
+
+	private static final String BODY = "Dear ${name},\n\nPlease find attached the terms of your invoice ${number}.\n";
+
+	public static void main(String[] args) throws Exception {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		File file = File.createTempFile("terms", ".pdf");
+		file.deleteOnExit();
+		byte[] content = new byte[64 * 1024];
+		new Random(0).nextBytes(content);
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(content);
+		out.close();
+
+		SendContext context = new SendContext(Connection.NO_AUTH, "localhost", 25, "sender@localhost",
+				null, null, false, false, false);
+		MailTemplate template = new MailTemplate(SUBJECT, BODY).attach(file);
+
+		// Warm up.
+		perMail(context, file, count / 10);
+		compiled(context, template, count / 10);
+
+		long start = System.nanoTime();
+		perMail(context, file, count);
+		long perMail = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		compiled(context, template, count);
+		long compiled = System.nanoTime() - start;
+
+		System.out.println("Recipients:        " + count);
+		System.out.println("Mail + MimeMessage: " + (perMail / count / 1000) + " us/message");
+		System.out.println("Compiled template:  " + (compiled / count / 1000) + " us/message");
+	}
+
+	private static void perMail(SendContext context, File file, int count) throws Exception {
+		OutputStream sink = new NullOutputStream();
+		for (int i = 0; i < count; i++) {
+			Mail mail = new Mail("user" + i + "@localhost",
+					"Your invoice " + i,
+					"Dear User " + i + ",\n\nPlease find attached the terms of your invoice " + i + ".\n")
+					.attach(file);
+			MimeMessage msg = new MimeMessage(context.session());
+			msg.setFrom(context.from());
+			msg.setRecipient(Message.RecipientType.TO, new InternetAddress(mail.to().get(0)));
+			msg.setSubject(mail.subject());
+			msg.setSentDate(new Date());
+			Multipart mp = new MimeMultipart();
+			MimeBodyPart text = new MimeBodyPart();
+			text.setText(mail.body(), mail.charset(), mail.subType());
+			mp.addBodyPart(text);
+			for (File attachment : mail.attachments()) {
+				MimeBodyPart part = new MimeBodyPart();
+				part.setDataHandler(new DataHandler(new FileDataSource(attachment)));
+				part.setFileName(attachment.getName());
+				mp.addBodyPart(part);
+			}
+			msg.setContent(mp);
+			msg.writeTo(sink);
+		}
+	}
+
+	private static void compiled(SendContext context, MailTemplate template, int count) throws Exception {
+		OutputStream sink = new NullOutputStream();
+		CompiledTemplate compiled = new CompiledTemplate(template, context);
+		for (int i = 0; i < count; i++) {
+			Mail mail = compiled.render(new MailTemplate.Recipient("user" + i + "@localhost")
+					.set("number", Integer.toString(i))
+					.set("name", "User " + i));
+			compiled.createMessage(mail).writeTo(sink);
+		}
+	}
+
+	private static class NullOutputStream extends OutputStream {
+
+		public void write(int b) {
+			// Discarded.
+		}
+
+		public void write(byte[] b, int off, int len) {
+			// Discarded.
+		}
+
+	}
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.ow2.chameleon.mail.Attachments;
+import org.ow2.chameleon.mail.Mail;
+import org.ow2.chameleon.mail.MailTemplate;
+import org.ow2.chameleon.mail.impl.SMTPMailSender;
+
+
+public class TemplateTest {
+
+	private FakeSMTPServer server;
+
+	private SMTPMailSender sender;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new FakeSMTPServer();
+		sender = server.createSender(new Properties());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		sender.stop();
+		server.stop();
+	}
+
+	@Test
+	public void testRender() {
+		MailTemplate template = new MailTemplate("Hello ${name}", "Dear ${ name },\nYour code is ${code}${missing}. ${unclosed")
+				.cc("boss@localhost");
+		Mail mail = template.render(new MailTemplate.Recipient("bob@localhost")
+				.set("name", "Bob")
+				.set("code", "42"));
+		Assert.assertEquals("Hello Bob", mail.subject());
+		Assert.assertEquals("Dear Bob,\nYour code is 42. ${unclosed", mail.body());
+		Assert.assertEquals("bob@localhost", mail.to().get(0));
+		Assert.assertEquals("boss@localhost", mail.cc().get(0));
+		Assert.assertEquals("Static", new MailTemplate("Static", null)
+				.subject(new MailTemplate.Recipient("bob@localhost")));
+	}
+
+	@Test
+	public void testSendToRecipients() throws Exception {
+		MailTemplate template = new MailTemplate("Invoice ${number}", "Hello ${name}, see the attached terms.")
+				.attach(Attachments.of("terms.txt", "text/plain", "Shared terms".getBytes("US-ASCII")));
+		List<MailTemplate.Recipient> recipients = new ArrayList<MailTemplate.Recipient>();
+		for (int i = 0; i < 5; i++) {
+			recipients.add(new MailTemplate.Recipient("user" + i + "@localhost")
+					.set("number", Integer.toString(i))
+					.set("name", "User " + i));
+		}
+		List<Exception> results = sender.send(template, recipients);
+
+		Assert.assertEquals(5, results.size());
+		for (Exception result : results) {
+			Assert.assertNull(result);
+		}
+		Assert.assertEquals(5, server.getMessages().size());
+		Assert.assertEquals(1, server.getConnectionCount());
+		for (int i = 0; i < 5; i++) {
+			String message = server.getMessages().get(i);
+			Assert.assertTrue(message.contains("Subject: Invoice " + i));
+			Assert.assertTrue(message.contains("Hello User " + i));
+			Assert.assertTrue(message.contains("filename=terms.txt"));
+		}
+	}
+
+}
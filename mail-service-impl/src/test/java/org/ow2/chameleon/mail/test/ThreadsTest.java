@@ -0,0 +1,102 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.ow2.chameleon.mail.Mail;
+import org.ow2.chameleon.mail.impl.SMTPMailSender;
+import org.ow2.chameleon.mail.impl.Threads;
+
+
+public class ThreadsTest {
+
+	private static boolean isVirtual(Thread thread) throws Exception {
+		try {
+			return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	@Test
+	public void testPlatformThreads() throws Exception {
+		Thread thread = Threads.factory("test", false).newThread(new Runnable() {
+			public void run() {
+				// Nothing.
+			}
+		});
+		Assert.assertEquals("test-1", thread.getName());
+		Assert.assertTrue(thread.isDaemon());
+		Assert.assertFalse(isVirtual(thread));
+		Assert.assertFalse(Threads.isVirtual(null));
+		Assert.assertFalse(Threads.isVirtual("platform"));
+	}
+
+	@Test
+	public void testPlatformThreadKeepsDaemonStatus() throws Exception {
+		Thread thread = Threads.create("test", new Runnable() {
+			public void run() {
+				// Nothing.
+			}
+		}, false);
+		Assert.assertEquals(Thread.currentThread().isDaemon(), thread.isDaemon());
+		Assert.assertFalse(isVirtual(thread));
+	}
+
+	@Test
+	public void testVirtualThreadsOrFallback() throws Exception {
+		Thread thread = Threads.create("test", new Runnable() {
+			public void run() {
+				// Nothing.
+			}
+		}, true);
+		Assert.assertEquals("test", thread.getName());
+		Assert.assertEquals(Threads.isVirtualSupported(), isVirtual(thread));
+		Assert.assertEquals(Threads.isVirtualSupported(), Threads.isVirtual("virtual"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownMode() {
+		Threads.isVirtual("green");
+	}
+
+	@Test
+	public void testSendAsyncOnVirtualThreads() throws Exception {
+		FakeSMTPServer server = new FakeSMTPServer();
+		Properties options = new Properties();
+		options.setProperty("smtp.threads", "virtual");
+		SMTPMailSender sender = server.createSender(options);
+		try {
+			List<Future<Mail>> futures = new ArrayList<Future<Mail>>();
+			for (int i = 0; i < 50; i++) {
+				futures.add(sender.sendAsync(new Mail("to@localhost", "Mail " + i, "Mail " + i)));
+			}
+			for (Future<Mail> future : futures) {
+				Assert.assertNotNull(future.get().sent());
+			}
+			Assert.assertEquals(50, server.getMessages().size());
+		} finally {
+			sender.stop();
+			server.stop();
+		}
+	}
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail.test;
+
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.ow2.chameleon.mail.impl.SMTPMailSender;
+
+
+public class TransportPoolTest {
+
+	private FakeSMTPServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new FakeSMTPServer();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.stop();
+	}
+
+	private SMTPMailSender createSender(Properties options) {
+		return server.createSender(options);
+	}
+
+	@Test
+	public void testConnectionIsReused() throws Exception {
+		SMTPMailSender sender = createSender(new Properties());
+		for (int i = 0; i < 5; i++) {
+			sender.send("to@localhost", null, "Mail " + i, "This is the mail " + i);
+		}
+		sender.stop();
+
+		Assert.assertEquals(5, server.getMessages().size());
+		Assert.assertEquals(1, server.getConnectionCount());
+	}
+
+	@Test
+	public void testPoolingDisabled() throws Exception {
+		Properties options = new Properties();
+		options.setProperty("smtp.pool.size", "0");
+		SMTPMailSender sender = createSender(options);
+		for (int i = 0; i < 3; i++) {
+			sender.send("to@localhost", null, "Mail " + i, "This is the mail " + i);
+		}
+		sender.stop();
+
+		Assert.assertEquals(3, server.getMessages().size());
+		Assert.assertEquals(3, server.getConnectionCount());
+	}
+
+	@Test
+	public void testOldConnectionsAreNotReused() throws Exception {
+		Properties options = new Properties();
+		options.setProperty("smtp.pool.maxAge", "50");
+		SMTPMailSender sender = createSender(options);
+		sender.send("to@localhost", null, "First", "First mail");
+		Thread.sleep(100);
+		sender.send("to@localhost", null, "Second", "Second mail");
+		sender.stop();
+
+		Assert.assertEquals(2, server.getMessages().size());
+		Assert.assertEquals(2, server.getConnectionCount());
+	}
+
+	@Test
+	public void testRejectedRecipientDoesNotBreakTheConnection() throws Exception {
+		server.reply("invalid@localhost", "550 No such user");
+		SMTPMailSender sender = createSender(new Properties());
+		try {
+			sender.send("invalid@localhost", null, "Rejected", "This mail is rejected");
+			Assert.fail("The mail should have been rejected");
+		} catch (Exception e) {
+			// Expected.
+		}
+		sender.send("to@localhost", null, "Accepted", "This mail is accepted");
+		sender.stop();
+
+		Assert.assertEquals(1, server.getMessages().size());
+		Assert.assertEquals(1, server.getConnectionCount());
+	}
+
+}
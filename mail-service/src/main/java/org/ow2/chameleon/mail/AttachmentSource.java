@@ -0,0 +1,54 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Content of an attachment which is not a file, such as a report generated
+ * in memory. The content is streamed to the mail encoder when the mail is
+ * sent. As a mail may be sent several times (retries, several SMTP
+ * transactions), {@link #getInputStream()} must return a new stream
+ * reading the whole content on each call.
+ * <p/>
+ * {@link Attachments} provides sources for byte arrays, buffers and
+ * file regions. Implement this interface to stream any other content.
+ */
+public interface AttachmentSource {
+
+    /**
+     * Gets the file name of the attachment.
+     *
+     * @return the file name
+     */
+    String getName();
+
+    /**
+     * Gets the MIME type of the content.
+     *
+     * @return the content type, such as <tt>application/pdf</tt>
+     */
+    String getContentType();
+
+    /**
+     * Opens a new stream on the content.
+     *
+     * @return the stream, closed by the caller
+     * @throws IOException if the content cannot be read
+     */
+    InputStream getInputStream() throws IOException;
+
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Factory of {@link AttachmentSource}s. The returned sources read the
+ * given content directly, without copying it.
+ */
+public final class Attachments {
+
+    /**
+     * Utility class.
+     */
+    private Attachments() {
+        // Not instantiable.
+    }
+
+    /**
+     * Creates an attachment from a byte array. The array must not be
+     * modified until the mail is sent.
+     *
+     * @param name        the file name
+     * @param contentType the MIME type
+     * @param content     the content
+     * @return the attachment source
+     */
+    public static AttachmentSource of(final String name, final String contentType, final byte[] content) {
+        if (content == null) {
+            throw new NullPointerException("The given content is null");
+        }
+        return new NamedSource(name, contentType) {
+            public InputStream getInputStream() {
+                return new ByteArrayInputStream(content);
+            }
+        };
+    }
+
+    /**
+     * Creates an attachment from the remaining content of a buffer. The
+     * buffer position is not modified; its content must not be modified
+     * until the mail is sent.
+     *
+     * @param name        the file name
+     * @param contentType the MIME type
+     * @param content     the content
+     * @return the attachment source
+     */
+    public static AttachmentSource of(final String name, final String contentType, ByteBuffer content) {
+        if (content == null) {
+            throw new NullPointerException("The given content is null");
+        }
+        final ByteBuffer buffer = content.slice();
+        return new NamedSource(name, contentType) {
+            public InputStream getInputStream() {
+                return new ByteBufferInputStream(buffer.duplicate());
+            }
+        };
+    }
+
+    /**
+     * Creates an attachment from a region of a file. The region is memory
+     * mapped, so it is read by the operating system as the mail is encoded.
+     *
+     * @param name        the file name
+     * @param contentType the MIME type
+     * @param channel     the file channel
+     * @param position    the position of the region
+     * @param size        the size of the region
+     * @return the attachment source
+     * @throws IOException if the region cannot be mapped
+     */
+    public static AttachmentSource of(String name, String contentType, FileChannel channel,
+            long position, long size) throws IOException {
+        return of(name, contentType, channel.map(FileChannel.MapMode.READ_ONLY, position, size));
+    }
+
+    /**
+     * Base class of the sources.
+     */
+    private abstract static class NamedSource implements AttachmentSource {
+
+        /**
+         * The file name.
+         */
+        private final String m_name;
+
+        /**
+         * The MIME type.
+         */
+        private final String m_type;
+
+        /**
+         * Creates a source.
+         *
+         * @param name the file name
+         * @param type the MIME type
+         */
+        NamedSource(String name, String type) {
+            if (name == null) {
+                throw new NullPointerException("The given name is null");
+            }
+            m_name = name;
+            m_type = type == null ? "application/octet-stream" : type;
+        }
+
+        /**
+         * @return the file name
+         * @see org.ow2.chameleon.mail.AttachmentSource#getName()
+         */
+        public String getName() {
+            return m_name;
+        }
+
+        /**
+         * @return the MIME type
+         * @see org.ow2.chameleon.mail.AttachmentSource#getContentType()
+         */
+        public String getContentType() {
+            return m_type;
+        }
+
+    }
+
+    /**
+     * Stream reading a buffer.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+
+        /**
+         * The buffer, read from its position.
+         */
+        private final ByteBuffer m_buffer;
+
+        /**
+         * Creates the stream.
+         *
+         * @param buffer the buffer
+         */
+        ByteBufferInputStream(ByteBuffer buffer) {
+            m_buffer = buffer;
+        }
+
+        /**
+         * @return the next byte, -1 at the end of the buffer
+         * @see java.io.InputStream#read()
+         */
+        public int read() {
+            return m_buffer.hasRemaining() ? m_buffer.get() & 0xFF : -1;
+        }
+
+        /**
+         * @param bytes  the destination
+         * @param offset the offset in the destination
+         * @param length the maximum number of bytes to read
+         * @return the number of bytes read, -1 at the end of the buffer
+         * @see java.io.InputStream#read(byte[], int, int)
+         */
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!m_buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, m_buffer.remaining());
+            m_buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        /**
+         * @return the number of remaining bytes
+         * @see java.io.InputStream#available()
+         */
+        public int available() {
+            return m_buffer.remaining();
+        }
+
+    }
+
+}
@@ -30,6 +30,29 @@ import java.util.List;
  */
 public class Mail {
 
+    /**
+     * The delivery priority of a mail. The sender schedules the mails
+     * sent asynchronously by priority, and reserves a share of its
+     * connections and of its sending rate to {@link #HIGH} mails.
+     */
+    public enum Priority {
+
+        /**
+         * Transactional mails (password reset, confirmation...), sent first.
+         */
+        HIGH,
+
+        /**
+         * The default priority.
+         */
+        NORMAL,
+
+        /**
+         * Bulk mails (newsletters, digests...), sent last.
+         */
+        LOW
+    }
+
     /**
      * The 'to' list of address
      */
@@ -50,6 +73,11 @@ public class Mail {
      */
     protected List<File> m_attachments = new ArrayList<File>();
 
+    /**
+     * The list of attachments which are not files.
+     */
+    protected List<AttachmentSource> m_sources = new ArrayList<AttachmentSource>(0);
+
     /**
      * The subject.
      */
@@ -91,6 +119,16 @@ public class Mail {
      */
     private String m_mime;
 
+    /**
+     * The delivery priority.
+     */
+    private Priority m_priority = Priority.NORMAL;
+
+    /**
+     * The idempotency key if set.
+     */
+    private String m_idempotencyKey;
+
     /**
      * Creates a new Mail object
      *
@@ -142,10 +180,13 @@ public class Mail {
                 .charset(mail.charset())
                 .subType(mail.subType())
                 .attach(mail.attachments())
+                .attachSources(mail.attachmentSources())
                 .read(mail.read())
                 .sent(mail.sent())
                 .from(mail.from())
-                .id(mail.id());
+                .id(mail.id())
+                .priority(mail.priority())
+                .idempotencyKey(mail.idempotencyKey());
     }
 
     /**
@@ -357,6 +398,60 @@ public class Mail {
         return new ArrayList<File>(m_attachments);
     }
 
+    /**
+     * Attaches a content which is not a file, such as a report generated
+     * in memory. The content is read when the mail is sent.
+     *
+     * @param source the content to attach
+     * @return the current {@link Mail}
+     * @throws NullPointerException the source is <code>null</code>
+     * @see Attachments
+     */
+    public Mail attach(AttachmentSource source) throws NullPointerException {
+        if (source == null) {
+            throw new NullPointerException("The given attachment source is null");
+        }
+        m_sources.add(source);
+        return this;
+    }
+
+    /**
+     * Attaches a list of contents which are not files.
+     *
+     * @param sources the contents to attach
+     * @return the current {@link Mail}
+     * @throws NullPointerException if the list or one of the sources is <code>null</code>
+     */
+    public Mail attachSources(List<AttachmentSource> sources) throws NullPointerException {
+        if (sources == null) {
+            throw new NullPointerException("The given attachment source list is null");
+        }
+        for (AttachmentSource source : sources) {
+            attach(source);
+        }
+        return this;
+    }
+
+    /**
+     * Removes an attached content.
+     *
+     * @param source the content to remove
+     * @return the current {@link Mail}
+     */
+    public Mail removeAttachment(AttachmentSource source) {
+        m_sources.remove(source);
+        return this;
+    }
+
+    /**
+     * Gets the list of attached contents which are not files.
+     *
+     * @return the attached contents
+     */
+    public List<AttachmentSource> attachmentSources() {
+        return new ArrayList<AttachmentSource>(m_sources);
+    }
+
     /**
      * Sets the mail's subject.
      *
@@ -499,4 +594,47 @@ public class Mail {
         return this;
     }
 
+    /**
+     * Gets the delivery priority.
+     *
+     * @return the priority, {@link Priority#NORMAL} by default
+     */
+    public Priority priority() {
+        return m_priority;
+    }
+
+    /**
+     * Sets the delivery priority.
+     *
+     * @param priority the priority, <code>null</code> for {@link Priority#NORMAL}
+     * @return the current {@link Mail}
+     */
+    public Mail priority(Priority priority) {
+        m_priority = priority == null ? Priority.NORMAL : priority;
+        return this;
+    }
+
+    /**
+     * Gets the idempotency key.
+     *
+     * @return the key, <code>null</code> if not set
+     */
+    public String idempotencyKey() {
+        return m_idempotencyKey;
+    }
+
+    /**
+     * Sets the idempotency key. Sending again a mail with the same key,
+     * for example after a timeout, does not deliver it twice: the sender
+     * returns the outcome of the first send instead, as long as it
+     * remembers the key.
+     *
+     * @param key the key, <code>null</code> to always send the mail
+     * @return the current {@link Mail}
+     */
+    public Mail idempotencyKey(String key) {
+        m_idempotencyKey = key;
+        return this;
+    }
+
 }
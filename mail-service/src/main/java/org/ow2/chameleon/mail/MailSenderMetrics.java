@@ -0,0 +1,106 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail;
+
+
+/**
+ * Metrics of a mail sender, to find out where the time is spent when
+ * sending mails. Providers may expose this service along with the
+ * {@link MailSenderService}, and publish it over JMX.
+ * The latency of each phase of a send is recorded in a histogram:
+ * <ul>
+ * <li><code>build</code> : building and encoding the MIME message</li>
+ * <li><code>connect</code> : opening a connection to the relay, TLS and authentication included</li>
+ * <li><code>transaction</code> : the SMTP transaction, from <code>MAIL FROM</code> to the end of the data</li>
+ * <li><code>send</code> : a whole attempt to send a mail, the phases above included</li>
+ * </ul>
+ * Latencies are in milliseconds.
+ */
+public interface MailSenderMetrics {
+
+    /**
+     * Phase building and encoding the MIME message.
+     */
+    public static final String PHASE_BUILD = "build";
+
+    /**
+     * Phase opening a connection to the relay.
+     */
+    public static final String PHASE_CONNECT = "connect";
+
+    /**
+     * Phase running the SMTP transaction.
+     */
+    public static final String PHASE_TRANSACTION = "transaction";
+
+    /**
+     * A whole attempt to send a mail.
+     */
+    public static final String PHASE_SEND = "send";
+
+    /**
+     * Gets the number of mails sent.
+     * @return the number of mails sent successfully
+     */
+    long getSentCount();
+
+    /**
+     * Gets the number of mails which could not be sent.
+     * @return the number of failed mails, retries excluded
+     */
+    long getFailedCount();
+
+    /**
+     * Gets the number of retries.
+     * @return the number of attempts scheduled after a transient failure
+     */
+    long getRetryCount();
+
+    /**
+     * Gets the number of times a phase was recorded.
+     * @param phase the phase
+     * @return the number of samples
+     * @throws IllegalArgumentException if the phase is unknown
+     */
+    long getCount(String phase);
+
+    /**
+     * Gets the mean latency of a phase.
+     * @param phase the phase
+     * @return the mean latency (ms), 0 if no sample was recorded
+     * @throws IllegalArgumentException if the phase is unknown
+     */
+    double getMeanLatency(String phase);
+
+    /**
+     * Gets the maximum latency of a phase.
+     * @param phase the phase
+     * @return the maximum latency (ms), 0 if no sample was recorded
+     * @throws IllegalArgumentException if the phase is unknown
+     */
+    double getMaxLatency(String phase);
+
+    /**
+     * Gets a percentile of the latency of a phase, such as the median
+     * (50) or the 99th percentile (99). Values are approximated within 3%.
+     * @param phase the phase
+     * @param percentile the percentile, between 0 and 100
+     * @return the latency (ms) below which the given percentage of samples are, 0 if no
+     * sample was recorded
+     * @throws IllegalArgumentException if the phase is unknown
+     */
+    double getLatency(String phase, double percentile);
+
+}
@@ -16,6 +16,7 @@ package org.ow2.chameleon.mail;
 
 import java.io.File;
 import java.util.List;
+import java.util.concurrent.Future;
 
 
 /**
@@ -30,6 +31,8 @@ import java.util.List;
  * <li><code>cc</code> : cc (List of String)</li>
  * <li><code>subject</code> : subject</li>
  * <li><code>body</code> : body</li>
+ * <li><code>body.size</code> : the length of the body (Integer), instead of the body</li>
+ * <li><code>body.hash</code> : the hash code of the body (Integer), instead of the body</li>
  * <li><code>status</code> : boolean set to true if the mail was sent successfully, false otherwise</li>
  * <li><code>error</code> : error message if the mail was not sent correctly, can be null</li>
  * </ul>
@@ -37,6 +40,9 @@ import java.util.List;
  * If a message cannot be delivered, another event similar to the first one is sent with the <code>status</code>
  * and <code>error</code> entries updated.
  *
+ * Providers may let the body out of the events, as it can be large. They then
+ * publish either no body at all, or its <code>body.size</code> and <code>body.hash</code>.
+ *
  */
 public interface MailSenderService {
 
@@ -75,6 +81,16 @@ public interface MailSenderService {
      */
     public static final String BODY_KEY = "body";
 
+    /**
+     * Event Property Key: the length of the mail body, if the body is not published.
+     */
+    public static final String BODY_SIZE_KEY = "body.size";
+
+    /**
+     * Event Property Key: the hash code of the mail body, if the body is not published.
+     */
+    public static final String BODY_HASH_KEY = "body.hash";
+
     /**
      * Event Property Key: was the mail sent successfully or not.
      */
@@ -114,4 +130,41 @@ public interface MailSenderService {
      */
     public void send(Mail mail) throws Exception;
 
+    /**
+     * Sends a list of mails. Implementations should transmit the mails
+     * back-to-back over the same connection. An event is published on the
+     * {@link #SENT_TOPIC} topic for each mail.
+     * @param mails the Mails to send
+     * @return the list of failures, index-aligned with the given list. The
+     * entry is <code>null</code> if the mail was sent successfully, or contains
+     * the exception explaining why the mail was not sent.
+     */
+    public List<Exception> send(List<Mail> mails);
+
+    /**
+     * Sends a template to a list of recipients (mail-merge). Implementations
+     * should prepare the parts shared by all the mails (attachments...) once,
+     * and transmit the mails as a batch (see {@link #send(List)}). An event
+     * is published on the {@link #SENT_TOPIC} topic for each mail.
+     * @param template the template
+     * @param recipients the recipients and their variables
+     * @return the list of failures, index-aligned with the recipient list. The
+     * entry is <code>null</code> if the mail was sent successfully, or contains
+     * the exception explaining why the mail was not sent.
+     */
+    public List<Exception> send(MailTemplate template, List<MailTemplate.Recipient> recipients);
+
+    /**
+     * Sends a mail asynchronously. This method does not wait for the
+     * mail to be transmitted. The outcome is also published on the
+     * {@link #SENT_TOPIC} topic.
+     * @param mail the Mail to send
+     * @return the completion handle, returning the sent Mail or throwing
+     * an {@link java.util.concurrent.ExecutionException} wrapping the
+     * cause if the mail cannot be sent.
+     * @throws java.util.concurrent.RejectedExecutionException if the mail cannot
+     * be accepted (too many pending mails)
+     */
+    public Future<Mail> sendAsync(Mail mail);
+
 }
@@ -0,0 +1,367 @@
+/*
+ * Copyright 2009 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.chameleon.mail;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Mail template for mail-merge: the same mail is sent to many recipients,
+ * only a few variables differ. The subject and the body may contain
+ * <tt>${name}</tt> variables, replaced by the values of each
+ * {@link Recipient}; unknown variables are replaced by an empty string.
+ * The subject and the body are parsed once, when the template is created.
+ * <p/>
+ * The 'cc' addresses and the attachments are shared by all the mails, so
+ * implementations can prepare them once (see
+ * {@link MailSenderService#send(MailTemplate, List)}).
+ * <p/>
+ * This class follow a kind of <tt>fluent API</tt> approach.
+ */
+public class MailTemplate {
+
+    /**
+     * The compiled subject.
+     */
+    private final Text m_subject;
+
+    /**
+     * The compiled body.
+     */
+    private final Text m_body;
+
+    /**
+     * The 'cc' list of address.
+     */
+    private final List<String> m_cc = new ArrayList<String>(0);
+
+    /**
+     * The list of attachments.
+     */
+    private final List<File> m_attachments = new ArrayList<File>(0);
+
+    /**
+     * The list of attachments which are not files.
+     */
+    private final List<AttachmentSource> m_sources = new ArrayList<AttachmentSource>(0);
+
+    /**
+     * The body's charset.
+     */
+    private String m_charset;
+
+    /**
+     * The body's TEXT/ sub-mime-type.
+     */
+    private String m_mime;
+
+    /**
+     * Creates a template.
+     *
+     * @param subject the subject template
+     * @param body    the body template
+     */
+    public MailTemplate(String subject, String body) {
+        m_subject = new Text(subject);
+        m_body = new Text(body);
+    }
+
+    /**
+     * Adds a 'cc' address to all the mails.
+     *
+     * @param cc the address
+     * @return the current {@link MailTemplate}
+     */
+    public MailTemplate cc(String cc) {
+        m_cc.add(cc);
+        return this;
+    }
+
+    /**
+     * Gets the 'cc' addresses.
+     *
+     * @return the list of addresses
+     */
+    public List<String> cc() {
+        return new ArrayList<String>(m_cc);
+    }
+
+    /**
+     * Attaches a file to all the mails.
+     *
+     * @param file the file to attach
+     * @return the current {@link MailTemplate}
+     * @throws NullPointerException  the file is <code>null</code>
+     * @throws FileNotFoundException the file does not exist.
+     */
+    public MailTemplate attach(File file) throws NullPointerException, FileNotFoundException {
+        if (file == null) {
+            throw new NullPointerException("The given file is null");
+        } else if (!file.exists()) {
+            throw new FileNotFoundException("The file " + file.getAbsolutePath() + " does not exist");
+        }
+        m_attachments.add(file);
+        return this;
+    }
+
+    /**
+     * Attaches a content to all the mails.
+     *
+     * @param source the content to attach
+     * @return the current {@link MailTemplate}
+     * @throws NullPointerException the source is <code>null</code>
+     */
+    public MailTemplate attach(AttachmentSource source) throws NullPointerException {
+        if (source == null) {
+            throw new NullPointerException("The given attachment source is null");
+        }
+        m_sources.add(source);
+        return this;
+    }
+
+    /**
+     * Gets the attached files.
+     *
+     * @return the attached files
+     */
+    public List<File> attachments() {
+        return new ArrayList<File>(m_attachments);
+    }
+
+    /**
+     * Gets the attached contents which are not files.
+     *
+     * @return the attached contents
+     */
+    public List<AttachmentSource> attachmentSources() {
+        return new ArrayList<AttachmentSource>(m_sources);
+    }
+
+    /**
+     * Sets the body's charset.
+     *
+     * @param charset the charset
+     * @return the current {@link MailTemplate}
+     */
+    public MailTemplate charset(String charset) {
+        m_charset = charset;
+        return this;
+    }
+
+    /**
+     * Gets the body's charset.
+     *
+     * @return the charset
+     */
+    public String charset() {
+        return m_charset;
+    }
+
+    /**
+     * Sets the body's TEXT/ sub-mime-type.
+     *
+     * @param mime the sub-mime-type
+     * @return the current {@link MailTemplate}
+     */
+    public MailTemplate subType(String mime) {
+        m_mime = mime;
+        return this;
+    }
+
+    /**
+     * Gets the body's TEXT/ sub-mime-type.
+     *
+     * @return the sub-mime-type
+     */
+    public String subType() {
+        return m_mime;
+    }
+
+    /**
+     * Renders the subject for a recipient.
+     *
+     * @param recipient the recipient
+     * @return the subject
+     */
+    public String subject(Recipient recipient) {
+        return m_subject.render(recipient.m_variables);
+    }
+
+    /**
+     * Renders the body for a recipient.
+     *
+     * @param recipient the recipient
+     * @return the body
+     */
+    public String body(Recipient recipient) {
+        return m_body.render(recipient.m_variables);
+    }
+
+    /**
+     * Renders the mail sent to a recipient.
+     *
+     * @param recipient the recipient
+     * @return the mail
+     */
+    public Mail render(Recipient recipient) {
+        Mail mail = new Mail()
+                .to(recipient.to())
+                .cc(m_cc)
+                .subject(subject(recipient))
+                .body(body(recipient))
+                .charset(m_charset)
+                .subType(m_mime);
+        // The files were checked when attached to the template.
+        mail.m_attachments.addAll(m_attachments);
+        mail.m_sources.addAll(m_sources);
+        return mail;
+    }
+
+    /**
+     * A recipient of a template, with its variables.
+     */
+    public static class Recipient {
+
+        /**
+         * The address.
+         */
+        private final String m_to;
+
+        /**
+         * The variables.
+         */
+        private final Map<String, String> m_variables = new HashMap<String, String>();
+
+        /**
+         * Creates a recipient.
+         *
+         * @param to the address
+         */
+        public Recipient(String to) {
+            if (to == null) {
+                throw new NullPointerException("The given 'to' is null");
+            }
+            m_to = to;
+        }
+
+        /**
+         * Sets a variable.
+         *
+         * @param name  the variable name
+         * @param value the value
+         * @return the current {@link Recipient}
+         */
+        public Recipient set(String name, String value) {
+            m_variables.put(name, value);
+            return this;
+        }
+
+        /**
+         * Gets the address.
+         *
+         * @return the address
+         */
+        public String to() {
+            return m_to;
+        }
+
+        /**
+         * Gets a variable.
+         *
+         * @param name the variable name
+         * @return the value, <code>null</code> if not set
+         */
+        public String get(String name) {
+            return m_variables.get(name);
+        }
+
+    }
+
+    /**
+     * A text split into literals and variables.
+     */
+    private static class Text {
+
+        /**
+         * The parts: literals at even indexes, variable names at odd indexes.
+         */
+        private final String[] m_parts;
+
+        /**
+         * The length of the literals.
+         */
+        private final int m_length;
+
+        /**
+         * Parses a text.
+         *
+         * @param text the text
+         */
+        Text(String text) {
+            List<String> parts = new ArrayList<String>();
+            int length = 0;
+            int start = 0;
+            if (text != null) {
+                int open;
+                while ((open = text.indexOf("${", start)) != -1) {
+                    int close = text.indexOf('}', open + 2);
+                    if (close == -1) {
+                        break;
+                    }
+                    parts.add(text.substring(start, open));
+                    parts.add(text.substring(open + 2, close).trim());
+                    length += open - start;
+                    start = close + 1;
+                }
+                parts.add(text.substring(start));
+                length += text.length() - start;
+            } else {
+                parts.add("");
+            }
+            m_parts = parts.toArray(new String[parts.size()]);
+            m_length = length;
+        }
+
+        /**
+         * Renders the text.
+         *
+         * @param variables the variables
+         * @return the text
+         */
+        String render(Map<String, String> variables) {
+            if (m_parts.length == 1) {
+                return m_parts[0];
+            }
+            StringBuilder builder = new StringBuilder(m_length + 16 * (m_parts.length / 2));
+            for (int i = 0; i < m_parts.length; i++) {
+                if (i % 2 == 0) {
+                    builder.append(m_parts[i]);
+                } else {
+                    String value = variables.get(m_parts[i]);
+                    if (value != null) {
+                        builder.append(value);
+                    }
+                }
+            }
+            return builder.toString();
+        }
+
+    }
+
+}